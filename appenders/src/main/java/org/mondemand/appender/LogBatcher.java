@@ -0,0 +1,162 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.appender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mondemand.Client;
+import org.mondemand.Level;
+
+/**
+ * Hands log events from the application threads to a background thread,
+ * which logs them to a client and flushes the client after each batch, so
+ * several messages go out in each MonDemand::LogMsg event.
+ * <p>
+ * The entries are allocated once: appenders claim a free entry, fill it in
+ * and publish it, and the background thread returns it to the free entries
+ * once it is logged.  When no entry is free the event is dropped rather
+ * than blocking the application, and counted.  Claiming and publishing
+ * never wait for a free entry, though the queues of entries take a short
+ * lock.
+ * <p>
+ * The client still sends the messages at or above its immediate send level
+ * as soon as they are logged, the appenders turn it off by default so that
+ * the batches decide when logs are sent.
+ */
+public class LogBatcher implements Runnable {
+  public static final int DEFAULT_BUFFER_SIZE = 1024;
+  public static final int DEFAULT_BATCH_SIZE = 64;
+  public static final long DEFAULT_SHUTDOWN_TIMEOUT = 1000;  // milliseconds
+  public static final int DEFAULT_IMMEDIATE_SEND_LEVEL = Level.OFF;
+  private static final long POLL_INTERVAL = 100;             // milliseconds
+
+  private final Client client;
+  private final int batchSize;
+  private final ArrayBlockingQueue<LogEntry> free;
+  private final ArrayBlockingQueue<LogEntry> pending;
+  private final List<LogEntry> batch;
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * @param client the client to log to
+   * @param bufferSize the number of events that can wait to be sent
+   * @param batchSize the maximum number of events logged between flushes
+   */
+  public LogBatcher(Client client, int bufferSize, int batchSize) {
+    if(bufferSize < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("invalid buffer size " + bufferSize
+          + " or batch size " + batchSize);
+    }
+    this.client = client;
+    this.batchSize = batchSize;
+    this.free = new ArrayBlockingQueue<LogEntry>(bufferSize);
+    this.pending = new ArrayBlockingQueue<LogEntry>(bufferSize);
+    this.batch = new ArrayList<LogEntry>(batchSize);
+    for(int i=0; i<bufferSize; ++i) {
+      free.add(new LogEntry());
+    }
+
+    this.thread = new Thread(this, "mondemand-log-batcher");
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * starts the background thread
+   */
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * @return a free entry to fill in and publish, or null if the buffer is
+   *         full or the batcher is stopped, in which case the event is
+   *         counted as dropped
+   */
+  public LogEntry claim() {
+    LogEntry entry = running ? free.poll() : null;
+    if(entry == null) {
+      dropped.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * hands a claimed entry to the background thread
+   * @param entry the entry returned by claim
+   */
+  public void publish(LogEntry entry) {
+    // can't fail, there are as many pending slots as entries
+    pending.offer(entry);
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * stops the background thread after it sent the pending events, waiting
+   * for it at most the given time.  Events that are not sent by then are
+   * lost, the thread doesn't keep the JVM from exiting.
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if all the pending events were sent
+   */
+  public boolean stop(long timeout) {
+    running = false;
+    try {
+      thread.join(Math.max(1, timeout));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return !thread.isAlive();
+  }
+
+  @Override
+  public void run() {
+    while(running || !pending.isEmpty()) {
+      LogEntry first;
+      try {
+        first = pending.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+      } catch(InterruptedException e) {
+        continue;
+      }
+      if(first == null) {
+        continue;
+      }
+
+      batch.add(first);
+      pending.drainTo(batch, batchSize - 1);
+      for(LogEntry entry : batch) {
+        if(entry.isLocated()) {
+          client.log(entry.getName(), entry.getLine(), entry.getLevel(), null,
+                     entry, entry.getContexts());
+        } else {
+          client.log(entry.getName(), entry.getLevel(), null,
+                     entry.getMessage(), entry.getContexts());
+        }
+        entry.clear();
+        free.offer(entry);
+      }
+      batch.clear();
+      client.flushLogs();
+    }
+  }
+}
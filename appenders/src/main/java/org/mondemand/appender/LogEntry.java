@@ -0,0 +1,131 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.appender;
+
+import java.util.Map;
+
+import com.google.common.base.Supplier;
+
+/**
+ * A log event captured by an appender, reused once it has been sent so that
+ * appending does not allocate.  The message is rendered into a reused
+ * StringBuilder, and only turned into a String by the client when the
+ * message is not a repeat.
+ */
+public class LogEntry implements Supplier<String> {
+  // larger messages don't keep their buffer once sent
+  private static final int MAX_RETAINED_CAPACITY = 16384;
+
+  private String name = null;
+  private int line = 0;
+  private boolean located = false;
+  private int level = 0;
+  private Map<?,?> contexts = null;
+  private final StringBuilder message = new StringBuilder(256);
+
+  /**
+   * sets everything but the message, which is appended to getMessage()
+   * @param name the name of the call site, usually the filename
+   * @param line the line number of the call site
+   * @param level the MonDemand log level
+   * @param contexts the contexts of the event, which must not change once
+   *        the entry is published, may be null
+   */
+  public void set(String name, int line, int level, Map<?,?> contexts) {
+    this.name = name;
+    this.line = line;
+    this.located = true;
+    this.level = level;
+    this.contexts = contexts;
+  }
+
+  /**
+   * sets everything but the message for an event whose call site is not
+   * known, which only repeats the earlier events of the logger with the
+   * same message
+   * @param logger the name of the logger
+   * @param level the MonDemand log level
+   * @param contexts the contexts of the event, which must not change once
+   *        the entry is published, may be null
+   */
+  public void setLogger(String logger, int level, Map<?,?> contexts) {
+    this.name = logger;
+    this.line = 0;
+    this.located = false;
+    this.level = level;
+    this.contexts = contexts;
+  }
+
+  /**
+   * @return the name of the call site
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the line number of the call site
+   */
+  public int getLine() {
+    return line;
+  }
+
+  /**
+   * @return true if the entry has a call site, false if it only has the
+   *         name of its logger
+   */
+  public boolean isLocated() {
+    return located;
+  }
+
+  /**
+   * @return the MonDemand log level
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * @return the contexts of the event, or null
+   */
+  public Map<?,?> getContexts() {
+    return contexts;
+  }
+
+  /**
+   * @return the buffer to render the message into
+   */
+  public StringBuilder getMessage() {
+    return message;
+  }
+
+  /**
+   * @return the rendered message
+   */
+  @Override
+  public String get() {
+    return message.toString();
+  }
+
+  /**
+   * releases the references held by the entry before it is reused
+   */
+  void clear() {
+    name = null;
+    contexts = null;
+    message.setLength(0);
+    if(message.capacity() > MAX_RETAINED_CAPACITY) {
+      message.trimToSize();
+    }
+  }
+}
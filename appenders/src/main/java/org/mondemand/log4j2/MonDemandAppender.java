@@ -0,0 +1,171 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.log4j2;
+
+import java.net.InetAddress;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.mondemand.Client;
+import org.mondemand.appender.LogBatcher;
+import org.mondemand.appender.LogEntry;
+import org.mondemand.transport.LWESTransport;
+
+/**
+ * This is a log4j 2 appender that uses the MonDemand API and is configured
+ * with the LWES transport, as in
+ * <pre>
+ *   &lt;MonDemand name="mondemand" progId="myapp" address="224.1.1.11"
+ *              port="20402" shutdownTimeout="1000"/&gt;
+ * </pre>
+ * Events are captured into reused entries and sent in batches by a
+ * background thread, see LogBatcher.  Messages that support it are rendered
+ * straight into the entry, and not at all if the client doesn't send their
+ * level.  The location of the events is only known when the logger is
+ * configured with includeLocation="true", otherwise events are logged under
+ * the logger name and only repeat the events with the same message.
+ * <p>
+ * The immediateSendLevel attribute sets the MonDemand level from which
+ * messages are sent without waiting for their batch, none by default.
+ */
+@Plugin(name = "MonDemand", category = "Core", elementType = "appender",
+        printObject = true)
+public class MonDemandAppender extends AbstractAppender {
+  private final Client client;
+  private final LogBatcher batcher;
+  private final long shutdownTimeout;
+
+  protected MonDemandAppender(String name, Filter filter, Client client,
+                              int bufferSize, int batchSize,
+                              long shutdownTimeout) {
+    super(name, filter, null, true);
+    this.client = client;
+    this.batcher = new LogBatcher(client, bufferSize, batchSize);
+    this.shutdownTimeout = shutdownTimeout;
+  }
+
+  @PluginFactory
+  public static MonDemandAppender createAppender(
+      @PluginAttribute("name") String name,
+      @PluginAttribute("progId") String progId,
+      @PluginAttribute("address") String address,
+      @PluginAttribute("port") int port,
+      @PluginAttribute("interface") String iface,
+      @PluginAttribute(value = "bufferSize",
+                       defaultInt = LogBatcher.DEFAULT_BUFFER_SIZE) int bufferSize,
+      @PluginAttribute(value = "batchSize",
+                       defaultInt = LogBatcher.DEFAULT_BATCH_SIZE) int batchSize,
+      @PluginAttribute(value = "shutdownTimeout",
+                       defaultLong = LogBatcher.DEFAULT_SHUTDOWN_TIMEOUT) long shutdownTimeout,
+      @PluginAttribute(value = "immediateSendLevel",
+                       defaultInt = LogBatcher.DEFAULT_IMMEDIATE_SEND_LEVEL) int immediateSendLevel,
+      @PluginElement("Filter") Filter filter) {
+    if(name == null) {
+      LOGGER.error("No name provided for MonDemandAppender");
+      return null;
+    }
+
+    Client client = new Client(progId);
+    client.setImmediateSendLevel(immediateSendLevel);
+    try {
+      client.addTransport(new LWESTransport(InetAddress.getByName(address),
+          port, InetAddress.getByName(iface)));
+    } catch(Exception e) {
+      LOGGER.error("Unable to create emitter", e);
+      return null;
+    }
+
+    return new MonDemandAppender(name, filter, client, bufferSize, batchSize,
+                                 shutdownTimeout);
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full
+   */
+  public long getDropped() {
+    return batcher.getDropped();
+  }
+
+  @Override
+  public void start() {
+    batcher.start();
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    if(!batcher.stop(shutdownTimeout)) {
+      LOGGER.warn("MonDemandAppender " + getName() + " did not send all its "
+                  + "events within " + shutdownTimeout + "ms");
+    }
+    // the client and its emitter belong to this appender
+    client.shutdown();
+  }
+
+  @Override
+  public void append(LogEvent event) {
+    int level = getMonDemandLevel(event.getLevel());
+    if(!client.levelIsEnabled(level, null)) {
+      return;
+    }
+
+    // the event may be reused once we return, copy what we need
+    LogEntry entry = batcher.claim();
+    if(entry == null) {
+      return;
+    }
+    StackTraceElement source = event.getSource();
+    if(source != null) {
+      entry.set(source.getFileName(), source.getLineNumber(), level,
+                event.getContextMap());
+    } else {
+      entry.setLogger(event.getLoggerName(), level, event.getContextMap());
+    }
+
+    Message message = event.getMessage();
+    if(message instanceof StringBuilderFormattable) {
+      ((StringBuilderFormattable) message).formatTo(entry.getMessage());
+    } else {
+      entry.getMessage().append(message.getFormattedMessage());
+    }
+    batcher.publish(entry);
+  }
+
+  /* Maps log4j priority to the MonDemand priority */
+  private static int getMonDemandLevel(Level p) {
+    if(p == null) return org.mondemand.Level.ALL;
+
+    if(p.equals(Level.FATAL)) {
+      return org.mondemand.Level.EMERG;
+    } else if(p.equals(Level.ERROR)) {
+      return org.mondemand.Level.ERROR;
+    } else if(p.equals(Level.WARN)) {
+      return org.mondemand.Level.WARNING;
+    } else if(p.equals(Level.INFO)) {
+      return org.mondemand.Level.INFO;
+    } else if(p.equals(Level.DEBUG)) {
+      return org.mondemand.Level.DEBUG;
+    } else {
+      return org.mondemand.Level.ALL;
+    }
+  }
+}
@@ -0,0 +1,287 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.logback;
+
+import java.net.InetAddress;
+
+import org.mondemand.Client;
+import org.mondemand.appender.LogBatcher;
+import org.mondemand.appender.LogEntry;
+import org.mondemand.transport.LWESTransport;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+/**
+ * This is a logback appender that uses the MonDemand API and is configured
+ * with the LWES transport.  Events are captured into reused entries and
+ * sent in batches by a background thread, see LogBatcher.  Messages are not
+ * rendered at all if the client doesn't send their level.  Events without
+ * caller data are logged under the logger name and only repeat the events
+ * with the same message.
+ */
+public class MonDemandAppender
+  extends UnsynchronizedAppenderBase<ILoggingEvent> {
+  /* MonDemand attributes */
+  private Client client = null;
+  private LogBatcher batcher = null;
+  private String progId;
+  private int bufferSize = LogBatcher.DEFAULT_BUFFER_SIZE;
+  private int batchSize = LogBatcher.DEFAULT_BATCH_SIZE;
+  private long shutdownTimeout = LogBatcher.DEFAULT_SHUTDOWN_TIMEOUT;
+  private int immediateSendLevel = LogBatcher.DEFAULT_IMMEDIATE_SEND_LEVEL;
+  private boolean includeCallerData = true;
+
+  /* LWES attributes */
+  private String address;
+  private int port;
+  private String iface;
+
+  /*****************************
+   * ACCESSORS AND MUTATORS    *
+   *****************************/
+
+  /**
+   * Sets the program identifier for this appender.
+   * @param progId the program identifier
+   */
+  public void setProgId(String progId) {
+    this.progId = progId;
+  }
+
+  /**
+   * Gets the program identifier for this appender.
+   * @return the program identifier
+   */
+  public String getProgId() {
+    return progId;
+  }
+
+  /**
+   * Sets the number of events that can wait to be sent, further events are
+   * dropped.
+   * @param bufferSize the number of events
+   */
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * @return the number of events that can wait to be sent
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Sets the maximum number of events sent at once.
+   * @param batchSize the number of events
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @return the maximum number of events sent at once
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets how long stopping the appender waits for the pending events to be
+   * sent.
+   * @param shutdownTimeout the time to wait in milliseconds
+   */
+  public void setShutdownTimeout(long shutdownTimeout) {
+    this.shutdownTimeout = shutdownTimeout;
+  }
+
+  /**
+   * @return the time stopping the appender waits in milliseconds
+   */
+  public long getShutdownTimeout() {
+    return shutdownTimeout;
+  }
+
+  /**
+   * Sets the MonDemand level from which messages are sent without waiting
+   * for their batch, none by default.
+   * @param level the log level to send messages immediately
+   */
+  public void setImmediateSendLevel(int level) {
+    this.immediateSendLevel = level;
+  }
+
+  /**
+   * @return the log level where messages are sent immediately
+   */
+  public int getImmediateSendLevel() {
+    return immediateSendLevel;
+  }
+
+  /**
+   * Sets whether the file and line number of the events are looked up,
+   * otherwise events are logged under the logger name.
+   * @param includeCallerData whether the caller data is looked up
+   */
+  public void setIncludeCallerData(boolean includeCallerData) {
+    this.includeCallerData = includeCallerData;
+  }
+
+  /**
+   * @return whether the caller data is looked up
+   */
+  public boolean isIncludeCallerData() {
+    return includeCallerData;
+  }
+
+  /**
+   * Sets the LWES address
+   * @param address the address to use
+   */
+  public void setAddress(String address) {
+    this.address = address;
+  }
+
+  /**
+   * Gets the LWES address
+   * @return the IP address LWES is using
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  /**
+   * Sets the LWES port
+   * @param port the port to use
+   */
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  /**
+   * Gets the LWES port
+   * @return the port LWES is using
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Sets the LWES network interface
+   * @param iface the interface to use
+   */
+  public void setInterface(String iface) {
+    this.iface = iface;
+  }
+
+  /**
+   * Gets the LWES network interface
+   * @return the interface in use
+   */
+  public String getInterface() {
+    return iface;
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full
+   */
+  public long getDropped() {
+    return batcher == null ? 0 : batcher.getDropped();
+  }
+
+  /***************************
+   * LOGBACK HOOKS           *
+   ***************************/
+
+  @Override
+  public void start() {
+    if(isStarted()) {
+      return;
+    }
+
+    client = new Client(progId);
+    client.setImmediateSendLevel(immediateSendLevel);
+    try {
+      client.addTransport(new LWESTransport(InetAddress.getByName(address),
+          port, InetAddress.getByName(iface)));
+      batcher = new LogBatcher(client, bufferSize, batchSize);
+    } catch(Exception e) {
+      addError("Unable to create emitter", e);
+      return;
+    }
+
+    batcher.start();
+    super.start();
+  }
+
+  @Override
+  public void stop() {
+    if(!isStarted()) {
+      return;
+    }
+
+    super.stop();
+    if(!batcher.stop(shutdownTimeout)) {
+      addWarn("did not send all the events within " + shutdownTimeout + "ms");
+    }
+    // the client and its emitter belong to this appender
+    client.shutdown();
+  }
+
+  @Override
+  protected void append(ILoggingEvent event) {
+    int level = getMonDemandLevel(event.getLevel());
+    if(!client.levelIsEnabled(level, null)) {
+      return;
+    }
+
+    LogEntry entry = batcher.claim();
+    if(entry == null) {
+      return;
+    }
+    StackTraceElement[] callerData =
+      includeCallerData ? event.getCallerData() : null;
+    if(callerData != null && callerData.length > 0) {
+      entry.set(callerData[0].getFileName(), callerData[0].getLineNumber(),
+                level, event.getMDCPropertyMap());
+    } else {
+      entry.setLogger(event.getLoggerName(), level, event.getMDCPropertyMap());
+    }
+    entry.getMessage().append(event.getFormattedMessage());
+    batcher.publish(entry);
+  }
+
+  /********************************
+   * PRIVATE METHODS              *
+   ********************************/
+
+  /* Maps logback levels to the MonDemand priority */
+  private static int getMonDemandLevel(Level p) {
+    if(p == null) return org.mondemand.Level.ALL;
+
+    if(p.equals(Level.ERROR)) {
+      return org.mondemand.Level.ERROR;
+    } else if(p.equals(Level.WARN)) {
+      return org.mondemand.Level.WARNING;
+    } else if(p.equals(Level.INFO)) {
+      return org.mondemand.Level.INFO;
+    } else if(p.equals(Level.DEBUG)) {
+      return org.mondemand.Level.DEBUG;
+    } else {
+      return org.mondemand.Level.ALL;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.appender.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+import org.mondemand.LogMessage;
+import org.mondemand.appender.LogBatcher;
+import org.mondemand.log4j2.MonDemandAppender;
+
+public class Log4j2AppenderTest {
+  private static LogEvent event(Level level, String message,
+                                StackTraceElement source) {
+    return Log4jLogEvent.newBuilder().setLoggerName("com.example.Store")
+      .setLevel(level).setMessage(new SimpleMessage(message))
+      .setSource(source).build();
+  }
+
+  private static MonDemandAppender appender(LogReceiver receiver,
+                                            int immediateSendLevel) {
+    return MonDemandAppender.createAppender("mondemand", "Log4j2AppenderTest",
+        "127.0.0.1", receiver.getPort(), null, LogBatcher.DEFAULT_BUFFER_SIZE,
+        LogBatcher.DEFAULT_BATCH_SIZE, LogBatcher.DEFAULT_SHUTDOWN_TIMEOUT,
+        immediateSendLevel, null);
+  }
+
+  @Test
+  public void testAppend() throws Exception {
+    LogReceiver receiver = new LogReceiver();
+    try {
+      MonDemandAppender appender =
+        appender(receiver, LogBatcher.DEFAULT_IMMEDIATE_SEND_LEVEL);
+      StackTraceElement source =
+        new StackTraceElement("com.example.Store", "save", "Store.java", 12);
+
+      // appended before the start, so they are sent in a single batch
+      appender.append(event(Level.FATAL, "disk full", null));
+      appender.append(event(Level.FATAL, "disk ok", null));
+      appender.append(event(Level.FATAL, "disk full", null));
+      appender.append(event(Level.FATAL, "saved 1", source));
+      appender.append(event(Level.FATAL, "saved 2", source));
+      appender.start();
+      appender.stop();
+
+      List<LogMessage> messages = receiver.receive();
+      // the immediate send level is off, even for the most severe level
+      assertEquals(receiver.getEvents(), 1);
+      assertEquals(messages.size(), 3);
+      Map<String,Integer> repeats = LogReceiver.repeats(messages);
+      // without a location the messages of a logger repeat on their text
+      assertEquals(repeats.get("disk full"), Integer.valueOf(2));
+      assertEquals(repeats.get("disk ok"), Integer.valueOf(1));
+      // with one they repeat on their call site
+      assertEquals(repeats.get("saved 1"), Integer.valueOf(2));
+      for(LogMessage message : messages) {
+        if(message.getMessage().startsWith("saved")) {
+          assertEquals(message.getFilename(), "Store.java");
+          assertEquals(message.getLine(), 12);
+        } else {
+          assertEquals(message.getFilename(), "com.example.Store");
+          assertEquals(message.getLine(), 0);
+        }
+      }
+    } finally {
+      receiver.close();
+    }
+  }
+
+  @Test
+  public void testImmediateSendLevel() throws Exception {
+    LogReceiver receiver = new LogReceiver();
+    try {
+      MonDemandAppender appender =
+        appender(receiver, org.mondemand.Level.EMERG);
+      appender.append(event(Level.FATAL, "disk full", null));
+      appender.append(event(Level.FATAL, "disk ok", null));
+      appender.start();
+      appender.stop();
+
+      // each message is sent as soon as it is logged
+      assertEquals(receiver.receive().size(), 2);
+      assertEquals(receiver.getEvents(), 2);
+    } finally {
+      receiver.close();
+    }
+  }
+}
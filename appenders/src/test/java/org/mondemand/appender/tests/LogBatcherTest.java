@@ -0,0 +1,119 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.appender.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.mondemand.Client;
+import org.mondemand.Context;
+import org.mondemand.Level;
+import org.mondemand.LogMessage;
+import org.mondemand.SamplesMessage;
+import org.mondemand.StatsMessage;
+import org.mondemand.Transport;
+import org.mondemand.appender.LogBatcher;
+import org.mondemand.appender.LogEntry;
+
+public class LogBatcherTest {
+  static class LogTransport implements Transport {
+    List<LogMessage> logs =
+      Collections.synchronizedList(new ArrayList<LogMessage>());
+
+    @Override
+    public void sendLogs(String programId, LogMessage[] messages,
+                         Context[] contexts) {
+      Collections.addAll(logs, messages);
+    }
+
+    @Override
+    public void send(String programId, StatsMessage[] stats,
+                     SamplesMessage[] samples, Context[] contexts,
+                     Integer maxNumMetrics) {
+    }
+
+    @Override
+    public void sendTrace(String programId, Context[] contexts) {
+    }
+
+    @Override
+    public void sendPerformanceTrace(String id, String callerLabel,
+                                     String[] label, long[] start,
+                                     long[] end, Context[] contexts) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  @Test
+  public void testBatching() {
+    Client client = new Client("LogBatcherTest");
+    LogTransport transport = new LogTransport();
+    client.addTransport(transport);
+    LogBatcher batcher = new LogBatcher(client, 4, 2);
+
+    // entries wait until the batcher is started
+    for(int i=0; i<4; ++i) {
+      LogEntry entry = batcher.claim();
+      entry.set("LogBatcherTest.java", i, Level.ERROR, null);
+      entry.getMessage().append("message ").append(i);
+      batcher.publish(entry);
+    }
+    assertNull(batcher.claim());
+    assertEquals(batcher.getDropped(), 1);
+
+    batcher.start();
+    assertTrue(batcher.stop(5000));
+    assertEquals(transport.logs.size(), 4);
+    for(LogMessage log : transport.logs) {
+      assertEquals(log.getMessage(), "message " + log.getLine());
+    }
+
+    // nothing is accepted once stopped
+    assertNull(batcher.claim());
+  }
+
+  @Test
+  public void testLoggerEntries() {
+    Client client = new Client("LogBatcherTest");
+    LogTransport transport = new LogTransport();
+    client.addTransport(transport);
+    client.setImmediateSendLevel(Level.OFF);
+    LogBatcher batcher = new LogBatcher(client, 8, 8);
+
+    // entries without a call site only repeat those with the same message
+    String[] messages = { "disk full", "disk ok", "disk full" };
+    for(String message : messages) {
+      LogEntry entry = batcher.claim();
+      entry.setLogger("com.example.Store", Level.ERROR, null);
+      entry.getMessage().append(message);
+      batcher.publish(entry);
+    }
+    batcher.start();
+    assertTrue(batcher.stop(5000));
+
+    assertEquals(transport.logs.size(), 2);
+    for(LogMessage log : transport.logs) {
+      assertEquals(log.getFilename(), "com.example.Store");
+      assertEquals(log.getLine(), 0);
+      assertEquals(log.getRepeat(), log.getMessage().equals("disk full") ? 2 : 1);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.appender.tests;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwes.Event;
+import org.lwes.EventFactory;
+import org.mondemand.LogMessage;
+import org.mondemand.transport.FieldNames;
+
+/**
+ * Receives the MonDemand::LogMsg events the appenders send over LWES on a
+ * local port.
+ */
+class LogReceiver {
+  private final DatagramSocket socket;
+  private final EventFactory factory = new EventFactory();
+  private int events = 0;
+
+  LogReceiver() throws Exception {
+    socket = new DatagramSocket(
+        new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    socket.setSoTimeout(200);
+  }
+
+  int getPort() {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * @return the number of events received
+   */
+  int getEvents() {
+    return events;
+  }
+
+  /**
+   * @return the messages received until none came for a while
+   */
+  List<LogMessage> receive() throws Exception {
+    List<LogMessage> messages = new ArrayList<LogMessage>();
+    byte[] buffer = new byte[65536];
+    while(true) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch(SocketTimeoutException e) {
+        return messages;
+      }
+      byte[] bytes = new byte[packet.getLength()];
+      System.arraycopy(buffer, 0, bytes, 0, bytes.length);
+      Event event = factory.createEvent(bytes, false);
+      if(!"MonDemand::LogMsg".equals(event.getEventName())) {
+        continue;
+      }
+      events++;
+      int num = ((Number) event.get("num")).intValue();
+      for(int i=0; i<num; ++i) {
+        LogMessage message = new LogMessage();
+        message.setFilename(event.getString(FieldNames.FILENAME.get(i)));
+        message.setLine(((Number) event.get(FieldNames.LINE.get(i))).intValue());
+        message.setMessage(event.getString(FieldNames.MESSAGE.get(i)));
+        Object repeat = event.get(FieldNames.REPEAT.get(i));
+        message.setRepeat(repeat == null ? 1 : ((Number) repeat).intValue());
+        messages.add(message);
+      }
+    }
+  }
+
+  /**
+   * @return the total repeat count of each message text
+   */
+  static Map<String,Integer> repeats(List<LogMessage> messages) {
+    Map<String,Integer> repeats = new HashMap<String,Integer>();
+    for(LogMessage message : messages) {
+      Integer repeat = repeats.get(message.getMessage());
+      repeats.put(message.getMessage(),
+                  message.getRepeat() + (repeat == null ? 0 : repeat));
+    }
+    return repeats;
+  }
+
+  void close() {
+    socket.close();
+  }
+}
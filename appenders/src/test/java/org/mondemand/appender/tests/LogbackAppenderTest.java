@@ -0,0 +1,109 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.appender.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mondemand.LogMessage;
+import org.mondemand.logback.MonDemandAppender;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class LogbackAppenderTest {
+  private final LoggerContext context = new LoggerContext();
+  private final Logger logger = context.getLogger("com.example.Store");
+
+  private LoggingEvent event(String message, StackTraceElement source) {
+    LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger,
+                                          Level.ERROR, message, null, null);
+    event.setCallerData(source == null ? new StackTraceElement[0]
+                        : new StackTraceElement[] { source });
+    return event;
+  }
+
+  private MonDemandAppender appender(LogReceiver receiver) {
+    MonDemandAppender appender = new MonDemandAppender();
+    appender.setContext(context);
+    appender.setProgId("LogbackAppenderTest");
+    appender.setAddress("127.0.0.1");
+    appender.setPort(receiver.getPort());
+    return appender;
+  }
+
+  @Test
+  public void testAppend() throws Exception {
+    LogReceiver receiver = new LogReceiver();
+    try {
+      MonDemandAppender appender = appender(receiver);
+      appender.start();
+      assertTrue(appender.isStarted());
+      StackTraceElement source =
+        new StackTraceElement("com.example.Store", "save", "Store.java", 12);
+      appender.doAppend(event("disk full", null));
+      appender.doAppend(event("disk ok", null));
+      appender.doAppend(event("disk full", null));
+      appender.doAppend(event("saved 1", source));
+      appender.doAppend(event("saved 2", source));
+      appender.stop();
+
+      List<LogMessage> messages = receiver.receive();
+      Map<String,Integer> repeats = LogReceiver.repeats(messages);
+      // without caller data the messages of a logger repeat on their text
+      assertEquals(repeats.get("disk full"), Integer.valueOf(2));
+      assertEquals(repeats.get("disk ok"), Integer.valueOf(1));
+      int saved = 0;
+      for(LogMessage message : messages) {
+        if(message.getMessage().startsWith("saved")) {
+          assertEquals(message.getFilename(), "Store.java");
+          assertEquals(message.getLine(), 12);
+          saved += message.getRepeat();
+        } else {
+          assertEquals(message.getFilename(), "com.example.Store");
+          assertEquals(message.getLine(), 0);
+        }
+      }
+      assertEquals(saved, 2);
+      assertEquals(appender.getDropped(), 0);
+    } finally {
+      receiver.close();
+    }
+  }
+
+  @Test
+  public void testImmediateSendLevel() throws Exception {
+    LogReceiver receiver = new LogReceiver();
+    try {
+      MonDemandAppender appender = appender(receiver);
+      appender.setIncludeCallerData(false);
+      appender.setImmediateSendLevel(org.mondemand.Level.ERROR);
+      appender.start();
+      appender.doAppend(event("disk full", null));
+      appender.doAppend(event("disk ok", null));
+      appender.doAppend(event("disk low", null));
+      appender.stop();
+
+      // each message is sent as soon as it is logged
+      assertEquals(receiver.receive().size(), 3);
+      assertEquals(receiver.getEvents(), 3);
+    } finally {
+      receiver.close();
+    }
+  }
+}
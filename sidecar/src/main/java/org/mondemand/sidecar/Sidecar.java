@@ -0,0 +1,269 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.sidecar;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.lwes.Event;
+import org.lwes.EventFactory;
+import org.mondemand.Config;
+import org.mondemand.ConfigBuilder;
+import org.mondemand.EventSpecificConfig;
+import org.mondemand.EventType;
+import org.mondemand.Transport;
+import org.mondemand.transport.LWESTransport;
+
+/**
+ * Receives the MonDemand events of the processes of a host on a local UDP
+ * port, and sends the stats of all the processes as one StatsMsg stream per
+ * program id and contexts every interval, see StatsAggregator.  The other
+ * events are forwarded as they are received, to the addresses configured
+ * for their type, such as MONDEMAND_LOG_ADDR, or else to MONDEMAND_ADDR.
+ * <p>
+ * The processes send their events to the sidecar, with a config file such
+ * as:
+ * <pre>
+ *   MONDEMAND_ADDR="127.0.0.1"
+ *   MONDEMAND_PORT="20402"
+ * </pre>
+ * and the sidecar is started with the config file of the collectors:
+ * <pre>
+ *   java -cp ... org.mondemand.sidecar.Sidecar 20402 /etc/mondemand/mondemand.conf 60
+ * </pre>
+ * When the processes reset their stats on each flush, the word reset after
+ * the interval has the counters summed per interval rather than as totals.
+ * A single thread receives, aggregates and emits, so the aggregator needs
+ * no locking.
+ */
+public class Sidecar implements Runnable {
+  public static final long DEFAULT_INTERVAL = 60 * 1000;    // milliseconds
+  private static final int MAX_DATAGRAM_BYTES = 65535;
+  private static final int RECEIVE_TIMEOUT = 100;           // milliseconds
+
+  private final DatagramSocket socket;
+  private final Transport statsTransport;
+  private final Map<String, List<InetSocketAddress>> forwardTo;
+  private final List<InetSocketAddress> defaultForwardTo;
+  private final long interval;
+  private final StatsAggregator aggregator;
+  private final EventFactory eventFactory = new EventFactory();
+  private volatile boolean running = true;
+  private long forwarded = 0;
+  private long invalid = 0;
+
+  /**
+   * @param address the local address to receive the events on
+   * @param port the port to receive the events on
+   * @param statsTransport the transport sending the merged stats
+   * @param forwardTo the addresses the other events are forwarded to, by
+   *        event name
+   * @param defaultForwardTo the addresses the events of the other names are
+   *        forwarded to
+   * @param interval the time between emits, in milliseconds
+   * @param aggregator the aggregator of the stats
+   * @throws SocketException if the port cannot be bound
+   */
+  public Sidecar(InetAddress address, int port, Transport statsTransport,
+                 Map<String, List<InetSocketAddress>> forwardTo,
+                 List<InetSocketAddress> defaultForwardTo, long interval,
+                 StatsAggregator aggregator)
+    throws SocketException
+  {
+    this.socket = new DatagramSocket(new InetSocketAddress(address, port));
+    this.socket.setSoTimeout(RECEIVE_TIMEOUT);
+    this.statsTransport = statsTransport;
+    this.forwardTo = forwardTo;
+    this.defaultForwardTo = defaultForwardTo;
+    this.interval = interval;
+    this.aggregator = aggregator;
+  }
+
+  /**
+   * @return the port the events are received on
+   */
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  @Override
+  public void run() {
+    byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    long nextEmit = System.currentTimeMillis() + interval;
+    try {
+      while (running) {
+        try {
+          packet.setLength(buffer.length);
+          socket.receive(packet);
+          receive(packet);
+        } catch (SocketTimeoutException e) {
+          // time to check the interval
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextEmit) {
+          emit(now);
+          nextEmit += interval;
+          if (nextEmit <= now) {
+            nextEmit = now + interval;
+          }
+        }
+      }
+      emit(System.currentTimeMillis());
+    } catch (IOException e) {
+      if (running) {
+        System.err.println("sidecar stopped: " + e);
+      }
+    } finally {
+      socket.close();
+      try {
+        statsTransport.shutdown();
+      } catch (Exception e) {}
+    }
+  }
+
+  private void receive(DatagramPacket packet) throws IOException {
+    byte[] bytes = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+                                      packet.getOffset() + packet.getLength());
+    List<InetSocketAddress> targets;
+    try {
+      Event event = eventFactory.createEvent(bytes, false);
+      String source = packet.getAddress().getHostAddress() + ":"
+        + packet.getPort();
+      if (aggregator.add(source, event, System.currentTimeMillis())) {
+        return;
+      }
+      targets = forwardTo.get(event.getEventName());
+    } catch (Exception e) {
+      invalid++;
+      return;
+    }
+    if (targets == null) {
+      targets = defaultForwardTo;
+    }
+    for (InetSocketAddress target : targets) {
+      socket.send(new DatagramPacket(bytes, bytes.length, target));
+    }
+    forwarded++;
+  }
+
+  private void emit(long now) {
+    try {
+      aggregator.emit(statsTransport, now);
+    } catch (Exception e) {
+      System.err.println("unable to send the stats: " + e);
+    }
+  }
+
+  /**
+   * stops receiving, the stats received are emitted one last time
+   */
+  public void stop() {
+    running = false;
+  }
+
+  /**
+   * @return the number of events forwarded as they were received
+   */
+  public long getForwarded() {
+    return forwarded;
+  }
+
+  /**
+   * @return the number of datagrams which were not valid events
+   */
+  public long getInvalid() {
+    return invalid;
+  }
+
+  /**
+   * @return each address of a config with its port
+   */
+  private static List<InetSocketAddress> addresses(Config config) {
+    List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+    List<Integer> ports = config.getPorts();
+    for (int i = 0; i < config.getAddresses().size(); ++i) {
+      addresses.add(new InetSocketAddress(config.getAddresses().get(i),
+          ports.get(ports.size() == 1 ? 0 : i)));
+    }
+    return addresses;
+  }
+
+  /**
+   * Runs a sidecar until the process is stopped.
+   * @param args the local port, the config file of the collectors, and
+   *        optionally the interval in seconds followed by reset if the
+   *        processes reset their stats on each flush
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("usage: Sidecar <port> <config file> "
+                         + "[<interval seconds> [reset]]");
+      System.exit(1);
+    }
+    int port = Integer.parseInt(args[0]);
+    long interval = (args.length > 2) ? Long.parseLong(args[2]) * 1000
+                                      : DEFAULT_INTERVAL;
+    boolean resetCounters = (args.length > 3) && "reset".equals(args[3]);
+
+    Properties props = new Properties();
+    InputStream input = new FileInputStream(args[1]);
+    try {
+      props.load(input);
+    } finally {
+      input.close();
+    }
+    Config defaults = ConfigBuilder.buildDefaultConfig(props);
+    EventSpecificConfig stats =
+      ConfigBuilder.buildEventSpecificConfig(props, EventType.STATS, defaults);
+    Transport transport = new LWESTransport(
+        stats.toEmitterGroupProperties(EventType.STATS), EventType.STATS.name());
+
+    Map<String, List<InetSocketAddress>> forwardTo =
+      new HashMap<String, List<InetSocketAddress>>();
+    for (EventType type : EventType.values()) {
+      if (type != EventType.STATS) {
+        forwardTo.put(type.getEventName(), addresses(
+            ConfigBuilder.buildEventSpecificConfig(props, type, defaults)));
+      }
+    }
+
+    final Sidecar sidecar = new Sidecar(InetAddress.getByName("127.0.0.1"),
+        port, transport, forwardTo, addresses(defaults), interval,
+        new StatsAggregator(StatsAggregator.DEFAULT_EXPIRY, resetCounters));
+    final Thread thread = new Thread(sidecar, "mondemand-sidecar");
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        sidecar.stop();
+        try {
+          thread.join(5000);
+        } catch (InterruptedException e) {}
+      }
+    });
+    thread.start();
+  }
+}
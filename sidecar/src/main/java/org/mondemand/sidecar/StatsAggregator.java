@@ -0,0 +1,356 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.sidecar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwes.Event;
+import org.mondemand.Context;
+import org.mondemand.EventType;
+import org.mondemand.MondemandException;
+import org.mondemand.SampleTrackType;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.Transport;
+import org.mondemand.TransportException;
+
+/**
+ * Merges the StatsMsg events of the processes of a host into one set of
+ * stats per program id and contexts.
+ * <p>
+ * Counters are totals since each process started, so the last value of
+ * each process is kept and the sum of those values is emitted.  The total
+ * doesn't go down when a process goes away: the last value of a process
+ * which expired, or whose counter went down because it restarted, is
+ * carried into the total of its program id and contexts.  The clients
+ * which reset their stats on each flush send the counts of an interval
+ * instead, for those the aggregator is created with resetCounters and sums
+ * the counts received since the last emit, like the gauges.  Gauges,
+ * such as the extra stats of samples, only count for the interval they
+ * were sent in, the values received since the last emit are merged by the
+ * suffix of their key: the minimum of the _min stats, the maximum of the
+ * _max stats, the sum of the _sum and _count stats, the average of the
+ * _avg stats weighted by the matching _count, and the maximum of the
+ * medians and percentiles, an upper bound of the percentile of all the
+ * samples.  Other gauges are summed.
+ * <p>
+ * A process not heard from for the expiry time no longer counts, and once
+ * none of the processes of a program id and contexts are, its totals start
+ * over.  This class is not thread-safe.
+ */
+public class StatsAggregator {
+  public static final long DEFAULT_EXPIRY = 5 * 60 * 1000;  // milliseconds
+
+  /**
+   * the last value of a metric from a process
+   */
+  private static class Metric {
+    final StatType type;
+    long value;
+    boolean fresh = true;   // received since the last emit
+
+    Metric(StatType type, long value) {
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  /**
+   * the metrics of one process
+   */
+  private static class Source {
+    final Map<String, Metric> metrics = new HashMap<String, Metric>();
+    long lastSeen;
+  }
+
+  /**
+   * the processes sending the stats of a program id and contexts
+   */
+  private static class Group {
+    final String programId;
+    final Context[] contexts;
+    final Map<String, Source> sources = new HashMap<String, Source>();
+    // the last totals of the processes gone, by key
+    final Map<String, Long> carried = new HashMap<String, Long>();
+
+    Group(String programId, Context[] contexts) {
+      this.programId = programId;
+      this.contexts = contexts;
+    }
+
+    void carry(String key, long value) {
+      Long total = carried.get(key);
+      carried.put(key, (total == null) ? value : total + value);
+    }
+  }
+
+  /**
+   * a metric being merged
+   */
+  private static class Merge {
+    final StatType type;
+    long value;
+    double weightedSum = 0;
+    long weight = 0;
+
+    Merge(StatType type, long value) {
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  private final long expiry;
+  private final boolean resetCounters;
+  private final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+  private long received = 0;
+
+  public StatsAggregator() {
+    this(DEFAULT_EXPIRY);
+  }
+
+  /**
+   * @param expiry the time after which a silent process no longer counts,
+   *        in milliseconds
+   */
+  public StatsAggregator(long expiry) {
+    this(expiry, false);
+  }
+
+  /**
+   * @param expiry the time after which a silent process no longer counts,
+   *        in milliseconds
+   * @param resetCounters true if the processes send the counts of each
+   *        interval rather than totals, as clients flushed with resetStats
+   */
+  public StatsAggregator(long expiry, boolean resetCounters) {
+    this.expiry = expiry;
+    this.resetCounters = resetCounters;
+  }
+
+  /**
+   * adds the metrics of a StatsMsg event
+   * @param source the process which sent the event, such as its address
+   *        and port
+   * @param event the event
+   * @param now the current time in milliseconds
+   * @return false if the event is not a StatsMsg event
+   * @throws MondemandException if the contexts of the event are not valid
+   */
+  public boolean add(String source, Event event, long now)
+    throws MondemandException
+  {
+    if (!EventType.STATS.getEventName().equals(event.getEventName())) {
+      return false;
+    }
+    String programId = event.getString("prog_id");
+    Integer contextCount = event.getUInt16("ctxt_num");
+    Context[] contexts = new Context[contextCount == null ? 0 : contextCount];
+    StringBuilder key = new StringBuilder(programId);
+    for (int i = 0; i < contexts.length; ++i) {
+      contexts[i] = new Context(event.getString("ctxt_k" + i),
+                                event.getString("ctxt_v" + i));
+      key.append('\n').append(contexts[i].getKey())
+         .append('=').append(contexts[i].getValue());
+    }
+
+    Group group = groups.get(key.toString());
+    if (group == null) {
+      group = new Group(programId, contexts);
+      groups.put(key.toString(), group);
+    }
+    Source metrics = group.sources.get(source);
+    if (metrics == null) {
+      metrics = new Source();
+      group.sources.put(source, metrics);
+    }
+    metrics.lastSeen = now;
+
+    Integer count = event.getUInt16("num");
+    for (int i = 0; count != null && i < count; ++i) {
+      String name = event.getString("k" + i);
+      Long value = event.getInt64("v" + i);
+      StatType type = statType(event.getString("t" + i));
+      if (name == null || value == null || type == null) {
+        continue;
+      }
+      Metric metric = metrics.metrics.get(name);
+      if (metric == null || metric.type != type) {
+        metrics.metrics.put(name, new Metric(type, value));
+      } else if (type == StatType.Counter && resetCounters) {
+        // the counts of the intervals since the last emit add up
+        metric.value = metric.fresh ? metric.value + value : value;
+        metric.fresh = true;
+      } else {
+        if (type == StatType.Counter && value < metric.value) {
+          // the process restarted, its previous total is kept
+          group.carry(name, metric.value);
+        }
+        metric.value = value;
+        metric.fresh = true;
+      }
+      received++;
+    }
+    return true;
+  }
+
+  private static StatType statType(String type) {
+    for (StatType statType : StatType.values()) {
+      if (statType.toString().equals(type)) {
+        return statType;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * sends the merged stats of each program id and contexts
+   * @param transport the transport to send the stats to
+   * @param now the current time in milliseconds
+   * @return the number of stats sent
+   * @throws TransportException
+   */
+  public int emit(Transport transport, long now) throws TransportException {
+    int sent = 0;
+    TransportException error = null;
+    for (Iterator<Group> groupIterator = groups.values().iterator();
+         groupIterator.hasNext(); ) {
+      Group group = groupIterator.next();
+      for (Iterator<Source> sourceIterator = group.sources.values().iterator();
+           sourceIterator.hasNext(); ) {
+        Source source = sourceIterator.next();
+        if (source.lastSeen + expiry < now) {
+          sourceIterator.remove();
+          if (!resetCounters) {
+            for (Map.Entry<String, Metric> entry : source.metrics.entrySet()) {
+              if (entry.getValue().type == StatType.Counter) {
+                group.carry(entry.getKey(), entry.getValue().value);
+              }
+            }
+          }
+        }
+      }
+      if (group.sources.isEmpty()) {
+        groupIterator.remove();
+        continue;
+      }
+
+      StatsMessage[] stats = merge(group);
+      if (stats.length == 0) {
+        continue;
+      }
+      try {
+        transport.send(group.programId, stats, null, group.contexts, null);
+        sent += stats.length;
+      } catch (TransportException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+    return sent;
+  }
+
+  private StatsMessage[] merge(Group group) {
+    Map<String, Merge> merged = new LinkedHashMap<String, Merge>();
+    for (Map.Entry<String, Long> entry : group.carried.entrySet()) {
+      merged.put(entry.getKey(), new Merge(StatType.Counter, entry.getValue()));
+    }
+    for (Source source : group.sources.values()) {
+      for (Map.Entry<String, Metric> entry : source.metrics.entrySet()) {
+        String key = entry.getKey();
+        Metric metric = entry.getValue();
+        if ((metric.type == StatType.Gauge || resetCounters) && !metric.fresh) {
+          continue;
+        }
+        metric.fresh = false;
+
+        Merge merge = merged.get(key);
+        if (merge == null) {
+          merge = new Merge(metric.type, metric.value);
+          merged.put(key, merge);
+        } else if (metric.type == StatType.Counter) {
+          merge.value += metric.value;
+        } else if (key.endsWith(SampleTrackType.MIN.keySuffix)) {
+          merge.value = Math.min(merge.value, metric.value);
+        } else if (isUpperBound(key)) {
+          merge.value = Math.max(merge.value, metric.value);
+        } else if (!key.endsWith(SampleTrackType.AVG.keySuffix)) {
+          merge.value += metric.value;
+        }
+
+        if (metric.type == StatType.Gauge
+            && key.endsWith(SampleTrackType.AVG.keySuffix)) {
+          String countKey = key.substring(0, key.length()
+              - SampleTrackType.AVG.keySuffix.length())
+              + SampleTrackType.COUNT.keySuffix;
+          Metric count = source.metrics.get(countKey);
+          long weight = (count == null) ? 1 : Math.max(0, count.value);
+          merge.weightedSum += (double) metric.value * weight;
+          merge.weight += weight;
+        }
+      }
+    }
+
+    List<StatsMessage> stats = new ArrayList<StatsMessage>(merged.size());
+    for (Map.Entry<String, Merge> entry : merged.entrySet()) {
+      Merge merge = entry.getValue();
+      long value = merge.value;
+      if (merge.weight > 0) {
+        value = Math.round(merge.weightedSum / merge.weight);
+      }
+      StatsMessage message = new StatsMessage(entry.getKey(), merge.type);
+      message.setCounter(value);
+      stats.add(message);
+    }
+    return stats.toArray(new StatsMessage[stats.size()]);
+  }
+
+  /**
+   * @return true for the sample stats merged by taking their maximum
+   */
+  private static boolean isUpperBound(String key) {
+    for (SampleTrackType trackType : SampleTrackType.values()) {
+      if (trackType != SampleTrackType.MIN && trackType != SampleTrackType.AVG
+          && trackType != SampleTrackType.SUM
+          && trackType != SampleTrackType.COUNT
+          && key.endsWith(trackType.keySuffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of metrics received
+   */
+  public long getReceived() {
+    return received;
+  }
+
+  /**
+   * @return the number of processes sending stats
+   */
+  public int getSourceCount() {
+    int count = 0;
+    for (Group group : groups.values()) {
+      count += group.sources.size();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,326 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.sidecar.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.lwes.Event;
+import org.lwes.EventFactory;
+import org.mondemand.Context;
+import org.mondemand.EventType;
+import org.mondemand.LogMessage;
+import org.mondemand.SamplesMessage;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.Transport;
+import org.mondemand.sidecar.Sidecar;
+import org.mondemand.sidecar.StatsAggregator;
+import org.mondemand.transport.DirectLWESTransport;
+import org.mondemand.transport.EventSink;
+import org.mondemand.transport.LWESTransport;
+
+public class StatsAggregatorTest {
+  /**
+   * keeps the stats sent by the aggregator, by program id and key
+   */
+  static class CapturingTransport implements Transport {
+    final Map<String, Long> values =
+      Collections.synchronizedMap(new HashMap<String, Long>());
+    volatile int sends = 0;
+
+    @Override
+    public void send(String programId, StatsMessage[] stats,
+                     SamplesMessage[] samples, Context[] contexts,
+                     Integer maxNumMetrics) {
+      for (StatsMessage stat : stats) {
+        values.put(programId + "/" + stat.getKey(), stat.getCounter());
+      }
+      sends++;
+    }
+
+    @Override
+    public void sendLogs(String programId, LogMessage[] messages,
+                         Context[] contexts) {
+    }
+
+    @Override
+    public void sendTrace(String programId, Context[] contexts) {
+    }
+
+    @Override
+    public void sendPerformanceTrace(String id, String callerLabel,
+                                     String[] label, long[] start, long[] end,
+                                     Context[] contexts) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  /**
+   * encodes StatsMsg events as a process would send them
+   */
+  private static List<Event> events(String programId, String[][] stats)
+    throws Exception
+  {
+    final List<Event> events = new ArrayList<Event>();
+    final EventFactory factory = new EventFactory();
+    DirectLWESTransport transport = new DirectLWESTransport(new EventSink() {
+      @Override
+      public void send(ByteBuffer event) throws IOException {
+        byte[] bytes = new byte[event.remaining()];
+        event.get(bytes);
+        try {
+          events.add(factory.createEvent(bytes, false));
+        } catch (Exception e) {
+          throw new IOException(e.toString());
+        }
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+    StatsMessage[] messages = new StatsMessage[stats.length];
+    for (int i = 0; i < stats.length; ++i) {
+      messages[i] = new StatsMessage(stats[i][0], StatType.valueOf(stats[i][1]));
+      messages[i].setCounter(Long.parseLong(stats[i][2]));
+    }
+    transport.send(programId, messages, null,
+                   new Context[] { new Context("cluster", "east") }, 2);
+    return events;
+  }
+
+  private static void add(StatsAggregator aggregator, String source,
+                          List<Event> events, long now) throws Exception {
+    for (Event event : events) {
+      assertTrue(aggregator.add(source, event, now));
+    }
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    StatsAggregator aggregator = new StatsAggregator(1000);
+    add(aggregator, "a", events("app", new String[][] {
+      { "requests", "Counter", "10" },
+      { "latency_min", "Gauge", "5" },
+      { "latency_max", "Gauge", "50" },
+      { "latency_avg", "Gauge", "10" },
+      { "latency_count", "Gauge", "3" },
+      { "latency_pctl_99", "Gauge", "40" },
+      { "queue_size", "Gauge", "7" }
+    }), 0);
+    add(aggregator, "b", events("app", new String[][] {
+      { "requests", "Counter", "32" },
+      { "latency_min", "Gauge", "2" },
+      { "latency_max", "Gauge", "30" },
+      { "latency_avg", "Gauge", "30" },
+      { "latency_count", "Gauge", "1" },
+      { "latency_pctl_99", "Gauge", "25" },
+      { "queue_size", "Gauge", "3" }
+    }), 0);
+    add(aggregator, "c", events("other", new String[][] {
+      { "requests", "Counter", "1" }
+    }), 0);
+    assertEquals(aggregator.getSourceCount(), 3);
+    assertEquals(aggregator.getReceived(), 15);
+
+    CapturingTransport transport = new CapturingTransport();
+    assertEquals(aggregator.emit(transport, 100), 8);
+    assertEquals(transport.sends, 2);
+    assertEquals((long) transport.values.get("app/requests"), 42);
+    assertEquals((long) transport.values.get("app/latency_min"), 2);
+    assertEquals((long) transport.values.get("app/latency_max"), 50);
+    assertEquals((long) transport.values.get("app/latency_avg"), 15);
+    assertEquals((long) transport.values.get("app/latency_count"), 4);
+    assertEquals((long) transport.values.get("app/latency_pctl_99"), 40);
+    assertEquals((long) transport.values.get("app/queue_size"), 10);
+    assertEquals((long) transport.values.get("other/requests"), 1);
+
+    // counters keep the last total of each process, gauges only count for
+    // the interval they were sent in
+    add(aggregator, "a", events("app", new String[][] {
+      { "requests", "Counter", "15" }
+    }), 500);
+    transport = new CapturingTransport();
+    assertEquals(aggregator.emit(transport, 600), 2);
+    assertEquals((long) transport.values.get("app/requests"), 47);
+    assertNull(transport.values.get("app/latency_min"));
+
+    // silent processes expire, their last total is kept
+    transport = new CapturingTransport();
+    aggregator.emit(transport, 1200);
+    assertEquals((long) transport.values.get("app/requests"), 47);
+    assertNull(transport.values.get("other/requests"));
+    assertEquals(aggregator.getSourceCount(), 1);
+  }
+
+  @Test
+  public void testRestarts() throws Exception {
+    StatsAggregator aggregator = new StatsAggregator(1000);
+    add(aggregator, "a:1", events("app", new String[][] {
+      { "requests", "Counter", "10" }
+    }), 0);
+    add(aggregator, "b:1", events("app", new String[][] {
+      { "requests", "Counter", "20" }
+    }), 0);
+
+    // a restarts on the same port, b on a new one
+    add(aggregator, "a:1", events("app", new String[][] {
+      { "requests", "Counter", "3" }
+    }), 500);
+    add(aggregator, "b:2", events("app", new String[][] {
+      { "requests", "Counter", "4" }
+    }), 500);
+    CapturingTransport transport = new CapturingTransport();
+    aggregator.emit(transport, 600);
+    assertEquals((long) transport.values.get("app/requests"), 37);
+
+    // the old b expires without the total going down
+    add(aggregator, "a:1", events("app", new String[][] {
+      { "requests", "Counter", "5" }
+    }), 1100);
+    add(aggregator, "b:2", events("app", new String[][] {
+      { "requests", "Counter", "6" }
+    }), 1100);
+    transport = new CapturingTransport();
+    aggregator.emit(transport, 1200);
+    assertEquals(aggregator.getSourceCount(), 2);
+    assertEquals((long) transport.values.get("app/requests"), 41);
+  }
+
+  @Test
+  public void testResetCounters() throws Exception {
+    StatsAggregator aggregator = new StatsAggregator(1000, true);
+    add(aggregator, "a", events("app", new String[][] {
+      { "requests", "Counter", "10" }
+    }), 0);
+    add(aggregator, "a", events("app", new String[][] {
+      { "requests", "Counter", "5" }
+    }), 100);
+    add(aggregator, "b", events("app", new String[][] {
+      { "requests", "Counter", "1" }
+    }), 100);
+    CapturingTransport transport = new CapturingTransport();
+    aggregator.emit(transport, 200);
+    assertEquals((long) transport.values.get("app/requests"), 16);
+
+    // the counts of an interval are not sent again
+    add(aggregator, "b", events("app", new String[][] {
+      { "requests", "Counter", "2" }
+    }), 300);
+    transport = new CapturingTransport();
+    aggregator.emit(transport, 400);
+    assertEquals((long) transport.values.get("app/requests"), 2);
+    transport = new CapturingTransport();
+    aggregator.emit(transport, 500);
+    assertNull(transport.values.get("app/requests"));
+  }
+
+  @Test
+  public void testSidecar() throws Exception {
+    CapturingTransport collector = new CapturingTransport();
+    StatsAggregator aggregator = new StatsAggregator();
+    Sidecar sidecar = new Sidecar(InetAddress.getByName("127.0.0.1"), 0,
+        collector, new HashMap<String, List<InetSocketAddress>>(),
+        new ArrayList<InetSocketAddress>(), 50, aggregator);
+    Thread thread = new Thread(sidecar);
+    thread.start();
+
+    // two processes with a transport each
+    for (int i = 1; i <= 2; ++i) {
+      LWESTransport process =
+        new LWESTransport(InetAddress.getByName("127.0.0.1"),
+                          sidecar.getPort(), null);
+      StatsMessage requests = new StatsMessage("requests", StatType.Counter);
+      requests.setCounter(i * 100);
+      process.send("app", new StatsMessage[] { requests }, null,
+                   new Context[0], null);
+      process.shutdown();
+    }
+    for (int i = 0; i < 500 && !Long.valueOf(300).equals(
+           collector.values.get("app/requests")); ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals((long) collector.values.get("app/requests"), 300);
+    assertEquals(sidecar.getInvalid(), 0);
+
+    sidecar.stop();
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+  }
+
+  private static String receiveName(DatagramSocket socket) throws Exception {
+    byte[] buffer = new byte[65535];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    socket.receive(packet);
+    return new EventFactory().createEvent(
+        Arrays.copyOf(buffer, packet.getLength()), false).getEventName();
+  }
+
+  @Test
+  public void testForward() throws Exception {
+    InetAddress localhost = InetAddress.getByName("127.0.0.1");
+    DatagramSocket logs = new DatagramSocket(0, localhost);
+    DatagramSocket others = new DatagramSocket(0, localhost);
+    logs.setSoTimeout(5000);
+    others.setSoTimeout(5000);
+    Map<String, List<InetSocketAddress>> forwardTo =
+      new HashMap<String, List<InetSocketAddress>>();
+    forwardTo.put(EventType.LOG.getEventName(), Collections.singletonList(
+        new InetSocketAddress(localhost, logs.getLocalPort())));
+    Sidecar sidecar = new Sidecar(localhost, 0, new CapturingTransport(),
+        forwardTo, Collections.singletonList(
+            new InetSocketAddress(localhost, others.getLocalPort())),
+        50, new StatsAggregator());
+    Thread thread = new Thread(sidecar);
+    thread.start();
+
+    // each event goes to the addresses of its type
+    EventFactory factory = new EventFactory();
+    DatagramSocket process = new DatagramSocket();
+    for (String name : new String[] { EventType.LOG.getEventName(),
+                                      EventType.TRACE.getEventName() }) {
+      byte[] bytes = factory.createEvent(name, false).serialize();
+      process.send(new DatagramPacket(bytes, bytes.length, localhost,
+                                      sidecar.getPort()));
+    }
+    process.close();
+    assertEquals(receiveName(logs), EventType.LOG.getEventName());
+    assertEquals(receiveName(others), EventType.TRACE.getEventName());
+
+    sidecar.stop();
+    thread.join(5000);
+    assertEquals(sidecar.getForwarded(), 2);
+    logs.close();
+    others.close();
+  }
+}
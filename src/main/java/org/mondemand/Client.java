@@ -14,12 +14,16 @@ package org.mondemand;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -27,11 +31,15 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.mondemand.transport.LWESTransport;
+import org.mondemand.transport.ShardedTransport;
 import org.mondemand.util.ClassUtils;
 
+import com.google.common.base.Supplier;
 import com.google.common.util.concurrent.AtomicLongMap;
 
 /**
@@ -44,9 +52,9 @@ public class Client {
   /********************************
    * CONSTANTS                    *
    ********************************/
-  private final static String FILE_LINE_DELIMITER = ":";
   private final static int CALLER_DEPTH = 3;
   private final static int MAX_MESSAGES = 10;
+  private final static String PLACEHOLDER = "{}";
   private static final String TRACE_KEY    = "mondemand.trace_id";
   private static final String OWNER_KEY    = "mondemand.owner";
   private static final String MESSAGE_KEY  = "mondemand.message";
@@ -54,6 +62,11 @@ public class Client {
   private static final int    EMIT_INTERVAL = 60;   // 60 seconds
   private static final boolean DEFAULT_AUTO_EMIT = false;   // auto emit disabled by default
   private static final boolean DEFAULT_CLEAR_STAT = false;  // clear stats after flush by auto emit
+  private static final int    DEFAULT_FULL_EMIT_INTERVAL = 10;  // flushes between full emits
+  private static final long   FAN_OUT_SHUTDOWN_TIMEOUT = 5000;  // milliseconds
+  private static final int    DEFAULT_TRANSPORT_FAILURE_THRESHOLD = 3;
+  private static final long   DEFAULT_TRANSPORT_INITIAL_BACKOFF = 1000;   // milliseconds
+  private static final long   DEFAULT_TRANSPORT_MAX_BACKOFF = 60000;      // milliseconds
 
   private static final Pattern keyPattern = Pattern.compile("[\\w\\.-]+");     // valid values for key: a-z A-Z 0-9 _ - .
 
@@ -65,7 +78,9 @@ public class Client {
   private int immediateSendLevel = Level.CRIT;
   private int noSendLevel = Level.ALL;
   private ConcurrentHashMap<String,Context> contexts = null;
-  private ConcurrentHashMap<String,LogMessage> messages = null;
+  private final AtomicInteger contextsVersion = new AtomicInteger();
+  private volatile ContextSnapshot contextSnapshot = null;
+  private LogMessageTable messages = null;
   private ConcurrentHashMap<String,StatsMessage> stats = null;
   private ConcurrentHashMap<String,SamplesMessage> samples = null;
   private ConcurrentHashMap<ContextList, AtomicLongMap<String>> contextStats = null;
@@ -73,10 +88,22 @@ public class Client {
   private ClientStatEmitter autoStatEmitter = null;
   private Thread emitterThread = null;
   private Integer maxNumMetrics = null;
+  private boolean emitChangedOnly = false;
+  private int fullEmitInterval = DEFAULT_FULL_EMIT_INTERVAL;
+  private int flushesSinceFullEmit = 0;
+  private volatile double logRateLimit = 0;
+  private volatile int logRateBurst = 1;
+  private volatile TransportFanOut fanOut = null;
+  private volatile int transportFailureThreshold = DEFAULT_TRANSPORT_FAILURE_THRESHOLD;
+  private volatile long transportInitialBackoff = DEFAULT_TRANSPORT_INITIAL_BACKOFF;
+  private volatile long transportMaxBackoff = DEFAULT_TRANSPORT_MAX_BACKOFF;
+  private final ConcurrentHashMap<Transport,TransportHealth> transportHealth =
+    new ConcurrentHashMap<Transport,TransportHealth>();
 
   // key is the examined key, value specifies if the key is valid or not
   static private ConcurrentHashMap<String, Boolean> examinedKeys = new ConcurrentHashMap<String, Boolean>();
 
+
   /********************************
    * CONSTRUCTORS AND DESTRUCTORS *
    ********************************/
@@ -151,7 +178,7 @@ public class Client {
 
     /* setup internal data structures */
     contexts = new ConcurrentHashMap<String,Context>();
-    messages = new ConcurrentHashMap<String,LogMessage>();
+    messages = new LogMessageTable();
     stats = new ConcurrentHashMap<String,StatsMessage>();
     samples = new ConcurrentHashMap<String,SamplesMessage>();
     transports = new ConcurrentHashMap<EventType, List<Transport>>();
@@ -221,6 +248,15 @@ public class Client {
    */
   @Override
   public void finalize() {
+    shutdown();
+  }
+
+  /**
+   * Flushes the client, stops its threads and shuts its transports down, for
+   * the applications which own the transports of the client, as the
+   * appenders do.
+   */
+  public void shutdown() {
     // try to flush all logs, stats and samples
     flush();
 
@@ -237,8 +273,12 @@ public class Client {
       }
     }
 
+    // let the parallel sends finish before the transports are shut down
+    setParallelDispatch(false);
+
     // clear all the data
     contexts.clear();
+    contextsVersion.incrementAndGet();
     messages.clear();
     stats.clear();
     samples.clear();
@@ -331,6 +371,118 @@ public class Client {
     this.maxNumMetrics = maxNumMetrics;
   }
 
+  /**
+   * @return true if only the stats that changed since the last flush are emitted
+   */
+  public synchronized boolean isEmitChangedOnly() {
+    return emitChangedOnly;
+  }
+
+  /**
+   * When enabled, each flush only emits the stats that changed since the
+   * previous flush, except for every fullEmitInterval flushes where all the
+   * stats are emitted so the receivers can recover their state.  Has no
+   * effect on samples, which are reset on every flush anyway.
+   * @param emitChangedOnly whether or not only changed stats are emitted
+   */
+  public synchronized void setEmitChangedOnly(boolean emitChangedOnly) {
+    this.emitChangedOnly = emitChangedOnly;
+  }
+
+  /**
+   * @return the number of flushes between full emits of all the stats
+   */
+  public synchronized int getFullEmitInterval() {
+    return fullEmitInterval;
+  }
+
+  /**
+   * @param fullEmitInterval the number of flushes between full emits of all
+   *        the stats when only changed stats are emitted, values less than 1
+   *        are ignored
+   */
+  public synchronized void setFullEmitInterval(int fullEmitInterval) {
+    if(fullEmitInterval > 0) {
+      this.fullEmitInterval = fullEmitInterval;
+    }
+  }
+
+  /**
+   * @return the maximum number of log emissions per second of a call site,
+   *         0 if log emissions are not rate limited
+   */
+  public double getLogRateLimit() {
+    return logRateLimit;
+  }
+
+  /**
+   * Limits how often each log call site can cause logs to be emitted
+   * immediately, because of its level, its trace id or its repeat count.
+   * Occurrences past the limit are still counted, and the count goes out in
+   * the repeat count of the next emission.
+   * @param emitsPerSecond the rate of emissions allowed per call site, 0 or
+   *        less disables rate limiting
+   * @param burst the number of emissions a call site can make in a row
+   */
+  public void setLogRateLimit(double emitsPerSecond, int burst) {
+    this.logRateBurst = Math.max(1, burst);
+    this.logRateLimit = Math.max(0, emitsPerSecond);
+  }
+
+  /**
+   * @return true if the stats are sent to each transport from a thread of
+   *         its own
+   */
+  public boolean isParallelDispatch() {
+    return fanOut != null;
+  }
+
+  /**
+   * When enabled, each flush takes a copy of the stats and samples and hands
+   * it to every stats transport on a thread of its own, so a slow transport
+   * doesn't delay the other ones or the flushing thread.  Each transport
+   * still gets its sends one at a time and in order, but may be called while
+   * logs or traces are sent to it from another thread.  A transport that
+   * falls several flushes behind has its stats dropped, which is reported
+   * to the error handler.
+   * @param parallelDispatch whether or not stats are sent in parallel
+   */
+  public synchronized void setParallelDispatch(boolean parallelDispatch) {
+    if(parallelDispatch && fanOut == null) {
+      fanOut = new TransportFanOut();
+    } else if(!parallelDispatch && fanOut != null) {
+      fanOut.shutdown(FAN_OUT_SHUTDOWN_TIMEOUT);
+      fanOut = null;
+    }
+  }
+
+  /**
+   * @return the number of failures in a row after which a transport is
+   *         skipped for a while, 0 if transports are never skipped
+   */
+  public int getTransportFailureThreshold() {
+    return transportFailureThreshold;
+  }
+
+  /**
+   * Sets when a failing transport is skipped.  After failureThreshold
+   * failures in a row, the transport is skipped for initialBackoff
+   * milliseconds, then a single send probes it.  Each failed probe doubles
+   * the time the transport is skipped, up to maxBackoff milliseconds, and
+   * reports a single error summing up the failures and the skipped sends.
+   * @param failureThreshold the number of failures in a row, 0 or less to
+   *        never skip transports and report every failure
+   * @param initialBackoff the first time a transport is skipped for
+   * @param maxBackoff the longest time a transport is skipped for
+   */
+  public void setTransportBackoff(int failureThreshold, long initialBackoff,
+                                  long maxBackoff) {
+    this.transportFailureThreshold = Math.max(0, failureThreshold);
+    this.transportInitialBackoff = initialBackoff;
+    this.transportMaxBackoff = maxBackoff;
+    transportHealth.clear();
+  }
+
   /********************************
    * PUBLIC API METHODS           *
    ********************************/
@@ -348,6 +500,7 @@ public class Client {
     }
     if(key != null && value != null) {
       contexts.put(key, ctxt);
+      contextsVersion.incrementAndGet();
     }
   }
 
@@ -356,7 +509,9 @@ public class Client {
    */
   public void removeContext(String key) {
     if(contexts != null && key != null) {
-      contexts.remove(key);
+      if(contexts.remove(key) != null) {
+        contextsVersion.incrementAndGet();
+      }
     }
   }
 
@@ -395,6 +550,7 @@ public class Client {
   public void removeAllContexts() {
     if(contexts != null) {
       contexts.clear();
+      contextsVersion.incrementAndGet();
     }
   }
 
@@ -447,6 +603,12 @@ public class Client {
    * MONDEMAND_PORT="<port>[,<port>]?"
    * (optional) MONDEMAND_TTL="<ttl>[,<ttl>]?"
    * (optional) MONDEMAND_SENDTO="<sendto>"
+   * (optional) MONDEMAND_REPLICAS="<replicas>"
+   *
+   * with REPLICAS each metric goes to that many of the addresses, picked by
+   * a consistent hash of its key, see ShardedTransport.  SENDTO and
+   * REPLICAS cannot be used together; an event-specific SENDTO or REPLICAS
+   * replaces both the SENDTO and the REPLICAS of the defaults.
    *
    * @param configFileName - configuration file name.
    * @throws FileNotFoundException if config file could not be found
@@ -457,11 +619,12 @@ public class Client {
    *        problem reading the file, or either port or address is missing, or
    *        if port cannot be converted to number, or if addresses cannot be
    *        converted to valid hosts, or if ttl cannot be converted to number in
-   *        valid range, or if sendto cannot be converted to number in valid
-   *        range, or if length of port or ttl arrays does not equal one or
-   *        length of addr array, or if a transport cannot be created for
-   *        addresses/port specified in the file.
-   * @throws NumberFormatException if a bad PORT, TTL, or SENDTO is specified
+   *        valid range, or if sendto or replicas cannot be converted to
+   *        number in valid range, or if length of port or ttl arrays does not
+   *        equal one or length of addr array, or if a transport cannot be
+   *        created for addresses/port specified in the file.
+   * @throws NumberFormatException if a bad PORT, TTL, SENDTO or REPLICAS is
+   *         specified
    */
   public void addTransportsFromConfigFile(String configFileName)
       throws FileNotFoundException, IOException, TransportException,
@@ -482,6 +645,11 @@ public class Client {
         EventSpecificConfig eventSpecific =
           ConfigBuilder.buildEventSpecificConfig(prop, eventType, defaults);
 
+        if (eventSpecific.getReplicas() != null) {
+          addTransport(eventType, new ShardedTransport(eventSpecific));
+          continue;
+        }
+
         Properties emitterGroupProps =
           eventSpecific.toEmitterGroupProperties(eventType);
 
@@ -551,9 +719,10 @@ public class Client {
    * @param resetStats - whether or not stats should be reset after flush
    */
   public void flush(boolean resetStats) {
-    flushLogs();
+    dispatchLogs();
     dispatchStatsSamples();
     dispatchContextStats();
+    flushTransports(EventType.LOG, EventType.STATS);
     if(resetStats) {
       if(stats != null) {
         stats.clear();
@@ -569,9 +738,7 @@ public class Client {
    */
   public void flushLogs() {
     dispatchLogs();
-    if(messages != null) {
-      messages.clear();
-    }
+    flushTransports(EventType.LOG);
   }
 
   /**
@@ -630,6 +797,28 @@ public class Client {
       throw new MondemandException("key is invalid: " + realKey);
     }
 
+    incrementReal(type, realKey, value);
+  }
+
+  /**
+   * Increments the counter of a handle by one.
+   * @param handle the handle of the counter to increment
+   */
+  public void increment(CounterHandle handle) {
+    this.increment(handle, 1);
+  }
+
+  /**
+   * Increments the counter of a handle by the value specified.  The key of
+   * the handle is not validated.
+   * @param handle the handle of the counter to increment
+   * @param value the amount to increment the counter by
+   */
+  public void increment(CounterHandle handle, int value) {
+    incrementReal(handle.getType(), handle.getKey(), value);
+  }
+
+  private void incrementReal(StatType type, String realKey, int value) {
     // create the HashMap if it doesn't exist
     if(this.stats == null) {
       this.stats = new ConcurrentHashMap<String,StatsMessage>();
@@ -721,6 +910,22 @@ public class Client {
       throw new MondemandException("key is invalid: " + realKey);
     }
 
+    addSampleReal(realKey, value, trackingTypeValue, samplesMaxCount);
+  }
+
+  /**
+   * adds a new sample to the samples of a handle.  The key of the handle is
+   * not validated.
+   * @param handle - the handle of the sample to add a new value to
+   * @param value - the amount to be added to sample
+   */
+  public void addSample(SampleHandle handle, int value) {
+    addSampleReal(handle.getKey(), value, handle.getTrackingTypeValue(),
+                  handle.getSamplesMaxCount());
+  }
+
+  private void addSampleReal(String realKey, int value, int trackingTypeValue,
+                             int samplesMaxCount) {
     // create the HashMap if it doesn't exist
     if(this.samples == null) {
       this.samples = new ConcurrentHashMap<String,SamplesMessage>();
@@ -818,9 +1023,17 @@ public class Client {
       this.stats = new ConcurrentHashMap<String,StatsMessage>();
     }
 
+    // reuse the counter if it already exists with the same type, so an
+    // unchanged value is not seen as a change
+    StatsMessage realValue = this.stats.get(realKey);
+    if(realValue != null && realValue.getType() == type) {
+      realValue.setCounter(value);
+      return;
+    }
+
     // create and set the gauge counter, this will overwrite the counter
     // if it already exists
-    StatsMessage realValue = new StatsMessage(realKey, type);
+    realValue = new StatsMessage(realKey, type);
     realValue.setCounter(value);
     this.stats.put(realKey, realValue);
   }
@@ -845,8 +1058,11 @@ public class Client {
    * @param args optional arguments
    */
   public void emerg(TraceId traceId, String message, Object[] args) {
-    emerg(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.EMERG, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    emerg(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -877,8 +1093,11 @@ public class Client {
    * @param args optional arguments
    */
   public void alert(TraceId traceId, String message, Object[] args) {
-    alert(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.ALERT, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    alert(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -909,8 +1128,11 @@ public class Client {
    * @param args optional arguments
    */
   public void crit(TraceId traceId, String message, Object[] args) {
-    crit(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.CRIT, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    crit(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -941,8 +1163,11 @@ public class Client {
    * @param args optional arguments
    */
   public void error(TraceId traceId, String message, Object[] args) {
-    error(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.ERROR, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    error(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -973,8 +1198,11 @@ public class Client {
    * @param args optional arguments
    */
   public void warning(TraceId traceId, String message, Object[] args) {
-    warning(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.WARNING, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    warning(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -1005,8 +1233,11 @@ public class Client {
    * @param args optional arguments
    */
   public void notice(TraceId traceId, String message, Object[] args) {
-    notice(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.NOTICE, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    notice(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -1037,8 +1268,11 @@ public class Client {
    * @param args optional arguments
    */
   public void info(TraceId traceId, String message, Object[] args) {
-    info(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.INFO, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    info(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -1069,8 +1303,11 @@ public class Client {
    * @param args optional arguments
    */
   public void debug(TraceId traceId, String message, Object[] args) {
-    debug(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        traceId, message, args);
+    if(!levelIsEnabled(Level.DEBUG, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    debug(callerName(caller), callerLine(caller), traceId, message, args);
   }
 
   /**
@@ -1090,8 +1327,11 @@ public class Client {
    * @param args optional arguments
    */
   public void log(int level, TraceId traceId, String message, Object[] args) {
-    log(ClassUtils.getCallingClass(CALLER_DEPTH), ClassUtils.getCallingLine(CALLER_DEPTH),
-        level, traceId, message, args);
+    if(!levelIsEnabled(level, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    log(callerName(caller), callerLine(caller), level, traceId, message, args);
   }
 
   /**
@@ -1105,7 +1345,118 @@ public class Client {
    */
   public void log(String name, int line, int level,
       TraceId traceId, String message, Object[] args) {
-    logReal(name, line, level, traceId, message, args);
+    logReal(name, line, level, traceId, message, args, null, null, null);
+  }
+
+  /**
+   * Logs a message with contexts of its own, which are sent along with the
+   * client contexts for this message only.  A message only repeats an
+   * earlier one from the same call site with the same contexts, and the
+   * contexts are only copied when the message is not a repeat.
+   * @param name the name of this message, usually the filename or calling class
+   * @param line the line number calling this message, or other numeric description of the calling class
+   * @param level the log level
+   * @param traceId an optional traceId
+   * @param message the message
+   * @param args optional arguments
+   * @param contexts the contexts of this message, may be null
+   */
+  public void log(String name, int line, int level, TraceId traceId,
+      String message, Object[] args, Map<?,?> contexts) {
+    logReal(name, line, level, traceId, message, args, null, null, contexts);
+  }
+
+  /**
+   * Logs a message from a log site known ahead of time, which avoids looking
+   * up the caller.
+   * @param site the log site
+   * @param level the log level
+   * @param traceId an optional traceId
+   * @param message the message
+   * @param args optional arguments
+   */
+  public void log(LogSite site, int level,
+      TraceId traceId, String message, Object[] args) {
+    logReal(site.getName(), site.getLine(), level, traceId,
+            message, args, null, null, null);
+  }
+
+  /**
+   * Logs a message from a log site known ahead of time, where the message is
+   * only built if the level is enabled and the message is not a repeat.
+   * @param site the log site
+   * @param level the log level
+   * @param traceId an optional traceId
+   * @param message supplies the log message
+   */
+  public void log(LogSite site, int level,
+      TraceId traceId, Supplier<String> message) {
+    logReal(site.getName(), site.getLine(), level, traceId,
+            null, null, message, null, null);
+  }
+
+  /**
+   * Generic logger function where the message is only built if the level is
+   * enabled and the message is not a repeat.  This method will perform slower
+   * than most because it needs to detect the calling class and calling line
+   * number.
+   * @param level the log level of this message
+   * @param traceId an optional traceId
+   * @param message supplies the log message
+   */
+  public void log(int level, TraceId traceId, Supplier<String> message) {
+    if(!levelIsEnabled(level, traceId)) {
+      return;
+    }
+    StackTraceElement caller = ClassUtils.getCallingLocation(CALLER_DEPTH);
+    log(callerName(caller), callerLine(caller), level, traceId, message);
+  }
+
+  /**
+   * The most generic logger function where the message is only built if the
+   * level is enabled and the message is not a repeat.
+   * @param name the name of this message, usually the filename or calling class
+   * @param line the line number calling this message, or other numeric description of the calling class
+   * @param level the log level
+   * @param traceId an optional traceId
+   * @param message supplies the log message
+   */
+  public void log(String name, int line, int level,
+      TraceId traceId, Supplier<String> message) {
+    logReal(name, line, level, traceId, null, null, message, null, null);
+  }
+
+  /**
+   * Logs a message with contexts of its own, where the message is only
+   * built if the level is enabled and the message is not a repeat of one
+   * from the same call site with the same contexts.
+   * @param name the name of this message, usually the filename or calling class
+   * @param line the line number calling this message, or other numeric description of the calling class
+   * @param level the log level
+   * @param traceId an optional traceId
+   * @param message supplies the log message
+   * @param contexts the contexts of this message, may be null
+   */
+  public void log(String name, int line, int level, TraceId traceId,
+      Supplier<String> message, Map<?,?> contexts) {
+    logReal(name, line, level, traceId, null, null, message, null, contexts);
+  }
+
+  /**
+   * Logs a message whose call site is not known, like the events of a
+   * logger without location information.  As the name alone doesn't tell
+   * the messages apart, a message only repeats an earlier one with the same
+   * name, text and contexts.  The text is compared as is and only copied
+   * when the message is not a repeat.
+   * @param name the name of this message, usually the logger name
+   * @param level the log level
+   * @param traceId an optional traceId
+   * @param message the text of the message
+   * @param contexts the contexts of this message, may be null
+   */
+  public void log(String name, int level, TraceId traceId,
+      CharSequence message, Map<?,?> contexts) {
+    logReal(name, 0, level, traceId, null, null, null, message, contexts);
   }
 
   public boolean traceMessage (String message,
@@ -1144,12 +1495,28 @@ public class Client {
       Context[] contexts = contextsList.toArray(new Context[0]);
 
       for (Transport t : transports.get(EventType.TRACE)) {
+        TransportHealth health = getTransportHealth(t);
+        if (!health.allow(System.currentTimeMillis())) {
+          continue;
+        }
         try {
           t.sendTrace(programId, contexts);
+          transportSucceeded(t, health);
         } catch (TransportException te) {
-          errorHandler.handleError("Error calling Transport.sendTrace()", te, contexts);
+          String error = health.failure(System.currentTimeMillis(),
+                                        "Error calling Transport.sendTrace()");
+          if (error != null) {
+            errorHandler.handleError(error, te, contexts);
+          }
+        } catch (RuntimeException re) {
+          String error = health.failure(System.currentTimeMillis(),
+                                        "Error calling Transport.sendTrace()");
+          if (error != null) {
+            errorHandler.handleError(error, re, contexts);
+          }
         }
       }
+      flushTransports(EventType.TRACE);
 
       ret = true;
     } catch(Exception e) {
@@ -1187,14 +1554,23 @@ public class Client {
       Context[] contexts = contextList.toArray(new Context[0]);
 
       for (Transport t : transports.get(EventType.PERF)) {
+        TransportHealth health = getTransportHealth(t);
+        if (!health.allow(System.currentTimeMillis())) {
+          continue;
+        }
         try {
           t.sendPerformanceTrace(id, callerLabel, label, start, end,
                                  contexts);
+          transportSucceeded(t, health);
         } catch (TransportException te) {
-          errorHandler.handleError("Error calling Transport.sendPerformanceTrace()",
-                                   te);
+          transportFailed(health,
+              "Error calling Transport.sendPerformanceTrace()", te);
+        } catch (RuntimeException re) {
+          transportFailed(health,
+              "Error calling Transport.sendPerformanceTrace()", re);
         }
       }
+      flushTransports(EventType.PERF);
 
       ret = true;
     } catch (Exception e) {
@@ -1209,12 +1585,13 @@ public class Client {
    ********************************/
 
   private void logReal(String name, int line, int level,
-                       TraceId traceId, String message, Object[] args)
+                       TraceId traceId, String message, Object[] args,
+                       Supplier<String> messageSupplier, CharSequence text,
+                       Map<?,?> contexts)
   {
     String filename = name;
-    StringBuffer formattedMsg = new StringBuffer();
 
-    if(message == null) {
+    if(message == null && messageSupplier == null && text == null) {
       return;
     }
     if(level < Level.OFF || level > Level.ALL) {
@@ -1222,17 +1599,14 @@ public class Client {
           name + ":" + line + " with invalid log level: " + Integer.toString(level));
     }
 
-    // initialize if necessary
-    if(this.messages == null) {
-      this.messages = new ConcurrentHashMap<String, LogMessage>();
+    // check the level before doing any work on the message
+    if(!levelIsEnabled(level, traceId)) {
+      return;
     }
 
-    // format the message
-    formattedMsg.append(message);
-    if(args != null) {
-      for(int i=0; i<args.length; ++i) {
-        formattedMsg.append(" " + args[i].toString());
-      }
+    // initialize if necessary
+    if(this.messages == null) {
+      this.messages = new LogMessageTable();
     }
 
     // figure out the name if it is null
@@ -1241,57 +1615,195 @@ public class Client {
     }
 
     try {
-      if(levelIsEnabled(level, traceId)) {
-        String key = filename + FILE_LINE_DELIMITER + Integer.toString(line);
-        if(this.messages.containsKey(key)) {
-          // repeated message, increment the repeat counter
-          LogMessage msg = this.messages.get(key);
-          if(msg != null) {
-            msg.setRepeat(msg.getRepeat() + 1);
-            if(msg.getRepeat() % 999 == 0) {
-              flushLogs();
-              return;
-            }
-
-            this.messages.put(key, msg);
-          }
+      LogMessageTable.Entry entry =
+        this.messages.get(filename, line, contexts, text);
+      LogMessage msg = (entry == null) ? null : entry.message;
+      if(entry == null) {
+        // new message, only format it the first time it is seen
+        LogMessage newMsg = new LogMessage();
+        newMsg.setFilename(filename);
+        newMsg.setLine(line);
+        newMsg.setLevel(level);
+        if(text != null) {
+          newMsg.setMessage(text.toString());
         } else {
-          // new message
-          LogMessage msg = new LogMessage();
-          msg.setFilename(filename);
-          msg.setLine(line);
-          msg.setLevel(level);
-          msg.setMessage(formattedMsg.toString());
-          msg.setRepeat(1);
-          msg.setTraceId(traceId);
-          this.messages.put(key, msg);
+          newMsg.setMessage(messageSupplier != null ?
+              messageSupplier.get() : formatMessage(message, args));
         }
+        newMsg.setRepeat(1);
+        newMsg.setTraceId(traceId);
+        newMsg.setContexts(toContexts(contexts));
+        entry = this.messages.putIfAbsent(filename, line, newMsg,
+                                          text != null);
+        msg = (entry.message == newMsg) ? null : entry.message;
+      }
 
-        // if the trace ID is set, emit immediately
-        if(traceId != null) {
-          if(traceId.compareTo(TraceId.NULL_TRACE_ID) != 0) {
-            flushLogs();
-            return;
-          }
-        }
+      // repeated message, increment the repeat counter
+      boolean emit = (msg != null && msg.incrementRepeat() % 999 == 0);
 
-        // if the immediate send level is passed, emit immediately
-        if(level <= this.immediateSendLevel) {
-          flushLogs();
-          return;
-        }
+      // if the trace ID is set, emit immediately
+      if(traceId != null && traceId.compareTo(TraceId.NULL_TRACE_ID) != 0) {
+        emit = true;
+      }
 
-        // if the message buffer is full, emit immediately
-        if(messages.size() >= MAX_MESSAGES) {
-          flushLogs();
-          return;
-        }
+      // if the immediate send level is passed, emit immediately
+      if(level <= this.immediateSendLevel) {
+        emit = true;
+      }
+
+      // unless the call site is over its rate limit, in which case the
+      // occurrence is only counted in the repeat count
+      if(emit && logEmitPermitted(entry.site)) {
+        flushLogs();
+        return;
+      }
+
+      // if the message buffer is full, emit immediately
+      if(messages.size() >= MAX_MESSAGES) {
+        flushLogs();
+        return;
       }
     } catch(Exception e) {
       errorHandler.handleError("Error in Client.logReal()", e);
     }
   }
 
+  /**
+   * The contexts are sent with every flush but rarely change, so the array
+   * handed to the transports is only rebuilt after they changed.  Transports
+   * can rely on getting the same array as long as the contexts don't change.
+   * @return the contexts of the client, the array must not be modified
+   */
+  private Context[] getContextSnapshot() {
+    // read the version first, a change made while copying invalidates the copy
+    int version = contextsVersion.get();
+    ContextSnapshot snapshot = contextSnapshot;
+    if(snapshot == null || snapshot.version != version) {
+      snapshot = new ContextSnapshot(version,
+          this.contexts.values().toArray(new Context[0]));
+      contextSnapshot = snapshot;
+    }
+    return snapshot.contexts;
+  }
+
+  /**
+   * a copy of the contexts, valid while the contexts version is unchanged
+   */
+  private static class ContextSnapshot {
+    final int version;
+    final Context[] contexts;
+
+    ContextSnapshot(int version, Context[] contexts) {
+      this.version = version;
+      this.contexts = contexts;
+    }
+  }
+
+  /**
+   * @param properties the properties to convert, may be null
+   * @return the properties with a non null key and value as contexts, or
+   *         null if there are none
+   */
+  private static Context[] toContexts(Map<?,?> properties)
+    throws MondemandException
+  {
+    if(properties == null || properties.isEmpty()) {
+      return null;
+    }
+    List<Context> contexts = new ArrayList<Context>(properties.size());
+    for(Map.Entry<?,?> entry : properties.entrySet()) {
+      if(entry.getKey() != null && entry.getValue() != null) {
+        contexts.add(new Context(entry.getKey().toString(),
+                                 entry.getValue().toString()));
+      }
+    }
+    return contexts.isEmpty() ? null : contexts.toArray(new Context[0]);
+  }
+
+  /**
+   * @param clientContexts the contexts of the client
+   * @param messageContexts the contexts of a message, which take precedence
+   * @return the contexts to send the message with
+   */
+  private static Context[] mergeContexts(Context[] clientContexts,
+                                         Context[] messageContexts) {
+    List<Context> merged = new ArrayList<Context>(
+        clientContexts.length + messageContexts.length);
+    Set<String> keys = new HashSet<String>();
+    for(Context context : messageContexts) {
+      keys.add(context.getKey());
+    }
+    for(Context context : clientContexts) {
+      if(!keys.contains(context.getKey())) {
+        merged.add(context);
+      }
+    }
+    for(Context context : messageContexts) {
+      merged.add(context);
+    }
+    return merged.toArray(new Context[0]);
+  }
+
+  /**
+   * @param site the call site, whose limiter is created on first use and
+   *        replaced after the rate limit changed
+   * @return true if the call site is allowed to emit logs now
+   */
+  private boolean logEmitPermitted(LogMessageTable.CallSite site) {
+    double limit = this.logRateLimit;
+    if(limit <= 0) {
+      return true;
+    }
+    return site.getLimiter(limit, logRateBurst).tryAcquire();
+  }
+
+  /**
+   * @param caller the stack element of the caller, may be null
+   * @return the class name of the caller
+   */
+  private static String callerName(StackTraceElement caller) {
+    return caller == null ? ClassUtils.getMainClass() : caller.getClassName();
+  }
+
+  /**
+   * @param caller the stack element of the caller, may be null
+   * @return the line number of the caller
+   */
+  private static int callerLine(StackTraceElement caller) {
+    return caller == null ? 0 : caller.getLineNumber();
+  }
+
+  /**
+   * formats the message with its arguments.  each "{}" placeholder in the
+   * message is replaced by the next argument, and the arguments left once all
+   * the placeholders are replaced are appended to the message, separated by
+   * spaces.
+   * @param message the log message
+   * @param args optional arguments
+   * @return the formatted message
+   */
+  private static String formatMessage(String message, Object[] args) {
+    if(args == null || args.length == 0) {
+      return message;
+    }
+
+    StringBuilder formattedMsg = new StringBuilder(message.length() + 16 * args.length);
+    int argIdx = 0;
+    int start = 0;
+    int placeholder;
+    while(argIdx < args.length
+          && (placeholder = message.indexOf(PLACEHOLDER, start)) >= 0) {
+      formattedMsg.append(message, start, placeholder).append(args[argIdx++]);
+      start = placeholder + PLACEHOLDER.length();
+    }
+    formattedMsg.append(message, start, message.length());
+
+    for(; argIdx < args.length; ++argIdx) {
+      formattedMsg.append(' ').append(args[argIdx]);
+    }
+    return formattedMsg.toString();
+  }
+
   /**
    * Iterates through the transports, calling the sendLogs method for each.
    * Since we cannot assume transports are thread-safe, we make this method synchronized.
@@ -1302,14 +1814,49 @@ public class Client {
     }
 
     try {
-      Context[] contexts = this.contexts.values().toArray(new Context[0]);
-      LogMessage[] messages = this.messages.values().toArray(new LogMessage[0]);
+      Context[] contexts = getContextSnapshot();
+
+      // messages with contexts of their own are sent with the other ones
+      // having the same contexts
+      List<LogMessage> shared = new ArrayList<LogMessage>();
+      Map<Set<Context>, List<LogMessage>> own =
+        new LinkedHashMap<Set<Context>, List<LogMessage>>();
+      for (LogMessage message : this.messages.drain()) {
+        if (message.getContexts() == null) {
+          shared.add(message);
+          continue;
+        }
+        Set<Context> key =
+          new HashSet<Context>(Arrays.asList(message.getContexts()));
+        List<LogMessage> group = own.get(key);
+        if (group == null) {
+          group = new ArrayList<LogMessage>();
+          own.put(key, group);
+        }
+        group.add(message);
+      }
+      if (shared.isEmpty() && own.isEmpty()) {
+        return;
+      }
 
       for (Transport t : transports.get(EventType.LOG)) {
+        TransportHealth health = getTransportHealth(t);
+        if (!health.allow(System.currentTimeMillis())) {
+          continue;
+        }
         try {
-          t.sendLogs(programId, messages, contexts);
+          if (!shared.isEmpty()) {
+            t.sendLogs(programId, shared.toArray(new LogMessage[0]), contexts);
+          }
+          for (List<LogMessage> group : own.values()) {
+            t.sendLogs(programId, group.toArray(new LogMessage[0]),
+                mergeContexts(contexts, group.get(0).getContexts()));
+          }
+          transportSucceeded(t, health);
         } catch (TransportException te) {
-          errorHandler.handleError("Error calling Transport.sendLogs()", te);
+          transportFailed(health, "Error calling Transport.sendLogs()", te);
+        } catch (RuntimeException re) {
+          transportFailed(health, "Error calling Transport.sendLogs()", re);
         }
       }
     } catch (Exception e) {
@@ -1330,25 +1877,283 @@ public class Client {
     }
 
     try {
-      Context[] contexts = this.contexts.values().toArray(new Context[0]);
-      StatsMessage[] statsMsgs = this.stats.values().toArray(new StatsMessage[0]);
+      Context[] contexts = getContextSnapshot();
+      StatsMessage[] statsMsgs = getStatsToEmit();
 
       // snapshot samples map for dispatch
       SamplesMessage[] samplesMsgs = this.samples.values().toArray(new SamplesMessage[0]);
       this.samples = new ConcurrentHashMap<String, SamplesMessage>(this.samples.size());
 
-      for (Transport t : transports.get(EventType.STATS)) {
+      if(statsMsgs.length == 0 && samplesMsgs.length == 0) {
+        // nothing changed since the last flush
+        return;
+      }
+
+      sendStats(Collections.singletonList(
+          new StatsBatch(statsMsgs, samplesMsgs, contexts, true)));
+    } catch (Exception e) {
+      errorHandler.handleError("Error calling Client.dispatchStats()", e);
+    }
+  }
+
+  /**
+   * stats and samples sent with the same contexts
+   */
+  private static class StatsBatch {
+    final StatsMessage[] statsMsgs;
+    final SamplesMessage[] samplesMsgs;
+    final Context[] contexts;
+    // true if the messages keep being updated after the flush
+    final boolean live;
+
+    StatsBatch(StatsMessage[] statsMsgs, SamplesMessage[] samplesMsgs,
+               Context[] contexts, boolean live) {
+      this.statsMsgs = statsMsgs;
+      this.samplesMsgs = samplesMsgs;
+      this.contexts = contexts;
+      this.live = live;
+    }
+
+    /**
+     * @return a batch whose messages don't change anymore
+     */
+    StatsBatch copy() {
+      return live ? new StatsBatch(Client.copy(statsMsgs),
+                                   Client.copy(samplesMsgs), contexts, false)
+                  : this;
+    }
+  }
+
+  /**
+   * sends batches of stats and samples to the stats transports, one after
+   * the other or in parallel.  SnapshotTransports share snapshots taken once,
+   * the other transports get the messages, or a copy of them in parallel.
+   * In parallel all the batches go to a transport in a single send, so a
+   * flush with many contexts doesn't fill the queue of the transport.
+   */
+  private void sendStats(List<StatsBatch> batches) {
+    TransportFanOut fanOut = this.fanOut;
+    Integer maxNumMetrics = this.maxNumMetrics;
+    List<MetricsSnapshot> snapshots = null;
+    List<StatsBatch> copies = null;
+
+    for (Transport t : transports.get(EventType.STATS)) {
+      StatsSend send;
+      if (t instanceof SnapshotTransport) {
+        if (snapshots == null) {
+          snapshots = new ArrayList<MetricsSnapshot>(batches.size());
+          for (StatsBatch batch : batches) {
+            snapshots.add(MetricsSnapshot.of(programId, batch.statsMsgs,
+                batch.samplesMsgs, batch.contexts, maxNumMetrics));
+          }
+        }
+        send = new StatsSend(t, snapshots, null, null);
+      } else {
+        if (fanOut != null && copies == null) {
+          // each transport gets the same copy
+          copies = new ArrayList<StatsBatch>(batches.size());
+          for (StatsBatch batch : batches) {
+            copies.add(batch.copy());
+          }
+        }
+        send = new StatsSend(t, null, fanOut != null ? copies : batches,
+                             maxNumMetrics);
+      }
+
+      if (fanOut == null) {
+        send.run();
+      } else {
         try {
-          t.send(programId, statsMsgs, samplesMsgs, contexts, this.maxNumMetrics);
+          fanOut.execute(t, send);
+        } catch (RejectedExecutionException e) {
+          errorHandler.handleError("Transport fell behind, dropping stats", e);
+        }
+      }
+    }
+  }
+
+  private static StatsMessage[] copy(StatsMessage[] statsMsgs) {
+    StatsMessage[] copy = new StatsMessage[statsMsgs.length];
+    for (int i = 0; i < statsMsgs.length; ++i) {
+      copy[i] = statsMsgs[i].copy();
+    }
+    return copy;
+  }
+
+  private static SamplesMessage[] copy(SamplesMessage[] samplesMsgs) {
+    if (samplesMsgs == null) {
+      return null;
+    }
+    SamplesMessage[] copy = new SamplesMessage[samplesMsgs.length];
+    for (int i = 0; i < samplesMsgs.length; ++i) {
+      copy[i] = samplesMsgs[i].copy();
+    }
+    return copy;
+  }
+
+  /**
+   * a send of stats to a transport, either of snapshots or of batches of
+   * messages, one transport call each
+   */
+  private class StatsSend implements Runnable {
+    private final Transport transport;
+    private final List<MetricsSnapshot> snapshots;
+    private final List<StatsBatch> batches;
+    private final Integer maxNumMetrics;
+
+    StatsSend(Transport transport, List<MetricsSnapshot> snapshots,
+              List<StatsBatch> batches, Integer maxNumMetrics) {
+      this.transport = transport;
+      this.snapshots = snapshots;
+      this.batches = batches;
+      this.maxNumMetrics = maxNumMetrics;
+    }
+
+    @Override
+    public void run() {
+      TransportHealth health = getTransportHealth(transport);
+      int count = snapshots != null ? snapshots.size() : batches.size();
+      for (int i = 0; i < count; ++i) {
+        if (!health.allow(System.currentTimeMillis())) {
+          return;
+        }
+        try {
+          if (snapshots != null) {
+            ((SnapshotTransport) transport).send(snapshots.get(i));
+          } else {
+            StatsBatch batch = batches.get(i);
+            transport.send(programId, batch.statsMsgs, batch.samplesMsgs,
+                           batch.contexts, maxNumMetrics);
+          }
+          transportSucceeded(transport, health);
         } catch (TransportException te) {
-          errorHandler.handleError("Error calling Transport.sendStats()", te);
+          transportFailed(health, "Error calling Transport.sendStats()", te);
+        } catch (RuntimeException re) {
+          transportFailed(health, "Error calling Transport.sendStats()", re);
         }
       }
-    } catch (Exception e) {
-      errorHandler.handleError("Error calling Client.dispatchStats()", e);
     }
   }
 
+  /**
+   * tells the transports which batch events, such as a DirectLWESTransport
+   * over a CompressingEventSink, that the events of a flush were all sent.
+   * In parallel a stats transport is flushed after its pending sends.
+   * @param types the types of events sent
+   */
+  private void flushTransports(EventType... types) {
+    TransportFanOut fanOut = this.fanOut;
+    Set<Transport> seenTransports = new HashSet<Transport>();
+    for (EventType type : types) {
+      for (Transport t : transports.get(type)) {
+        if (!(t instanceof Flushable) || !seenTransports.add(t)) {
+          continue;
+        }
+        TransportFlush flush = new TransportFlush(t);
+        if (fanOut == null || !transports.get(EventType.STATS).contains(t)) {
+          flush.run();
+        } else {
+          try {
+            fanOut.execute(t, flush);
+          } catch (RejectedExecutionException e) {
+            errorHandler.handleError("Transport fell behind, not flushed", e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * a flush of a transport, once the events of a flush were sent to it
+   */
+  private class TransportFlush implements Runnable {
+    private final Transport transport;
+
+    TransportFlush(Transport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public void run() {
+      TransportHealth health = getTransportHealth(transport);
+      if (!health.allow(System.currentTimeMillis())) {
+        return;
+      }
+      try {
+        ((Flushable) transport).flush();
+        transportSucceeded(transport, health);
+      } catch (IOException e) {
+        transportFailed(health, "Error calling Transport.flush()", e);
+      } catch (RuntimeException re) {
+        transportFailed(health, "Error calling Transport.flush()", re);
+      }
+    }
+  }
+
+  /**
+   * @return the health of a transport, created on first use
+   */
+  private TransportHealth getTransportHealth(Transport t) {
+    TransportHealth health = transportHealth.get(t);
+    if (health == null) {
+      health = new TransportHealth(transportFailureThreshold,
+          transportInitialBackoff, transportMaxBackoff);
+      TransportHealth existing = transportHealth.putIfAbsent(t, health);
+      if (existing != null) {
+        health = existing;
+      }
+    }
+    return health;
+  }
+
+  private void transportSucceeded(Transport t, TransportHealth health) {
+    if (health.success()) {
+      errorHandler.handleError("Transport " + t + " recovered");
+    }
+  }
+
+  /**
+   * reports a failed send, unless the transport is skipped and the failure
+   * goes in the next summary.  The runtime exceptions of a transport are
+   * failures as well, a probe they ended would otherwise never finish.
+   */
+  private void transportFailed(TransportHealth health, String error,
+                               Exception e) {
+    error = health.failure(System.currentTimeMillis(), error);
+    if (error != null) {
+      errorHandler.handleError(error, e);
+    }
+  }
+
+  /**
+   * returns the stats to be emitted by this flush, which is either all the
+   * stats or, if emitChangedOnly is set, only the ones that changed since the
+   * last flush plus all of them once every fullEmitInterval flushes.  The
+   * flush count is kept under the lock of the client, which the flushes
+   * hold.
+   * @return the stats to be emitted
+   */
+  private synchronized StatsMessage[] getStatsToEmit() {
+    StatsMessage[] statsMsgs = this.stats.values().toArray(new StatsMessage[0]);
+    if(!emitChangedOnly) {
+      return statsMsgs;
+    }
+
+    boolean fullEmit = (++flushesSinceFullEmit >= fullEmitInterval);
+    if(fullEmit) {
+      flushesSinceFullEmit = 0;
+    }
+
+    List<StatsMessage> changedMsgs = new ArrayList<StatsMessage>(statsMsgs.length);
+    for(StatsMessage msg : statsMsgs) {
+      // always clear the flag, so a full emit starts a new delta period
+      if(msg.testAndClearChanged() || fullEmit) {
+        changedMsgs.add(msg);
+      }
+    }
+    return changedMsgs.toArray(new StatsMessage[changedMsgs.size()]);
+  }
+
   /**
    * emit the events
    */
@@ -1358,6 +2163,8 @@ public class Client {
       return;
     }
 
+    List<StatsBatch> batches =
+      new ArrayList<StatsBatch>(this.contextStats.size());
     for (Map.Entry<ContextList, AtomicLongMap<String>> entry : contextStats.entrySet())
     {
       List<Context> newContexts = new ArrayList<Context>(this.contexts.values());
@@ -1373,16 +2180,10 @@ public class Client {
 
       Context[] contexts = newContexts.toArray(new Context[0]);
 
-      for (Transport t : transports.get(EventType.STATS)) {
-        try {
-          t.send(programId, statsMsgs.toArray(new StatsMessage[0]), null,
-                 contexts, this.maxNumMetrics);
-        } catch(TransportException te) {
-          errorHandler.handleError("Error calling Transport.sendStats()",
-                                   te);
-        }
-      }
+      batches.add(new StatsBatch(statsMsgs.toArray(new StatsMessage[0]), null,
+                                 contexts, false));
     }
+    sendStats(batches);
   }
 
   public ConcurrentHashMap<ContextList, AtomicLongMap<String>> getContextStats() {
@@ -1392,4 +2193,11 @@ public class Client {
   public ConcurrentHashMap<String, SamplesMessage> getSamples() {
     return samples;
   }
+
+  /**
+   * @return the live stats of the client, which must not be modified
+   */
+  public ConcurrentHashMap<String, StatsMessage> getStats() {
+    return stats;
+  }
 }
@@ -12,6 +12,7 @@ public class Config {
   protected List<Integer> ports;
   protected List<Integer> ttls;
   protected Integer sendTo;
+  protected Integer replicas;
 
   public Config(List<InetAddress> addresses, List<InetAddress> interfaces,
                 List<Integer> ports, List<Integer> ttls, Integer sendTo) {
@@ -95,6 +96,19 @@ public class Config {
     this.sendTo = sendTo;
   }
 
+  /**
+   * @return the number of addresses each metric is sent to when the metrics
+   *         are sharded by key, or null to send everything to all (or
+   *         SENDTO) addresses
+   */
+  public Integer getReplicas() {
+    return replicas;
+  }
+
+  public void setReplicas(Integer replicas) {
+    this.replicas = replicas;
+  }
+
   public Properties toEmitterGroupProperties(String emitterGroupName) {
     Properties emitterGroupProps = new Properties();
     String strategy = "all";
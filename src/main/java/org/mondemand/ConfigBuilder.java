@@ -11,6 +11,7 @@ public class ConfigBuilder {
   private static final String PORT_FORMAT = "MONDEMAND_%sPORT";
   private static final String TTL_FORMAT = "MONDEMAND_%sTTL";
   private static final String SENDTO_FORMAT = "MONDEMAND_%sSENDTO";
+  private static final String REPLICAS_FORMAT = "MONDEMAND_%sREPLICAS";
   private static final int TTL_MIN = 0;
   private static final int TTL_MAX = 32;
 
@@ -29,7 +30,9 @@ public class ConfigBuilder {
 
   /**
    * builds an EventSpecificConfig object using event-specific properties when
-   * specified.
+   * specified.  An event-specific SENDTO or REPLICAS replaces both the SENDTO
+   * and the REPLICAS of the defaults, and REPLICAS is checked against the
+   * addresses of the event type.
    *
    * @param props properties from config file
    * @param eventType the type of EventSpecificConfig to be built
@@ -46,6 +49,17 @@ public class ConfigBuilder {
     List<Integer> ports = getPorts(props, eventType, defaults);
     List<Integer> ttls = getTtls(props, eventType, defaults);
     Integer sendTo = getSendTo(props, eventType, defaults);
+    Integer replicas = getReplicas(props, eventType, defaults);
+
+    // SENDTO and REPLICAS exclude each other, so the one given for the
+    // event type is not combined with the other one of the defaults
+    boolean specificSendTo = isSpecified(props, SENDTO_FORMAT, eventType);
+    boolean specificReplicas = isSpecified(props, REPLICAS_FORMAT, eventType);
+    if (specificSendTo && !specificReplicas) {
+      replicas = null;
+    } else if (specificReplicas && !specificSendTo) {
+      sendTo = null;
+    }
 
     if (addresses == null || ports == null) {
       throw new IllegalArgumentException("ADDR and PORT must be specified");
@@ -69,13 +83,37 @@ public class ConfigBuilder {
                                          "]");
     }
 
-    return new EventSpecificConfig(eventType, addresses, ports, ttls,sendTo);
+    if (replicas != null) {
+      if (sendTo != null) {
+        throw new IllegalArgumentException("SENDTO and REPLICAS cannot be " +
+                                           "used together");
+      }
+      if (replicas < 1 || replicas > addresses.size()) {
+        throw new IllegalArgumentException("REPLICAS value is outside the " +
+                                           "valid range of [1," +
+                                           addresses.size() + "] of " +
+                                           String.format(ADDR_FORMAT,
+                                             getConfigFragment(eventType)));
+      }
+    }
+
+    EventSpecificConfig config =
+      new EventSpecificConfig(eventType, addresses, ports, ttls,sendTo);
+    config.setReplicas(replicas);
+    return config;
   }
 
   private static String getConfigFragment(EventType eventType) {
     return (eventType == null ? "" : eventType.name() + "_");
   }
 
+  private static boolean isSpecified(Properties props, String format,
+                                     EventType eventType) {
+    return eventType != null &&
+      props.getProperty(String.format(format,
+                                      getConfigFragment(eventType))) != null;
+  }
+
   private static String cleanString(String input) {
     if (input == null) {
       return null;
@@ -186,4 +224,21 @@ public class ConfigBuilder {
 
     return Integer.parseInt(cleanString(props.getProperty(sendto_config)));
   }
+
+  private static Integer getReplicas(Properties props,
+                                     EventType eventType,
+                                     Config defaults) {
+    String replicas_config = String.format(REPLICAS_FORMAT,
+                                           getConfigFragment(eventType));
+
+    if (props.getProperty(replicas_config) == null) {
+      if (defaults == null) {
+        return null;
+      } else {
+        return defaults.getReplicas();
+      }
+    }
+
+    return Integer.parseInt(cleanString(props.getProperty(replicas_config)));
+  }
 }
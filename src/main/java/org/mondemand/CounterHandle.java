@@ -0,0 +1,60 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand;
+
+/**
+ * A counter key that was validated ahead of time, usually generated at build
+ * time for methods annotated with Counted.  Incrementing through a handle
+ * skips the key look up and validation done by Client.increment(String).
+ */
+public class CounterHandle {
+  private final String key;
+  private final StatType type;
+
+  /**
+   * constructor, the key is trusted to be valid
+   * @param key - counter's key
+   * @param type - counter's type
+   */
+  public CounterHandle(String key, StatType type) {
+    this.key = key;
+    this.type = type;
+  }
+
+  /**
+   * constructor for a counter, the key is trusted to be valid
+   * @param key - counter's key
+   */
+  public CounterHandle(String key) {
+    this(key, StatType.Counter);
+  }
+
+  /**
+   * @return the key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the type
+   */
+  public StatType getType() {
+    return type;
+  }
+
+  @Override
+  public String toString() {
+    return "CounterHandle [key=" + key + ", type=" + type + "]";
+  }
+}
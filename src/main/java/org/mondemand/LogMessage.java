@@ -13,15 +13,20 @@
 package org.mondemand;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class LogMessage implements Serializable {
   private static final long serialVersionUID = -6485010015100206281L;
+  private static final AtomicIntegerFieldUpdater<LogMessage> REPEAT_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(LogMessage.class, "repeat");
+
   private String filename = null;
   private int line = 0;
   private int level = Level.DEBUG;
   private String message = null;
-  private int repeat = 0;
+  private volatile int repeat = 0;
   private TraceId traceId = null;
+  private Context[] contexts = null;
 
   /**
    * @return the filename
@@ -93,6 +98,14 @@ public class LogMessage implements Serializable {
     this.repeat = repeat;
   }
 
+  /**
+   * atomically increments the repeat count
+   * @return the updated repeat count
+   */
+  public int incrementRepeat() {
+    return REPEAT_UPDATER.incrementAndGet(this);
+  }
+
   /**
    * @return the traceId
    */
@@ -107,6 +120,21 @@ public class LogMessage implements Serializable {
     this.traceId = traceId;
   }
 
+  /**
+   * @return the contexts of this message only, or null
+   */
+  public Context[] getContexts() {
+    return contexts;
+  }
+
+  /**
+   * @param contexts the contexts of this message only, sent along with the
+   *        contexts of the client
+   */
+  public void setContexts(Context[] contexts) {
+    this.contexts = contexts;
+  }
+
   public String toString() {
     return "[" + filename + ":" + line + "] - " + Level.STRINGS[level] + " - " + message + " - " + repeat + "[" + traceId + "]";
   }
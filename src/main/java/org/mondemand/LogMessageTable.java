@@ -0,0 +1,284 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.mondemand.util.TokenBucket;
+
+/**
+ * The log messages waiting to be sent, one per call site and contexts of
+ * the message, and per text for the messages keyed on their text.  A call
+ * site is looked up by its name and line without building a key: the bucket
+ * comes from the hash of the name, which strings cache, and the line, and
+ * the entries of the bucket are compared field by field, their contexts
+ * last.  Lookups don't lock, new entries are added at
+ * the head of their bucket with a compare-and-set, and the messages are
+ * taken out by swapping each bucket for an empty one, so a message added
+ * while the table is drained is either taken or left for the next drain.
+ * <p>
+ * The client flushes the messages once there are a few of them, so the
+ * number of buckets is fixed, and the messages of a call site with other
+ * contexts simply share its bucket.
+ * <p>
+ * The entries of a call site share a CallSite, which holds its rate limiter.
+ * A new entry takes the CallSite of another entry of the call site, or of
+ * one taken out by the last drain, so a call site flushing its messages
+ * keeps its limiter, and the limiters of the call sites which stopped
+ * logging go away with their entries.
+ */
+class LogMessageTable {
+  private static final int BUCKETS = 64;  // a power of two
+
+  /**
+   * the state of a call site kept across flushes
+   */
+  static final class CallSite {
+    private static final AtomicReferenceFieldUpdater<CallSite,TokenBucket>
+      LIMITER_UPDATER = AtomicReferenceFieldUpdater.newUpdater(
+          CallSite.class, TokenBucket.class, "limiter");
+
+    private volatile TokenBucket limiter = null;
+
+    /**
+     * @param permitsPerSecond the rate of the limiter
+     * @param burst the burst of the limiter
+     * @return the limiter of the call site, created or replaced if it
+     *         doesn't have that rate and burst
+     */
+    TokenBucket getLimiter(double permitsPerSecond, int burst) {
+      while(true) {
+        TokenBucket current = limiter;
+        if(current != null && current.hasRate(permitsPerSecond, burst)) {
+          return current;
+        }
+        TokenBucket bucket = new TokenBucket(permitsPerSecond, burst);
+        if(LIMITER_UPDATER.compareAndSet(this, current, bucket)) {
+          return bucket;
+        }
+      }
+    }
+  }
+
+  /**
+   * a call site and its message, which holds the contexts and the text,
+   * entries never change once added
+   */
+  static final class Entry {
+    final String name;
+    final int line;
+    final boolean keyedOnText;
+    final LogMessage message;
+    final CallSite site;
+    final Entry next;
+
+    Entry(String name, int line, boolean keyedOnText, LogMessage message,
+          CallSite site, Entry next) {
+      this.name = name;
+      this.line = line;
+      this.keyedOnText = keyedOnText;
+      this.message = message;
+      this.site = site;
+      this.next = next;
+    }
+
+    boolean isSite(String name, int line) {
+      return this.line == line
+        && (this.name == name || this.name.equals(name));
+    }
+
+    boolean matches(String name, int line, CharSequence text) {
+      return isSite(name, line)
+        && (text == null ? !keyedOnText
+            : keyedOnText && sameText(message.getMessage(), text));
+    }
+  }
+
+  private static boolean sameText(String message, CharSequence text) {
+    if(message.length() != text.length()) {
+      return false;
+    }
+    for(int i=0; i<message.length(); ++i) {
+      if(message.charAt(i) != text.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private final AtomicReferenceArray<Entry> buckets =
+    new AtomicReferenceArray<Entry>(BUCKETS);
+  private final AtomicInteger size = new AtomicInteger();
+  // the entries taken out by the last drain, by bucket
+  private volatile Entry[] drained = new Entry[BUCKETS];
+
+  private static int index(String name, int line) {
+    int hash = name.hashCode() * 31 + line;
+    hash ^= (hash >>> 16);
+    return hash & (BUCKETS - 1);
+  }
+
+  /**
+   * @return true if the properties, as converted by the client, are the
+   *         contexts regardless of their order
+   */
+  private static boolean sameContexts(Context[] contexts, Map<?,?> properties) {
+    // properties with a null key or value are not contexts, so such maps
+    // never match here, and are matched against the converted contexts in
+    // putIfAbsent instead
+    int count = (properties == null) ? 0 : properties.size();
+    if(contexts == null) {
+      return count == 0;
+    }
+    if(count != contexts.length) {
+      return false;
+    }
+    for(Context context : contexts) {
+      Object value = properties.get(context.getKey());
+      if(value == null || !value.toString().equals(context.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if both hold the same contexts regardless of their order
+   */
+  private static boolean sameContexts(Context[] contexts, Context[] others) {
+    if(contexts == null || others == null) {
+      return contexts == others;
+    }
+    if(contexts.length != others.length) {
+      return false;
+    }
+    for(Context context : contexts) {
+      boolean found = false;
+      for(int i=0; i<others.length && !found; ++i) {
+        found = context.equals(others[i]);
+      }
+      if(!found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param name the name of the call site, not null
+   * @param line the line of the call site
+   * @param contexts the properties given as the contexts of the message,
+   *        may be null
+   * @param text the text of the message if it is keyed on it, or null
+   * @return the entry of the call site with those contexts, or null if
+   *         there is none
+   */
+  Entry get(String name, int line, Map<?,?> contexts, CharSequence text) {
+    for(Entry entry = buckets.get(index(name, line)); entry != null;
+        entry = entry.next) {
+      if(entry.matches(name, line, text)
+         && sameContexts(entry.message.getContexts(), contexts)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the CallSite of an entry of the call site in a chain, or null
+   */
+  private static CallSite findSite(Entry head, String name, int line) {
+    for(Entry entry = head; entry != null; entry = entry.next) {
+      if(entry.isSite(name, line)) {
+        return entry.site;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * adds the message of a call site, unless another thread added one with
+   * the same contexts first
+   * @param name the name of the call site, not null
+   * @param line the line of the call site
+   * @param message the message to add, with its contexts
+   * @param keyedOnText true if the message is keyed on its text as well
+   * @return the entry of the call site and contexts, holding the message
+   *         given if it was added
+   */
+  Entry putIfAbsent(String name, int line, LogMessage message,
+                    boolean keyedOnText) {
+    CharSequence text = keyedOnText ? message.getMessage() : null;
+    AtomicReferenceArray<Entry> table = buckets;
+    int index = index(name, line);
+    while(true) {
+      Entry head = table.get(index);
+      for(Entry entry = head; entry != null; entry = entry.next) {
+        if(entry.matches(name, line, text) && sameContexts(
+               entry.message.getContexts(), message.getContexts())) {
+          return entry;
+        }
+      }
+      CallSite site = findSite(head, name, line);
+      if(site == null) {
+        site = findSite(drained[index], name, line);
+      }
+      if(site == null) {
+        site = new CallSite();
+      }
+      Entry added = new Entry(name, line, keyedOnText, message, site, head);
+      if(table.compareAndSet(index, head, added)) {
+        size.incrementAndGet();
+        return added;
+      }
+    }
+  }
+
+  /**
+   * @return the number of messages
+   */
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * removes all the messages
+   * @return the messages removed, in no particular order
+   */
+  List<LogMessage> drain() {
+    List<LogMessage> messages = new ArrayList<LogMessage>(size.get());
+    Entry[] heads = new Entry[BUCKETS];
+    for(int i=0; i<buckets.length(); ++i) {
+      int removed = 0;
+      heads[i] = buckets.getAndSet(i, null);
+      for(Entry entry = heads[i]; entry != null; entry = entry.next) {
+        messages.add(entry.message);
+        removed++;
+      }
+      size.addAndGet(-removed);
+    }
+    drained = heads;
+    return messages;
+  }
+
+  /**
+   * removes all the messages
+   */
+  void clear() {
+    drain();
+  }
+}
@@ -0,0 +1,52 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand;
+
+/**
+ * The location of a log call known ahead of time, usually generated at build
+ * time for methods annotated with Logged.  Logging through a log site skips
+ * the look up of the caller.
+ */
+public class LogSite {
+  private final String name;
+  private final int line;
+
+  /**
+   * constructor
+   * @param name the name of the call site, usually the filename or class
+   * @param line the line number of the call site
+   */
+  public LogSite(String name, int line) {
+    this.name = name;
+    this.line = line;
+  }
+
+  /**
+   * @return the name of the call site
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the line number of the call site
+   */
+  public int getLine() {
+    return line;
+  }
+
+  @Override
+  public String toString() {
+    return "LogSite [" + name + ":" + line + "]";
+  }
+}
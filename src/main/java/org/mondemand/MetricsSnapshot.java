@@ -0,0 +1,238 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metrics of a flush, taken once and handed to every SnapshotTransport.
+ * The stats come first, followed by the extra stats (min/max/...) of the
+ * samples, already computed and named after the sample key and the
+ * SampleTrackType suffix, as gauges.  The base key of a metric is the
+ * sample key for the extra stats of a sample, the key itself otherwise.
+ * <p>
+ * A snapshot doesn't change once taken, so transports can read it without
+ * locking and from several threads.  The contexts array is shared, it must
+ * not be modified.
+ */
+public final class MetricsSnapshot {
+  private final String programId;
+  private final Context[] contexts;
+  private final String[] keys;
+  private final String[] baseKeys;
+  private final StatType[] types;
+  private final long[] values;
+  private final Integer maxNumMetrics;
+
+  private MetricsSnapshot(String programId, Context[] contexts, String[] keys,
+                          String[] baseKeys, StatType[] types, long[] values,
+                          Integer maxNumMetrics) {
+    this.programId = programId;
+    this.contexts = contexts;
+    this.keys = keys;
+    this.baseKeys = baseKeys;
+    this.types = types;
+    this.values = values;
+    this.maxNumMetrics = maxNumMetrics;
+  }
+
+  /**
+   * Takes a snapshot of stats and samples, the parameters of
+   * Transport.send.  Each message is locked while it is read, and the
+   * samples are sorted in place.
+   * @param programId the program id
+   * @param stats the stats, may be null
+   * @param samples the samples, may be null
+   * @param contexts the contexts
+   * @param maxNumMetrics the maximum number of metrics per event, null for
+   *        the default of the transport
+   * @return the snapshot
+   */
+  public static MetricsSnapshot of(String programId, StatsMessage[] stats,
+                                   SamplesMessage[] samples,
+                                   Context[] contexts, Integer maxNumMetrics) {
+    int size = (stats == null) ? 0 : stats.length;
+    if(samples != null) {
+      for(SamplesMessage msg : samples) {
+        size += trackTypeCount(msg.getTrackingTypeValue());
+      }
+    }
+
+    String[] keys = new String[size];
+    String[] baseKeys = new String[size];
+    StatType[] types = new StatType[size];
+    long[] values = new long[size];
+    int n = 0;
+    if(stats != null) {
+      for(StatsMessage msg : stats) {
+        synchronized(msg) {
+          keys[n] = msg.getKey();
+          baseKeys[n] = keys[n];
+          types[n] = msg.getType();
+          values[n] = msg.getCounter();
+        }
+        n++;
+      }
+    }
+    if(samples != null) {
+      for(SamplesMessage msg : samples) {
+        if(msg.getTrackingTypeValue() <= 0) {
+          continue;
+        }
+        synchronized(msg) {
+          List<Integer> sortedSamples = msg.getSamples();
+          Collections.sort(sortedSamples);
+          for(SampleTrackType trackType : SampleTrackType.values()) {
+            if((msg.getTrackingTypeValue() & trackType.value) == trackType.value) {
+              keys[n] = msg.getKey() + trackType.keySuffix;
+              baseKeys[n] = msg.getKey();
+              types[n] = StatType.Gauge;
+              values[n] = sampleValue(msg, trackType, sortedSamples);
+              n++;
+            }
+          }
+        }
+      }
+    }
+    return new MetricsSnapshot(programId, contexts, keys, baseKeys, types,
+                               values, maxNumMetrics);
+  }
+
+  /**
+   * @param indexes the indexes of the metrics to keep, in the order to keep
+   *        them
+   * @param offset the position of the first index to use
+   * @param count the number of indexes to use
+   * @return a snapshot with some of the metrics of this one, and the same
+   *         program id, contexts and maximum number of metrics per event
+   */
+  public MetricsSnapshot select(int[] indexes, int offset, int count) {
+    String[] keys = new String[count];
+    String[] baseKeys = new String[count];
+    StatType[] types = new StatType[count];
+    long[] values = new long[count];
+    for(int i=0; i<count; ++i) {
+      int index = indexes[offset + i];
+      keys[i] = this.keys[index];
+      baseKeys[i] = this.baseKeys[index];
+      types[i] = this.types[index];
+      values[i] = this.values[index];
+    }
+    return new MetricsSnapshot(programId, contexts, keys, baseKeys, types,
+                               values, maxNumMetrics);
+  }
+
+  private static int trackTypeCount(int trackingTypeValue) {
+    int count = 0;
+    if(trackingTypeValue > 0) {
+      for(SampleTrackType trackType : SampleTrackType.values()) {
+        if((trackingTypeValue & trackType.value) == trackType.value) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * computes the value of an extra stat (min/max/...) of a sample message.
+   *
+   * @param msg - the sample message
+   * @param trackType - the extra stat
+   * @param sortedSamples - the samples of the message, sorted
+   * @return the value of the extra stat
+   */
+  public static long sampleValue(SamplesMessage msg, SampleTrackType trackType,
+                                 List<Integer> sortedSamples) {
+    // default value (in case samples were not updated since last emit)
+    long value = 0;
+    if(sortedSamples.size() > 0) {
+      // values for average, sum and count are not coming from sortedSamples
+      if(trackType.value == SampleTrackType.AVG.value) {
+        value = msg.getCounter()/msg.getUpdateCounts();
+      } else if(trackType.value == SampleTrackType.SUM.value) {
+        value = msg.getCounter();
+      } else if(trackType.value == SampleTrackType.COUNT.value) {
+        value = msg.getUpdateCounts();
+      } else {
+        value = sortedSamples.get((int)( (sortedSamples.size() - 1) * trackType.indexInSamples));
+      }
+    } else {
+      // samples were not updated, i.e., no increment since the last
+      // emit, so send a value of 0
+    }
+    return value;
+  }
+
+  /**
+   * @return the program id
+   */
+  public String getProgramId() {
+    return programId;
+  }
+
+  /**
+   * @return the contexts, which must not be modified
+   */
+  public Context[] getContexts() {
+    return contexts;
+  }
+
+  /**
+   * @return the maximum number of metrics per event, or null for the
+   *         default of the transport
+   */
+  public Integer getMaxNumMetrics() {
+    return maxNumMetrics;
+  }
+
+  /**
+   * @return the number of metrics
+   */
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * @param i the index of the metric, from 0 to size() - 1
+   * @return the key of the metric
+   */
+  public String getKey(int i) {
+    return keys[i];
+  }
+
+  /**
+   * @param i the index of the metric, from 0 to size() - 1
+   * @return the key of the sample the metric is an extra stat of, or the
+   *         key of the metric
+   */
+  public String getBaseKey(int i) {
+    return baseKeys[i];
+  }
+
+  /**
+   * @param i the index of the metric, from 0 to size() - 1
+   * @return the type of the metric
+   */
+  public StatType getType(int i) {
+    return types[i];
+  }
+
+  /**
+   * @param i the index of the metric, from 0 to size() - 1
+   * @return the value of the metric
+   */
+  public long getValue(int i) {
+    return values[i];
+  }
+}
@@ -0,0 +1,65 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand;
+
+/**
+ * A sample key that was validated ahead of time, usually generated at build
+ * time for methods annotated with Timed.  Adding samples through a handle
+ * skips the key look up and validation done by Client.addSample(String, ...).
+ */
+public class SampleHandle {
+  private final String key;
+  private final int trackingTypeValue;
+  private final int samplesMaxCount;
+
+  /**
+   * constructor, the key is trusted to be valid
+   * @param key - sample's key
+   * @param trackingTypeValue - bitwise value, specifies what extra stats
+   *        (min/max/...) should be kept for the samples
+   * @param samplesMaxCount - maximum number of samples to keep, ignored if
+   *        less than or equal to 0.
+   */
+  public SampleHandle(String key, int trackingTypeValue, int samplesMaxCount) {
+    this.key = key;
+    this.trackingTypeValue = trackingTypeValue;
+    this.samplesMaxCount = samplesMaxCount;
+  }
+
+  /**
+   * @return the key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the tracking type value
+   */
+  public int getTrackingTypeValue() {
+    return trackingTypeValue;
+  }
+
+  /**
+   * @return the maximum number of samples to keep
+   */
+  public int getSamplesMaxCount() {
+    return samplesMaxCount;
+  }
+
+  @Override
+  public String toString() {
+    return "SampleHandle [key=" + key + ", trackingTypeValue="
+        + trackingTypeValue + ", samplesMaxCount=" + samplesMaxCount + "]";
+  }
+}
@@ -2,6 +2,7 @@ package org.mondemand;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Random;
 
 /**
@@ -72,6 +73,22 @@ public class SamplesMessage implements Serializable  {
     }
   }
 
+  /**
+   * @return a copy of this message with its samples sorted, which doesn't
+   *         change with it
+   */
+  SamplesMessage copy() {
+    synchronized(this) {
+      SamplesMessage copy = new SamplesMessage(key, trackingTypeValue,
+                                               samplesMaxCount);
+      copy.samples.addAll(samples);
+      Collections.sort(copy.samples);
+      copy.counter = counter;
+      copy.updateCounts = updateCounts;
+      return copy;
+    }
+  }
+
   /**
    * this method should be called after emission of this object
    */
@@ -0,0 +1,27 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand;
+
+/**
+ * A transport taking the stats and samples of a flush as a MetricsSnapshot,
+ * which the client takes once for all such transports, instead of the
+ * messages themselves.  The client only calls the snapshot method, the
+ * send method of Transport is left for other callers, usually implemented
+ * as:
+ * <pre>
+ *   send(MetricsSnapshot.of(programId, stats, samples, contexts,
+ *                           maxNumMetrics));
+ * </pre>
+ */
+public interface SnapshotTransport extends Transport {
+  public void send(MetricsSnapshot snapshot) throws TransportException;
+}
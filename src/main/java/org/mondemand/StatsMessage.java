@@ -22,6 +22,7 @@ public class StatsMessage implements Serializable {
   private String key = null;
   private StatType type = StatType.Unknown;
   private long counter = 0;
+  private boolean changed = true;   // if the counter changed since last emit
 
   /**
    * constructor
@@ -64,6 +65,9 @@ public class StatsMessage implements Serializable {
     // thread is sending this instance's stats
     synchronized(this) {
       counter += value;
+      if(value != 0) {
+        changed = true;
+      }
     }
   }
 
@@ -71,7 +75,27 @@ public class StatsMessage implements Serializable {
    * @param counter the counter to set
    */
   public void setCounter(long counter) {
-    this.counter = counter;
+    // as incrementBy, so a flush doesn't clear the changed flag of a value
+    // it didn't send
+    synchronized(this) {
+      if(this.counter != counter) {
+        changed = true;
+      }
+      this.counter = counter;
+    }
+  }
+
+  /**
+   * checks if the counter has changed since the last call, and marks it as
+   * unchanged.  a newly created counter is considered changed.
+   * @return true if the counter has changed since the last call
+   */
+  public boolean testAndClearChanged() {
+    synchronized(this) {
+      boolean wasChanged = changed;
+      changed = false;
+      return wasChanged;
+    }
   }
 
   /**
@@ -89,6 +113,17 @@ public class StatsMessage implements Serializable {
     this.type = type;
   }
 
+  /**
+   * @return a copy of this message, which doesn't change with it
+   */
+  StatsMessage copy() {
+    synchronized(this) {
+      StatsMessage copy = new StatsMessage(key, type);
+      copy.counter = counter;
+      return copy;
+    }
+  }
+
   public String toString() {
     return type + " : " + key + " : " + counter;
   }
@@ -0,0 +1,99 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sends of each transport on a thread of its own, so a slow
+ * transport doesn't delay the other ones.  The sends to a given transport
+ * still happen one at a time and in order.  Each transport has a bounded
+ * number of pending sends, a transport that falls further behind has its
+ * sends rejected.  A flush of the client hands each transport one send for
+ * its stats and one for all its context stats, so the queue holds a couple
+ * of flushes whatever the number of contexts.
+ */
+class TransportFanOut {
+  static final int QUEUE_SIZE = 4;
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r,
+          "mondemand-dispatch-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  private final ConcurrentHashMap<Transport, ExecutorService> lanes =
+    new ConcurrentHashMap<Transport, ExecutorService>();
+  private volatile boolean shutdown = false;
+
+  /**
+   * runs a send on the thread of a transport
+   * @param transport the transport the task sends to
+   * @param task the send
+   * @throws RejectedExecutionException if the transport has too many
+   *         pending sends, or the fan out is shut down
+   */
+  void execute(Transport transport, Runnable task) {
+    ExecutorService lane = lanes.get(transport);
+    if(lane == null) {
+      if(shutdown) {
+        throw new RejectedExecutionException("dispatch is shut down");
+      }
+      lane = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), THREAD_FACTORY);
+      ExecutorService existing = lanes.putIfAbsent(transport, lane);
+      if(existing != null) {
+        lane.shutdown();
+        lane = existing;
+      }
+    }
+    lane.execute(task);
+  }
+
+  /**
+   * stops the threads once the pending sends are done, waiting for them at
+   * most the given time
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if all the pending sends were done
+   */
+  boolean shutdown(long timeout) {
+    shutdown = true;
+    for(ExecutorService lane : lanes.values()) {
+      lane.shutdown();
+    }
+    long deadline = System.currentTimeMillis() + timeout;
+    boolean done = true;
+    for(ExecutorService lane : lanes.values()) {
+      try {
+        done &= lane.awaitTermination(
+            Math.max(0, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return done;
+  }
+}
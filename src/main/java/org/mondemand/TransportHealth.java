@@ -0,0 +1,126 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand;
+
+/**
+ * Tracks the failures of a transport, as a circuit breaker.  After a number
+ * of failures in a row the transport is skipped for a backoff period, then
+ * a single send is let through to probe it.  A failed probe doubles the
+ * backoff, up to a maximum, and a successful one closes the breaker.
+ * <p>
+ * While the transport is skipped its failures are not reported one by one,
+ * each failed probe reports a summary of the period instead.  Each allowed
+ * send must be followed by a success or a failure, whatever the send
+ * throws, as the transport stays skipped until its probe ends.
+ */
+class TransportHealth {
+  private final int failureThreshold;
+  private final long initialBackoff;
+  private final long maxBackoff;
+
+  private volatile boolean failing = false;  // fast path for healthy transports
+  private int consecutiveFailures = 0;
+  private long openUntil = 0;                // 0 while the breaker is closed
+  private long backoff = 0;
+  private boolean probing = false;
+  private int failures = 0;                  // since the last report
+  private int skipped = 0;                   // since the last report
+
+  /**
+   * @param failureThreshold the number of failures in a row that open the
+   *        breaker, 0 or less to never open it
+   * @param initialBackoff the first backoff period in milliseconds
+   * @param maxBackoff the longest backoff period in milliseconds
+   */
+  TransportHealth(int failureThreshold, long initialBackoff, long maxBackoff) {
+    this.failureThreshold = failureThreshold;
+    this.initialBackoff = Math.max(1, initialBackoff);
+    this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+  }
+
+  /**
+   * @param now the current time in milliseconds
+   * @return true if a send can be made, false if the transport is skipped
+   */
+  boolean allow(long now) {
+    if(!failing) {
+      return true;
+    }
+    synchronized(this) {
+      if(openUntil == 0) {
+        return true;
+      }
+      if(probing || now < openUntil) {
+        skipped++;
+        return false;
+      }
+      probing = true;
+      return true;
+    }
+  }
+
+  /**
+   * records a successful send
+   * @return true if the transport recovered from a backoff
+   */
+  boolean success() {
+    if(!failing) {
+      return false;
+    }
+    synchronized(this) {
+      boolean recovered = (openUntil != 0);
+      failing = false;
+      consecutiveFailures = 0;
+      openUntil = 0;
+      backoff = 0;
+      probing = false;
+      failures = 0;
+      skipped = 0;
+      return recovered;
+    }
+  }
+
+  /**
+   * records a failed send
+   * @param now the current time in milliseconds
+   * @param error the description of the error
+   * @return the error to report, or null if it is part of a summary to come
+   */
+  synchronized String failure(long now, String error) {
+    failing = true;
+    if(openUntil == 0) {
+      consecutiveFailures++;
+      if(failureThreshold <= 0 || consecutiveFailures < failureThreshold) {
+        return error;
+      }
+      backoff = initialBackoff;
+      openUntil = now + backoff;
+      return error + ", failed " + consecutiveFailures
+        + " times in a row, skipping the transport for " + backoff + " ms";
+    }
+
+    failures++;
+    if(!probing) {
+      // a send started before the breaker opened
+      return null;
+    }
+    probing = false;
+    backoff = Math.min(backoff * 2, maxBackoff);
+    openUntil = now + backoff;
+    String summary = error + ", failed " + failures + " more times and "
+      + skipped + " sends were skipped, skipping the transport for "
+      + backoff + " ms";
+    failures = 0;
+    skipped = 0;
+    return summary;
+  }
+}
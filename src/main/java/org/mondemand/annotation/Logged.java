@@ -0,0 +1,36 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method that logs messages.  At build time a LogSite with the
+ * class name is generated in the <code>&lt;Class&gt;_MonDemand</code> class
+ * as <code>&lt;method&gt;Logged</code>, to be passed to Client.log().  Other
+ * log sites are generated for the other constants ending in Logged that the
+ * method refers to as <code>&lt;Class&gt;_MonDemand.&lt;name&gt;Logged</code>,
+ * so that each log call of the method can have its own.
+ * <p>
+ * The line of a log site is the line where the method refers to it, or the
+ * first line of the body of the method if it doesn't refer to it that way.
+ * The class name is the one of the default keys of Counted and Timed, with
+ * nested classes separated by '.'.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Logged {
+}
@@ -0,0 +1,49 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.mondemand.SampleTrackType;
+
+/**
+ * Marks a method whose timings are sampled.  At build time a SampleHandle
+ * with the key and tracking types is generated in the
+ * <code>&lt;Class&gt;_MonDemand</code> class as <code>&lt;method&gt;Timed</code>,
+ * to be passed to Client.addSample().
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Timed {
+  /**
+   * @return the key of the samples, defaults to
+   *         <code>&lt;class name&gt;.&lt;method name&gt;</code>
+   */
+  String key() default "";
+
+  /**
+   * @return the extra stats to keep for the samples
+   */
+  SampleTrackType[] track() default { SampleTrackType.AVG,
+                                      SampleTrackType.MAX,
+                                      SampleTrackType.PCTL_95 };
+
+  /**
+   * @return the maximum number of samples to keep, the default maximum is
+   *         used if less than or equal to 0
+   */
+  int samplesMaxCount() default 0;
+}
@@ -0,0 +1,530 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.annotation.processing;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.mondemand.Client;
+import org.mondemand.SampleTrackType;
+import org.mondemand.annotation.Counted;
+import org.mondemand.annotation.Logged;
+import org.mondemand.annotation.Timed;
+
+/**
+ * Generates, for each class with methods annotated with Counted, Timed or
+ * Logged, a <code>&lt;Class&gt;_MonDemand</code> class in the same package
+ * holding static CounterHandle, SampleHandle and LogSite constants.  Keys are
+ * validated at build time and log sites carry the line number of the log
+ * call using them, so using the constants does not require any stack
+ * inspection or key validation at runtime.
+ * <p>
+ * The processor is not registered in the mondemand-java jar, so that it
+ * doesn't run in every build with mondemand on the classpath.  Builds using
+ * the annotations add the jar with the <code>processor</code> classifier,
+ * which registers it, to their processor path.
+ */
+@SupportedAnnotationTypes({ "org.mondemand.annotation.Counted",
+                            "org.mondemand.annotation.Timed",
+                            "org.mondemand.annotation.Logged" })
+public class MonDemandProcessor extends AbstractProcessor {
+  private static final String CLASS_SUFFIX = "_MonDemand";
+  private static final String LOGGED_SUFFIX = "Logged";
+
+  private LineLocator lineLocator = null;
+
+  @Override
+  public synchronized void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    try {
+      lineLocator = new LineLocator(processingEnv);
+    } catch(Exception e) {
+      // not running in javac, log sites will have a line number of 0
+      lineLocator = null;
+    }
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations,
+                         RoundEnvironment roundEnv) {
+    // collect the constants of each class, keeping the source order
+    Map<TypeElement, List<String>> constants =
+      new LinkedHashMap<TypeElement, List<String>>();
+    Map<TypeElement, Set<String>> names =
+      new LinkedHashMap<TypeElement, Set<String>>();
+
+    for (Element method : roundEnv.getElementsAnnotatedWith(Counted.class)) {
+      String key = method.getAnnotation(Counted.class).key();
+      key = defaultKey(method, key);
+      if (checkKey(method, key)) {
+        addConstant(constants, names, method,
+            constantName(names, method, "Counted"),
+            "org.mondemand.CounterHandle", "\"" + key + "\"");
+      }
+    }
+
+    for (Element method : roundEnv.getElementsAnnotatedWith(Timed.class)) {
+      Timed timed = method.getAnnotation(Timed.class);
+      String key = defaultKey(method, timed.key());
+      int trackingTypeValue = 0;
+      for (SampleTrackType trackType : timed.track()) {
+        trackingTypeValue |= trackType.value;
+      }
+      if (checkKey(method, key)) {
+        addConstant(constants, names, method,
+            constantName(names, method, "Timed"),
+            "org.mondemand.SampleHandle", "\"" + key + "\", "
+            + trackingTypeValue + ", " + timed.samplesMaxCount());
+      }
+    }
+
+    // the log sites named after their method first, then the other log
+    // sites the log calls of the methods refer to
+    Map<Element, Map<String, List<Long>>> references =
+      new LinkedHashMap<Element, Map<String, List<Long>>>();
+    for (Element method : roundEnv.getElementsAnnotatedWith(Logged.class)) {
+      TypeElement type = (TypeElement) method.getEnclosingElement();
+      Map<String, List<Long>> lines = referencesOf(method, generatedName(type));
+      references.put(method, lines);
+      String constant = constantName(names, method, LOGGED_SUFFIX);
+      List<Long> calls = lines.get(constant);
+      addConstant(constants, names, method, constant, "org.mondemand.LogSite",
+          "\"" + siteName(type) + "\", "
+          + (calls == null ? lineOf(method) : firstCall(method, constant, calls)));
+    }
+    for (Map.Entry<Element, Map<String, List<Long>>> entry
+           : references.entrySet()) {
+      Element method = entry.getKey();
+      TypeElement type = (TypeElement) method.getEnclosingElement();
+      for (Map.Entry<String, List<Long>> site : entry.getValue().entrySet()) {
+        String constant = site.getKey();
+        if (!constant.endsWith(LOGGED_SUFFIX)
+            || (names.containsKey(type) && names.get(type).contains(constant))) {
+          continue;
+        }
+        addConstant(constants, names, method, constant, "org.mondemand.LogSite",
+            "\"" + siteName(type) + "\", "
+            + firstCall(method, constant, site.getValue()));
+      }
+    }
+
+    for (Map.Entry<TypeElement, List<String>> entry : constants.entrySet()) {
+      writeClass(entry.getKey(), entry.getValue());
+    }
+
+    return true;
+  }
+
+  /**
+   * @return the key, or &lt;class name&gt;.&lt;method name&gt; if empty
+   */
+  private String defaultKey(Element method, String key) {
+    if (key.length() > 0) {
+      return key;
+    }
+    TypeElement type = (TypeElement) method.getEnclosingElement();
+    return className(type) + "." + method.getSimpleName();
+  }
+
+  /**
+   * @return the name of a class in keys, its binary name with the nested
+   *         classes separated by '.', as '$' is not valid in keys
+   */
+  private String className(TypeElement type) {
+    return siteName(type).replace('$', '.');
+  }
+
+  /**
+   * @return the name of a class in log sites, its binary name as the client
+   *         names the call sites found on the stack
+   */
+  private String siteName(TypeElement type) {
+    return processingEnv.getElementUtils().getBinaryName(type).toString();
+  }
+
+  /**
+   * @return the line of the log call using a log site, warning if several
+   *         log calls use it as they are counted as one call site
+   */
+  private long firstCall(Element method, String constant, List<Long> calls) {
+    if (calls.size() > 1) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+          constant + " is used by the log calls of lines " + calls
+          + ", they are counted as the call of line " + calls.get(0), method);
+    }
+    return calls.get(0);
+  }
+
+  /**
+   * reports an error if the key is not a valid mondemand key
+   */
+  private boolean checkKey(Element method, String key) {
+    if (!Client.isKeyValid(key)) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "key is invalid: " + key, method);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the name of the constant of a method, overloaded methods get a
+   *         numbered constant
+   */
+  private static String constantName(Map<TypeElement, Set<String>> names,
+                                     Element method, String suffix) {
+    Set<String> taken = names.get(method.getEnclosingElement());
+    String name = method.getSimpleName() + suffix;
+    for (int i = 2; taken != null && taken.contains(name); ++i) {
+      name = method.getSimpleName() + suffix + "_" + i;
+    }
+    return name;
+  }
+
+  private void addConstant(Map<TypeElement, List<String>> constants,
+                           Map<TypeElement, Set<String>> names,
+                           Element method, String name, String type,
+                           String arguments) {
+    TypeElement enclosing = (TypeElement) method.getEnclosingElement();
+    if (!constants.containsKey(enclosing)) {
+      constants.put(enclosing, new ArrayList<String>());
+      names.put(enclosing, new HashSet<String>());
+    }
+    names.get(enclosing).add(name);
+
+    constants.get(enclosing).add("  public static final " + type + " " + name
+        + " =\n      new " + type + "(" + arguments + ");");
+  }
+
+  private void writeClass(TypeElement type, List<String> constants) {
+    String packageName = packageOf(type);
+    String className = generatedName(type);
+    String qualifiedName = packageName.length() == 0 ?
+        className : packageName + "." + className;
+
+    try {
+      JavaFileObject file =
+        processingEnv.getFiler().createSourceFile(qualifiedName, type);
+      PrintWriter out = new PrintWriter(file.openWriter());
+      try {
+        if (packageName.length() > 0) {
+          out.println("package " + packageName + ";");
+          out.println();
+        }
+        out.println("/**");
+        out.println(" * MonDemand handles of " + type.getQualifiedName() + ",");
+        out.println(" * generated by " + getClass().getName() + ".");
+        out.println(" */");
+        out.println("public final class " + className + " {");
+        for (String constant : constants) {
+          out.println(constant);
+        }
+        out.println();
+        out.println("  private " + className + "() {");
+        out.println("  }");
+        out.println("}");
+      } finally {
+        out.close();
+      }
+    } catch(IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "unable to write " + qualifiedName + ": " + e.getMessage(), type);
+    }
+  }
+
+  private static String packageOf(Element element) {
+    while (element.getKind() != ElementKind.PACKAGE) {
+      element = element.getEnclosingElement();
+    }
+    return ((PackageElement) element).getQualifiedName().toString();
+  }
+
+  /**
+   * @return the name of the generated class, nested classes are flattened
+   *         as in Outer_Inner_MonDemand
+   */
+  private static String generatedName(TypeElement type) {
+    String name = type.getSimpleName().toString();
+    Element enclosing = type.getEnclosingElement();
+    while (enclosing.getKind() != ElementKind.PACKAGE) {
+      name = enclosing.getSimpleName() + "_" + name;
+      enclosing = enclosing.getEnclosingElement();
+    }
+    return name + CLASS_SUFFIX;
+  }
+
+  private long lineOf(Element element) {
+    if (lineLocator != null) {
+      try {
+        return lineLocator.lineOf(element);
+      } catch(Exception e) {
+        // fall through
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the lines of the references to the constants of the generated
+   *         class in the body of a method, by constant, empty if the source
+   *         is not available
+   */
+  private Map<String, List<Long>> referencesOf(Element method,
+                                               String generatedName) {
+    if (lineLocator != null) {
+      try {
+        return lineLocator.referencesOf(method, generatedName);
+      } catch(Exception e) {
+        // fall through
+      }
+    }
+    return new LinkedHashMap<String, List<Long>>();
+  }
+
+  /**
+   * finds the line number of an element, and of the references in its
+   * source, through javac's tree API, which is accessed by reflection as it
+   * is not part of the JDK's runtime classes on every JVM.
+   */
+  static class LineLocator {
+    private final Object trees;
+    private final Class<?> treeClass;
+    private final Method getPath;
+    private final Method getSourcePositions;
+    private final Method getCompilationUnit;
+    private final Method getLeaf;
+    private final Method getBody;
+    private final Method getStartPosition;
+    private final Method getLineMap;
+    private final Method getLineNumber;
+    private final Method getKind;
+    private final Method getExpression;
+    private final Method getIdentifier;
+    private final Method getName;
+    private final Method getArguments;
+    // the getters of the children of each kind of tree
+    private final Map<Class<?>, List<Method>> children =
+      new HashMap<Class<?>, List<Method>>();
+
+    LineLocator(ProcessingEnvironment env) throws Exception {
+      ClassLoader loader = env.getClass().getClassLoader();
+      Class<?> treesClass = Class.forName("com.sun.source.util.Trees", true, loader);
+      Class<?> treePathClass = Class.forName("com.sun.source.util.TreePath", true, loader);
+      Class<?> positionsClass = Class.forName("com.sun.source.util.SourcePositions", true, loader);
+      Class<?> unitClass = Class.forName("com.sun.source.tree.CompilationUnitTree", true, loader);
+      treeClass = Class.forName("com.sun.source.tree.Tree", true, loader);
+      Class<?> lineMapClass = Class.forName("com.sun.source.tree.LineMap", true, loader);
+      Class<?> methodClass = Class.forName("com.sun.source.tree.MethodTree", true, loader);
+      Class<?> selectClass = Class.forName("com.sun.source.tree.MemberSelectTree", true, loader);
+      Class<?> identifierClass = Class.forName("com.sun.source.tree.IdentifierTree", true, loader);
+      Class<?> invocationClass = Class.forName("com.sun.source.tree.MethodInvocationTree", true, loader);
+
+      trees = treesClass.getMethod("instance", ProcessingEnvironment.class)
+                        .invoke(null, env);
+      getPath = treesClass.getMethod("getPath", Element.class);
+      getSourcePositions = treesClass.getMethod("getSourcePositions");
+      getCompilationUnit = treePathClass.getMethod("getCompilationUnit");
+      getLeaf = treePathClass.getMethod("getLeaf");
+      getBody = methodClass.getMethod("getBody");
+      getStartPosition =
+        positionsClass.getMethod("getStartPosition", unitClass, treeClass);
+      getLineMap = unitClass.getMethod("getLineMap");
+      getLineNumber = lineMapClass.getMethod("getLineNumber", long.class);
+      getKind = treeClass.getMethod("getKind");
+      getExpression = selectClass.getMethod("getExpression");
+      getIdentifier = selectClass.getMethod("getIdentifier");
+      getName = identifierClass.getMethod("getName");
+      getArguments = invocationClass.getMethod("getArguments");
+    }
+
+    long lineOf(Element element) throws Exception {
+      Object path = getPath.invoke(trees, element);
+      if (path == null) {
+        return 0;
+      }
+      Object unit = getCompilationUnit.invoke(path);
+      Object positions = getSourcePositions.invoke(trees);
+      // use the start of the body rather than of the annotations
+      Object tree = body(getLeaf.invoke(path));
+      long position = (Long) getStartPosition.invoke(positions, unit, tree);
+      return (Long) getLineNumber.invoke(getLineMap.invoke(unit), position);
+    }
+
+    /**
+     * finds the references such as <code>Name.constant</code> in the body
+     * of a method, with the line of the method call they are an argument
+     * of, the log call, or their own line if they are not an argument
+     */
+    Map<String, List<Long>> referencesOf(Element method, String name)
+      throws Exception
+    {
+      Map<String, List<Long>> references =
+        new LinkedHashMap<String, List<Long>>();
+      Object path = getPath.invoke(trees, method);
+      if (path == null) {
+        return references;
+      }
+      Object unit = getCompilationUnit.invoke(path);
+      Object positions = getSourcePositions.invoke(trees);
+      Object lineMap = getLineMap.invoke(unit);
+
+      // the positions and constants of the calls, sorted to keep the source
+      // order, as the children of a tree are not visited in that order
+      List<Object[]> found = new ArrayList<Object[]>();
+      scan(body(getLeaf.invoke(path)), null, name, unit, positions, found,
+           new IdentityHashMap<Object, Boolean>());
+      Collections.sort(found, new Comparator<Object[]>() {
+        @Override
+        public int compare(Object[] a, Object[] b) {
+          return ((Long) a[0]).compareTo((Long) b[0]);
+        }
+      });
+      for (Object[] reference : found) {
+        String constant = (String) reference[1];
+        List<Long> lines = references.get(constant);
+        if (lines == null) {
+          lines = new ArrayList<Long>();
+          references.put(constant, lines);
+        }
+        lines.add((Long) getLineNumber.invoke(lineMap, reference[0]));
+      }
+      return references;
+    }
+
+    /**
+     * visits a tree and its children, recording the position of the call
+     * of each reference to a constant of the generated class
+     * @param call the method call the tree is an argument of, or null
+     */
+    private void scan(Object tree, Object call, String name, Object unit,
+                      Object positions, List<Object[]> found,
+                      Map<Object, Boolean> seen) throws Exception {
+      if (tree == null || seen.put(tree, Boolean.TRUE) != null) {
+        return;
+      }
+      String kind = getKind.invoke(tree).toString();
+      if (kind.equals("MEMBER_SELECT") && isGenerated(getExpression.invoke(tree), name)) {
+        Object position = getStartPosition.invoke(positions, unit,
+            call != null ? call : tree);
+        found.add(new Object[] { position, getIdentifier.invoke(tree).toString() });
+        return;
+      }
+      List<?> arguments = kind.equals("METHOD_INVOCATION") ?
+        (List<?>) getArguments.invoke(tree) : null;
+      for (Method getter : childGetters(tree.getClass())) {
+        Object child = getter.invoke(tree);
+        if (child instanceof List) {
+          for (Object element : (List<?>) child) {
+            if (treeClass.isInstance(element)) {
+              scan(element, child == arguments ? tree : null, name, unit,
+                   positions, found, seen);
+            }
+          }
+        } else if (treeClass.isInstance(child)) {
+          scan(child, null, name, unit, positions, found, seen);
+        }
+      }
+    }
+
+    /**
+     * @return true if the expression names the generated class, alone or
+     *         qualified with its package
+     */
+    private boolean isGenerated(Object expression, String name) throws Exception {
+      String kind = getKind.invoke(expression).toString();
+      if (kind.equals("IDENTIFIER")) {
+        return getName.invoke(expression).toString().equals(name);
+      }
+      return kind.equals("MEMBER_SELECT")
+        && getIdentifier.invoke(expression).toString().equals(name);
+    }
+
+    /**
+     * @return the getters of the com.sun.source.tree interfaces of a tree
+     *         class which return a tree or a list of trees
+     */
+    private List<Method> childGetters(Class<?> type) {
+      List<Method> getters = children.get(type);
+      if (getters != null) {
+        return getters;
+      }
+      getters = new ArrayList<Method>();
+      Set<String> names = new HashSet<String>();
+      for (Class<?> face : interfaces(type, new ArrayList<Class<?>>())) {
+        if (!treeClass.isAssignableFrom(face)) {
+          continue;
+        }
+        for (Method method : face.getMethods()) {
+          Class<?> returned = method.getReturnType();
+          if (method.getParameterTypes().length == 0
+              && (treeClass.isAssignableFrom(returned)
+                  || List.class.isAssignableFrom(returned))
+              && names.add(method.getName())) {
+            getters.add(method);
+          }
+        }
+      }
+      children.put(type, getters);
+      return getters;
+    }
+
+    private static List<Class<?>> interfaces(Class<?> type,
+                                             List<Class<?>> found) {
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        for (Class<?> face : c.getInterfaces()) {
+          if (!found.contains(face)) {
+            found.add(face);
+            interfaces(face, found);
+          }
+        }
+      }
+      return found;
+    }
+
+    private Object body(Object tree) throws Exception {
+      if (getBody.getDeclaringClass().isInstance(tree)
+          && getBody.invoke(tree) != null) {
+        return getBody.invoke(tree);
+      }
+      return tree;
+    }
+  }
+}
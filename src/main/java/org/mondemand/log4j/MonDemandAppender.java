@@ -17,16 +17,19 @@ import org.mondemand.transport.LWESTransport;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.LocationInfo;
 
 import java.net.InetAddress;
-import java.util.Map;
-import java.util.Iterator;
 
 /**
  * This is a log4j appender that uses the MonDemand API and
  * is configured with the LWES transport.
+ * <p>
+ * The properties of an event are sent as contexts of its message only, the
+ * contexts of the client are left alone.  As the client can log from many
+ * threads at once, events are appended without holding the appender's lock.
  * @author Michael Lum
  */
 public class MonDemandAppender extends AppenderSkeleton {
@@ -153,6 +156,7 @@ public class MonDemandAppender extends AppenderSkeleton {
 
   public void close() 
   {
+    this.closed = true;
     client.flush();
   }
 
@@ -173,27 +177,40 @@ public class MonDemandAppender extends AppenderSkeleton {
     }
   }
 
+  /*
+   * Same as AppenderSkeleton.doAppend, without synchronizing on the appender
+   * since append is thread-safe.
+   */
+  @Override
+  public void doAppend(LoggingEvent event) {
+    if(closed) {
+      return;
+    }
+    if(!isAsSevereAsThreshold(event.getLevel())) {
+      return;
+    }
+
+    for(Filter f = getFirstFilter(); f != null; f = f.getNext()) {
+      int decision = f.decide(event);
+      if(decision == Filter.DENY) {
+        return;
+      } else if(decision == Filter.ACCEPT) {
+        break;
+      }
+    }
+
+    append(event);
+  }
+
   /* The append method is called by log4j when this appender is configured by the client. */
   protected void append(LoggingEvent event) {
     try {
       LocationInfo info = event.getLocationInformation();
 
-      // determine our context values
-      Map<?,?> properties = event.getProperties();
-      Iterator<?> iterator = properties.entrySet().iterator();
-      while(iterator.hasNext()) {
-        Map.Entry<?,?> entry = (Map.Entry<?,?>) iterator.next();
-        String key = (String) entry.getKey();
-        String value = (String) entry.getValue();
-        client.addContext(key, value);
-      }
-
-      // Log the message
+      // Log the message, the properties go with the message as its contexts
       client.log(info.getFileName(), Integer.parseInt(info.getLineNumber()),
-          getMonDemandLevel(event.getLevel()), null, event.getRenderedMessage(), null);
-
-      // clear the contexts, since the NDC will vary with each call
-      client.removeAllContexts();
+          getMonDemandLevel(event.getLevel()), null, event.getRenderedMessage(),
+          null, event.getProperties());
     } catch(Exception ex) {
       errorHandler.error("Unable to call MonDemandAppender", ex, 1);
     }
@@ -0,0 +1,507 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.prometheus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.mondemand.Client;
+import org.mondemand.Context;
+import org.mondemand.ContextList;
+import org.mondemand.SampleTrackType;
+import org.mondemand.SamplesMessage;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.AtomicLongMap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the live stats of a client in the Prometheus text format, for the
+ * applications whose metrics are scraped rather than pushed:
+ * <pre>
+ *   PrometheusEndpoint endpoint = new PrometheusEndpoint(client);
+ *   endpoint.start(new InetSocketAddress(9102));
+ * </pre>
+ * The stats are labeled with the program id and the contexts of the
+ * client, the context stats with their own contexts as well.  The extra
+ * stats of the samples are gauges named after the sample key and the
+ * SampleTrackType suffix, like the stats the transports send; they cover
+ * the samples added since the last flush.
+ * <p>
+ * A context stat labeled with the same name as a context of the client
+ * keeps its own value for it.
+ * <p>
+ * A scrape iterates over the maps of the client without copying them and
+ * reads the counters without locking them, so it never holds up an
+ * increment.  Only the samples of each sample message are copied, under
+ * its lock, to be sorted.  Each scrape thread renders into buffers of its
+ * own which are reused from one scrape to the next, so concurrent scrapes
+ * don't wait for each other, and the text is encoded and written to the
+ * response as it is rendered, a chunk at a time.
+ */
+public class PrometheusEndpoint implements HttpHandler {
+  public static final String CONTENT_TYPE =
+    "text/plain; version=0.0.4; charset=utf-8";
+  public static final String PATH = "/metrics";
+  public static final int DEFAULT_THREADS = 2;
+
+  // the number of characters rendered before they are written out
+  private static final int CHUNK = 4096;
+
+  /**
+   * the buffers of a scrape thread
+   */
+  private static class Scrape {
+    final StringBuilder text = new StringBuilder(2 * CHUNK);
+    final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final ByteBuffer bytes = ByteBuffer.allocate(2 * CHUNK);
+    int[] samples = new int[SamplesMessage.MAX_SAMPLES_COUNT];
+    // the names whose type was rendered
+    final Set<String> names = new HashSet<String>();
+    // the label names of a context list
+    final Set<String> labelNames = new HashSet<String>();
+    // the labels of the client, then of each context list
+    StringBuilder[] labels = new StringBuilder[16];
+    // the context stats chained by key: the first and last index of the
+    // stats of each key, and the context list, value and next index of
+    // each stat
+    final Map<String, int[]> chains = new LinkedHashMap<String, int[]>();
+    int[] lists = new int[64];
+    long[] values = new long[64];
+    int[] next = new int[64];
+
+    /**
+     * @return the emptied labels of a context list, 0 for the client
+     */
+    StringBuilder labels(int list) {
+      if (list >= labels.length) {
+        labels = Arrays.copyOf(labels, 2 * list);
+      }
+      if (labels[list] == null) {
+        labels[list] = new StringBuilder();
+      }
+      labels[list].setLength(0);
+      return labels[list];
+    }
+
+    void add(int index, String key, int list, long value) {
+      if (index >= lists.length) {
+        lists = Arrays.copyOf(lists, 2 * index);
+        values = Arrays.copyOf(values, 2 * index);
+        next = Arrays.copyOf(next, 2 * index);
+      }
+      lists[index] = list;
+      values[index] = value;
+      next[index] = -1;
+      int[] chain = chains.get(key);
+      if (chain == null) {
+        chains.put(key, new int[] { index, index });
+      } else {
+        next[chain[1]] = index;
+        chain[1] = index;
+      }
+    }
+  }
+
+  private final Client client;
+  private final ThreadLocal<Scrape> scrapes = new ThreadLocal<Scrape>() {
+    @Override
+    protected Scrape initialValue() {
+      return new Scrape();
+    }
+  };
+  private HttpServer server = null;
+  private ExecutorService executor = null;
+
+  /**
+   * @param client the client whose stats are served
+   */
+  public PrometheusEndpoint(Client client) {
+    this.client = client;
+  }
+
+  /**
+   * Starts serving the stats on PATH, with the default number of threads.
+   * @param address the address and port to listen on
+   * @throws IOException if the address cannot be bound
+   */
+  public void start(InetSocketAddress address) throws IOException {
+    start(address, DEFAULT_THREADS);
+  }
+
+  /**
+   * Starts serving the stats on PATH.
+   * @param address the address and port to listen on
+   * @param threads the number of scrapes served at the same time
+   * @throws IOException if the address cannot be bound
+   */
+  public synchronized void start(InetSocketAddress address, int threads)
+    throws IOException
+  {
+    if (server != null) {
+      throw new IllegalStateException("endpoint already started");
+    }
+    server = HttpServer.create(address, 0);
+    server.createContext(PATH, this);
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "mondemand-prometheus");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * @return the port the endpoint listens on
+   */
+  public synchronized int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * stops serving the stats, without waiting for the scrapes in progress
+   */
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      executor.shutdown();
+      server = null;
+      executor = null;
+    }
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      if ("HEAD".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      // the length is not known before the end, the body is chunked
+      exchange.sendResponseHeaders(200, 0);
+      Scrape scrape = scrapes.get();
+      scrape.text.setLength(0);
+      scrape.bytes.clear();
+      scrape.encoder.reset();
+      OutputStream body = exchange.getResponseBody();
+      render(scrape.text, scrape, body);
+      body.flush();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * encodes the text rendered so far into the byte buffer, writing the
+   * buffer out each time it is full
+   * @param end true to encode and write out everything left
+   */
+  private static void write(StringBuilder text, Scrape scrape,
+                            OutputStream stream, boolean end)
+    throws IOException
+  {
+    CharBuffer chars = CharBuffer.wrap(text);
+    while (true) {
+      CoderResult result = scrape.encoder.encode(chars, scrape.bytes, end);
+      if (end && !result.isOverflow()) {
+        result = scrape.encoder.flush(scrape.bytes);
+      }
+      if (!result.isOverflow()) {
+        break;
+      }
+      stream.write(scrape.bytes.array(), 0, scrape.bytes.position());
+      scrape.bytes.clear();
+    }
+    if (end) {
+      stream.write(scrape.bytes.array(), 0, scrape.bytes.position());
+      scrape.bytes.clear();
+    }
+    // keeps the high surrogate of a pair split across chunks
+    text.delete(0, chars.position());
+  }
+
+  /**
+   * renders the stats of the client in the Prometheus text format
+   * @param out the text to append to
+   */
+  public void render(StringBuilder out) {
+    try {
+      render(out, scrapes.get(), null);
+    } catch(IOException e) {
+      // not thrown without a stream
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param stream the stream the text is written to as it is rendered, or
+   *        null to keep it all in out
+   */
+  private void render(StringBuilder out, Scrape scrape, OutputStream stream)
+    throws IOException
+  {
+    StringBuilder labels = scrape.labels(0);
+    clientLabels(labels, null);
+    chainContextStats(scrape);
+    Set<String> names = scrape.names;
+    names.clear();
+
+    // the context stats of a key are rendered with the stat of that key
+    Map<String, StatsMessage> stats = client.getStats();
+    for (StatsMessage stat : stats.values()) {
+      String key = stat.getKey();
+      type(out, names, key, stat.getType() == StatType.Counter ? "counter" : "gauge");
+      series(out, key, labels, stat.getCounter());
+      contextSeries(out, key, scrape.chains.get(key), scrape);
+      if (stream != null && out.length() >= CHUNK) {
+        write(out, scrape, stream, false);
+      }
+    }
+
+    for (Map.Entry<String, int[]> chain : scrape.chains.entrySet()) {
+      String key = chain.getKey();
+      if (!stats.containsKey(key)) {
+        type(out, names, key, "counter");
+        contextSeries(out, key, chain.getValue(), scrape);
+        if (stream != null && out.length() >= CHUNK) {
+          write(out, scrape, stream, false);
+        }
+      }
+    }
+    scrape.chains.clear();
+
+    for (SamplesMessage message : client.getSamples().values()) {
+      samples(out, message, labels, scrape);
+      if (stream != null && out.length() >= CHUNK) {
+        write(out, scrape, stream, false);
+      }
+    }
+    names.clear();
+    if (stream != null) {
+      write(out, scrape, stream, true);
+    }
+  }
+
+  /**
+   * appends the labels of the client, but for the ones named in skip
+   * @param skip the label names to leave out, or null
+   */
+  private void clientLabels(StringBuilder labels, Set<String> skip) {
+    if (skip == null || !skip.contains("prog_id")) {
+      label(labels, "prog_id", client.getProgramId());
+    }
+    for (Enumeration<String> keys = client.getContextKeys();
+         keys.hasMoreElements(); ) {
+      String key = keys.nextElement();
+      String value = client.getContext(key);
+      if (value != null && (skip == null || !skip.contains(labelName(key)))) {
+        label(labels, key, value);
+      }
+    }
+  }
+
+  /**
+   * renders the labels of each context list and chains its stats by key,
+   * iterating over the context stats once
+   */
+  private void chainContextStats(Scrape scrape) {
+    scrape.chains.clear();
+    int list = 0;
+    int index = 0;
+    for (Map.Entry<ContextList, AtomicLongMap<String>> entry
+           : client.getContextStats().entrySet()) {
+      StringBuilder labels = scrape.labels(++list);
+      scrape.labelNames.clear();
+      for (Context context : entry.getKey().getList()) {
+        scrape.labelNames.add(labelName(context.getKey()));
+      }
+      // the contexts of the stat take the place of the ones of the client
+      clientLabels(labels, scrape.labelNames);
+      for (Context context : entry.getKey().getList()) {
+        label(labels, context.getKey(), context.getValue());
+      }
+      for (Map.Entry<String, Long> stat : entry.getValue().asMap().entrySet()) {
+        scrape.add(index++, stat.getKey(), list, stat.getValue());
+      }
+    }
+    scrape.labelNames.clear();
+  }
+
+  private static void contextSeries(StringBuilder out, String key,
+                                    int[] chain, Scrape scrape) {
+    if (chain == null) {
+      return;
+    }
+    for (int i = chain[0]; i >= 0; i = scrape.next[i]) {
+      series(out, key, scrape.labels[scrape.lists[i]], scrape.values[i]);
+    }
+  }
+
+  /**
+   * renders the extra stats of a sample message
+   */
+  private static void samples(StringBuilder out, SamplesMessage message,
+                              StringBuilder labels, Scrape scrape) {
+    int trackingTypes = message.getTrackingTypeValue();
+    if (trackingTypes <= 0) {
+      return;
+    }
+    int count;
+    long counter;
+    int updateCounts;
+    synchronized (message) {
+      count = message.getSamples().size();
+      if (scrape.samples.length < count) {
+        scrape.samples = new int[count];
+      }
+      for (int i = 0; i < count; ++i) {
+        scrape.samples[i] = message.getSamples().get(i);
+      }
+      counter = message.getCounter();
+      updateCounts = message.getUpdateCounts();
+    }
+    Arrays.sort(scrape.samples, 0, count);
+
+    for (SampleTrackType trackType : SampleTrackType.values()) {
+      if ((trackingTypes & trackType.value) != trackType.value) {
+        continue;
+      }
+      // as MetricsSnapshot.sampleValue
+      long value = 0;
+      if (count > 0) {
+        if (trackType == SampleTrackType.AVG) {
+          value = counter / updateCounts;
+        } else if (trackType == SampleTrackType.SUM) {
+          value = counter;
+        } else if (trackType == SampleTrackType.COUNT) {
+          value = updateCounts;
+        } else {
+          value = scrape.samples[(int) ((count - 1) * trackType.indexInSamples)];
+        }
+      }
+      String key = message.getKey() + trackType.keySuffix;
+      type(out, scrape.names, key, "gauge");
+      series(out, key, labels, value);
+    }
+  }
+
+  /**
+   * renders the type of a metric, unless a key with the same name already
+   * had its type rendered
+   */
+  private static void type(StringBuilder out, Set<String> names, String key,
+                           String type) {
+    String name = name(key);
+    if (names.add(name)) {
+      out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+  }
+
+  private static void series(StringBuilder out, String key,
+                             StringBuilder labels, long value) {
+    out.append(name(key)).append('{').append(labels).append("} ")
+       .append(value).append('\n');
+  }
+
+  /**
+   * @return a metric name, with the characters Prometheus doesn't allow
+   *         replaced, the key itself if it is valid
+   */
+  private static String name(String key) {
+    for (int i = 0; i < key.length(); ++i) {
+      if (!isNameChar(key.charAt(i), i, true)) {
+        return replace(key, true);
+      }
+    }
+    return key;
+  }
+
+  /**
+   * @return a label name, with the characters Prometheus doesn't allow
+   *         replaced, the key itself if it is valid
+   */
+  private static String labelName(String key) {
+    for (int i = 0; i < key.length(); ++i) {
+      if (!isNameChar(key.charAt(i), i, false)) {
+        return replace(key, false);
+      }
+    }
+    return key;
+  }
+
+  private static String replace(String key, boolean metric) {
+    char[] chars = key.toCharArray();
+    for (int i = 0; i < chars.length; ++i) {
+      if (!isNameChar(chars[i], i, metric)) {
+        chars[i] = '_';
+      }
+    }
+    return new String(chars);
+  }
+
+  /**
+   * @param metric true for a metric name, which may contain ':', false for
+   *        a label name
+   */
+  private static boolean isNameChar(char c, int i, boolean metric) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+      || (metric && c == ':') || (i > 0 && c >= '0' && c <= '9');
+  }
+
+  /**
+   * appends a label, after a comma unless it is the first one
+   */
+  private static void label(StringBuilder out, String name, String value) {
+    if (out.length() > 0) {
+      out.append(',');
+    }
+    out.append(labelName(name)).append("=\"");
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        out.append('\\').append(c);
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+}
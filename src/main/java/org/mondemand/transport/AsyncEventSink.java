@@ -0,0 +1,250 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copies the events into a bounded queue and sends them to another sink
+ * from a background thread, so a slow or blocked socket doesn't stall the
+ * threads flushing the client.  Used with a DirectLWESTransport:
+ * <pre>
+ *   new DirectLWESTransport(new AsyncEventSink(
+ *       new DatagramChannelSink(address, port), 1024,
+ *       AsyncEventSink.OverflowPolicy.DROP_OLDEST));
+ * </pre>
+ * The queue is lock-free, the number of queued events is bounded with a
+ * counter.  When the queue is full the overflow policy decides what happens
+ * to the event, dropped events are counted.  Errors of the other sink are
+ * counted as well, as there is no caller left to throw them to.
+ */
+public class AsyncEventSink implements EventSink, Runnable {
+  public static final int DEFAULT_CAPACITY = 1024;
+  public static final long DEFAULT_CLOSE_TIMEOUT = 1000;            // milliseconds
+  private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+  /**
+   * what to do with an event when the queue is full
+   */
+  public enum OverflowPolicy {
+    /** drop the event being sent */
+    DROP_NEWEST,
+    /** drop the oldest queued event to make room for the new one */
+    DROP_OLDEST,
+    /** wait until there is room, stalling the caller as a direct send would */
+    BLOCK
+  }
+
+  private final EventSink sink;
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final ConcurrentLinkedQueue<byte[]> queue =
+    new ConcurrentLinkedQueue<byte[]>();
+  // queued events, including the ones about to be added to the queue
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong sendNanos = new AtomicLong();
+  private final AtomicLong maxSendNanos = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean idle = false;
+  private volatile boolean running = true;
+  private volatile long closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+  /**
+   * Creates a sink with the default capacity, dropping the newest events
+   * when it is full.
+   * @param sink the sink to send the events to
+   */
+  public AsyncEventSink(EventSink sink) {
+    this(sink, DEFAULT_CAPACITY, OverflowPolicy.DROP_NEWEST);
+  }
+
+  /**
+   * Creates a sink and starts its background thread.
+   * @param sink the sink to send the events to
+   * @param capacity the maximum number of events waiting to be sent
+   * @param policy what to do with an event when the queue is full
+   */
+  public AsyncEventSink(EventSink sink, int capacity, OverflowPolicy policy) {
+    if(capacity < 1) {
+      throw new IllegalArgumentException("invalid capacity " + capacity);
+    }
+    this.sink = sink;
+    this.capacity = capacity;
+    this.policy = policy;
+    this.thread = new Thread(this, "mondemand-async-sink");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * queues a copy of the event
+   * @throws IOException if the sink is closed
+   */
+  @Override
+  public void send(ByteBuffer event) throws IOException {
+    if(!running) {
+      throw new IOException("sink is closed");
+    }
+    if(!reserve()) {
+      dropped.incrementAndGet();
+      return;
+    }
+    byte[] bytes = new byte[event.remaining()];
+    event.get(bytes);
+    queue.offer(bytes);
+    if(idle) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * takes a slot in the queue, applying the overflow policy when it is full
+   * @return true if there is a slot for the event, false to drop it
+   */
+  private boolean reserve() throws IOException {
+    while(true) {
+      int current = depth.get();
+      if(current < capacity) {
+        if(depth.compareAndSet(current, current + 1)) {
+          return true;
+        }
+        continue;
+      }
+      switch(policy) {
+        case DROP_NEWEST:
+          return false;
+        case DROP_OLDEST:
+          if(queue.poll() != null) {
+            depth.decrementAndGet();
+            dropped.incrementAndGet();
+          } else {
+            // the slots are taken by events not queued yet
+            Thread.yield();
+          }
+          break;
+        default:
+          if(!running) {
+            throw new IOException("sink is closed");
+          }
+          LockSupport.parkNanos(FULL_WAIT);
+          break;
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    while(running || depth.get() > 0) {
+      byte[] event = queue.poll();
+      if(event == null) {
+        idle = true;
+        // check again, an event queued before idle was set wouldn't wake us
+        if(queue.isEmpty()) {
+          LockSupport.parkNanos(this, IDLE_WAIT);
+        }
+        idle = false;
+        continue;
+      }
+      depth.decrementAndGet();
+
+      long start = System.nanoTime();
+      try {
+        sink.send(ByteBuffer.wrap(event));
+        sent.incrementAndGet();
+      } catch(Exception e) {
+        failed.incrementAndGet();
+      }
+      long elapsed = System.nanoTime() - start;
+      sendNanos.addAndGet(elapsed);
+      long max = maxSendNanos.get();
+      while(elapsed > max && !maxSendNanos.compareAndSet(max, elapsed)) {
+        max = maxSendNanos.get();
+      }
+    }
+  }
+
+  /**
+   * Stops accepting events, waits at most the close timeout for the queued
+   * events to be sent, and closes the other sink.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(Math.max(1, closeTimeout));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sink.close();
+  }
+
+  /**
+   * @param closeTimeout the maximum time close waits for the queued events
+   *        to be sent, in milliseconds
+   */
+  public void setCloseTimeout(long closeTimeout) {
+    this.closeTimeout = closeTimeout;
+  }
+
+  /**
+   * @return the number of events waiting to be sent
+   */
+  public int getQueueDepth() {
+    return depth.get();
+  }
+
+  /**
+   * @return the number of events dropped because the queue was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of events sent to the other sink
+   */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * @return the number of events the other sink failed to send
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return the total time spent in the other sink, in nanoseconds
+   */
+  public long getSendNanos() {
+    return sendNanos.get();
+  }
+
+  /**
+   * @return the longest time spent sending a single event, in nanoseconds
+   */
+  public long getMaxSendNanos() {
+    return maxSendNanos.get();
+  }
+}
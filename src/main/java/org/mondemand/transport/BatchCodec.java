@@ -0,0 +1,49 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+
+/**
+ * Compresses the batches of a CompressingEventSink.  The id of the codec
+ * is written in each frame, so a BatchDecoder knows how to decompress it.
+ * A codec is used by one sink or decoder at a time.
+ */
+public interface BatchCodec {
+  /**
+   * @return the id written in the frames, from 1 to 127
+   */
+  public byte getId();
+
+  /**
+   * @param input the bytes to compress
+   * @param length the number of bytes of input to compress
+   * @param output the buffer to compress into, which may be too small
+   * @param offset the position to compress to in output
+   * @return the size of the compressed bytes, or -1 if output is too small
+   * @throws IOException
+   */
+  public int compress(byte[] input, int length, byte[] output, int offset)
+    throws IOException;
+
+  /**
+   * @param input the compressed bytes
+   * @param offset the position of the compressed bytes in input
+   * @param length the number of compressed bytes
+   * @param output the buffer to decompress into, of the size of the
+   *        uncompressed bytes
+   * @throws IOException if the bytes are not valid
+   */
+  public void decompress(byte[] input, int offset, int length, byte[] output)
+    throws IOException;
+}
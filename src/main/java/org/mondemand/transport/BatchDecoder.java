@@ -0,0 +1,120 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.lwes.Event;
+
+/**
+ * Reads the frames of a CompressingEventSink back into events, for the
+ * collectors receiving them.  Frames which are plain events are returned
+ * as they are, so a collector can receive both.
+ * <p>
+ * The uncompressed size a frame claims is checked against a maximum before
+ * anything is allocated, so a corrupt or hostile frame can't exhaust the
+ * memory of the collector.
+ */
+public class BatchDecoder {
+  // a batch is flushed before it exceeds the maximum, unless it holds a
+  // single larger event
+  public static final int DEFAULT_MAX_BATCH_BYTES =
+    CompressingEventSink.DEFAULT_MAX_BATCH_BYTES + 4 + Event.MAX_MESSAGE_SIZE;
+
+  private final BatchCodec[] codecs = new BatchCodec[128];
+  private final int maxBatchBytes;
+
+  /**
+   * Creates a decoder of the deflate frames of at most the default size.
+   */
+  public BatchDecoder() {
+    this(DEFAULT_MAX_BATCH_BYTES);
+  }
+
+  /**
+   * Creates a decoder of the deflate frames.
+   * @param maxBatchBytes the largest uncompressed size of a frame, which
+   *        should be the maximum batch size of the sinks plus the size of
+   *        the largest event and its length
+   */
+  public BatchDecoder(int maxBatchBytes) {
+    this.maxBatchBytes = maxBatchBytes;
+    register(new DeflateCodec());
+  }
+
+  /**
+   * @param codec a codec to decode the frames of, replacing the codec of
+   *        the same id
+   */
+  public synchronized void register(BatchCodec codec) {
+    codecs[codec.getId()] = codec;
+  }
+
+  /**
+   * @param frame a frame sent by a CompressingEventSink, or an event
+   * @return true if the frame is a compressed batch
+   */
+  public static boolean isBatch(byte[] frame) {
+    return frame.length > 0 && frame[0] == 0;
+  }
+
+  /**
+   * @param frame a frame sent by a CompressingEventSink, or an event
+   * @return the events of the frame
+   * @throws IOException if the frame is not valid, too large or its codec
+   *         is unknown
+   */
+  public synchronized List<byte[]> decode(byte[] frame) throws IOException {
+    if (!isBatch(frame)) {
+      return Collections.singletonList(frame);
+    }
+    if (frame.length < CompressingEventSink.HEADER_BYTES) {
+      throw new IOException("truncated frame");
+    }
+    BatchCodec codec = (frame[1] > 0) ? codecs[frame[1]] : null;
+    if (codec == null) {
+      throw new IOException("unknown codec " + frame[1]);
+    }
+    int size = getInt(frame, 2);
+    if (size < 0 || size > maxBatchBytes) {
+      throw new IOException("invalid frame size " + size);
+    }
+
+    byte[] batch = new byte[size];
+    codec.decompress(frame, CompressingEventSink.HEADER_BYTES,
+                     frame.length - CompressingEventSink.HEADER_BYTES, batch);
+    List<byte[]> events = new ArrayList<byte[]>();
+    int position = 0;
+    while (position < size) {
+      int length = (position + 4 <= size) ? getInt(batch, position) : -1;
+      if (length < 0 || position + 4 + length > size) {
+        throw new IOException("invalid event length at " + position);
+      }
+      byte[] event = new byte[length];
+      System.arraycopy(batch, position + 4, event, 0, length);
+      events.add(event);
+      position += 4 + length;
+    }
+    return events;
+  }
+
+  private static int getInt(byte[] bytes, int position) {
+    return ((bytes[position] & 0xff) << 24)
+      | ((bytes[position + 1] & 0xff) << 16)
+      | ((bytes[position + 2] & 0xff) << 8)
+      | (bytes[position + 3] & 0xff);
+  }
+}
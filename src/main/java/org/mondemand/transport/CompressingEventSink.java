@@ -0,0 +1,164 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the events of each flush of a DirectLWESTransport into a single
+ * compressed frame sent to another sink, such as a SocketChannelSink or a
+ * SpoolingEventSink.  Most of a StatsMsg event is made of metric names and
+ * contexts repeated from one event to the next, which compress well.
+ * <pre>
+ *   new DirectLWESTransport(new CompressingEventSink(
+ *       new SocketChannelSink(address, port)));
+ * </pre>
+ * A frame starts with a 0 byte, which no LWES event starts with, the id of
+ * the codec and the uncompressed size as a 4-byte integer, followed by the
+ * compressed events, each preceded by its length as a 4-byte integer.
+ * BatchDecoder reads the frames back into events.
+ * <p>
+ * The client flushes the transport, which flushes the sink, once the logs
+ * and stats of one of its flushes were all sent, and after each trace; a
+ * batch is also sent when it would exceed the maximum batch size.  The
+ * frames are usually too large for UDP datagrams.
+ */
+public class CompressingEventSink implements EventSink, Flushable {
+  public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+  static final int HEADER_BYTES = 6;
+
+  private final EventSink sink;
+  private final BatchCodec codec;
+  private final int maxBatchBytes;
+  private byte[] batch = new byte[4096];
+  private byte[] frame = new byte[4096];
+  private int batchBytes = 0;
+  private long events = 0;
+  private long frames = 0;
+  private long uncompressedBytes = 0;
+  private long compressedBytes = 0;
+
+  /**
+   * Creates a sink compressing with deflate, in batches of at most the
+   * default size.
+   * @param sink the sink to send the frames to
+   */
+  public CompressingEventSink(EventSink sink) {
+    this(sink, new DeflateCodec(), DEFAULT_MAX_BATCH_BYTES);
+  }
+
+  /**
+   * @param sink the sink to send the frames to
+   * @param codec the codec compressing the batches
+   * @param maxBatchBytes the maximum size of a batch before compression,
+   *        larger events are sent in a batch of their own
+   */
+  public CompressingEventSink(EventSink sink, BatchCodec codec,
+                              int maxBatchBytes) {
+    this.sink = sink;
+    this.codec = codec;
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  /**
+   * adds the event to the current batch
+   */
+  @Override
+  public synchronized void send(ByteBuffer event) throws IOException {
+    int length = event.remaining();
+    if (batchBytes > 0 && batchBytes + 4 + length > maxBatchBytes) {
+      flush();
+    }
+    if (batchBytes + 4 + length > batch.length) {
+      byte[] larger = new byte[Math.max(batch.length * 2, batchBytes + 4 + length)];
+      System.arraycopy(batch, 0, larger, 0, batchBytes);
+      batch = larger;
+    }
+    putInt(batch, batchBytes, length);
+    event.get(batch, batchBytes + 4, length);
+    batchBytes += 4 + length;
+    events++;
+  }
+
+  /**
+   * compresses the current batch and sends it
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    if (batchBytes == 0) {
+      return;
+    }
+    int size;
+    while ((size = codec.compress(batch, batchBytes, frame,
+                                  HEADER_BYTES)) < 0) {
+      frame = new byte[frame.length * 2];
+    }
+    frame[0] = 0;
+    frame[1] = codec.getId();
+    putInt(frame, 2, batchBytes);
+    uncompressedBytes += batchBytes;
+    compressedBytes += HEADER_BYTES + size;
+    frames++;
+    batchBytes = 0;
+    sink.send(ByteBuffer.wrap(frame, 0, HEADER_BYTES + size));
+  }
+
+  private static void putInt(byte[] bytes, int position, int value) {
+    bytes[position] = (byte) (value >>> 24);
+    bytes[position + 1] = (byte) (value >>> 16);
+    bytes[position + 2] = (byte) (value >>> 8);
+    bytes[position + 3] = (byte) value;
+  }
+
+  /**
+   * sends the current batch and closes the other sink
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      sink.close();
+    }
+  }
+
+  /**
+   * @return the number of events sent
+   */
+  public synchronized long getEvents() {
+    return events;
+  }
+
+  /**
+   * @return the number of frames sent
+   */
+  public synchronized long getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return the size of the events of the frames sent
+   */
+  public synchronized long getUncompressedBytes() {
+    return uncompressedBytes;
+  }
+
+  /**
+   * @return the size of the frames sent
+   */
+  public synchronized long getCompressedBytes() {
+    return compressedBytes;
+  }
+}
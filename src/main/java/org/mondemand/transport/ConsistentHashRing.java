@@ -0,0 +1,111 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.transport;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Maps keys to nodes with consistent hashing.  Each node is placed on a
+ * ring of 32-bit hashes at a number of points, its virtual nodes, and a key
+ * belongs to the nodes of the first points found going clockwise from the
+ * hash of the key.  The points are hashes of the node names, so adding or
+ * removing a node only moves the keys of that node.
+ */
+public class ConsistentHashRing {
+  public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+  private static final HashFunction HASH = Hashing.murmur3_32();
+
+  private final int nodeCount;
+  private final int[] points;   // sorted hashes of the virtual nodes
+  private final int[] owners;   // node of each point
+
+  /**
+   * @param nodes the names of the nodes, such as "host:port"
+   * @param virtualNodes the number of points of each node on the ring
+   */
+  public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+    if (nodes.isEmpty() || virtualNodes < 1) {
+      throw new IllegalArgumentException("invalid ring of " + nodes.size()
+          + " nodes with " + virtualNodes + " virtual nodes");
+    }
+    this.nodeCount = nodes.size();
+
+    long[] entries = new long[nodeCount * virtualNodes];
+    int n = 0;
+    for (int node = 0; node < nodeCount; ++node) {
+      for (int i = 0; i < virtualNodes; ++i) {
+        int point = hash(nodes.get(node) + "#" + i);
+        // sort by point, then by node for points shared by several nodes
+        entries[n++] = ((long) point << 32) | node;
+      }
+    }
+    Arrays.sort(entries);
+
+    points = new int[entries.length];
+    owners = new int[entries.length];
+    for (int i = 0; i < entries.length; ++i) {
+      points[i] = (int) (entries[i] >> 32);
+      owners[i] = (int) entries[i];
+    }
+  }
+
+  /**
+   * @return the number of nodes
+   */
+  public int size() {
+    return nodeCount;
+  }
+
+  /**
+   * @param key the key to look up
+   * @param replicas the number of nodes the key belongs to, capped to the
+   *        number of nodes
+   * @return the indexes of the distinct nodes the key belongs to, the first
+   *         one being its primary node
+   */
+  public int[] nodesFor(String key, int replicas) {
+    replicas = Math.max(1, Math.min(replicas, nodeCount));
+    int[] nodes = new int[replicas];
+    int found = 0;
+
+    int start = Arrays.binarySearch(points, hash(key));
+    if (start < 0) {
+      start = -start - 1;
+    } else {
+      // start at the first of equal points
+      while (start > 0 && points[start - 1] == points[start]) {
+        start--;
+      }
+    }
+    for (int i = 0; found < replicas && i < points.length; ++i) {
+      int owner = owners[(start + i) % points.length];
+      boolean seen = false;
+      for (int j = 0; j < found; ++j) {
+        seen |= (nodes[j] == owner);
+      }
+      if (!seen) {
+        nodes[found++] = owner;
+      }
+    }
+    return nodes;
+  }
+
+  static int hash(String value) {
+    return HASH.hashString(value, Charsets.UTF_8).asInt();
+  }
+}
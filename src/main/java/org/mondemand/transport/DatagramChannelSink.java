@@ -0,0 +1,50 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends each event in a UDP datagram.  Multicast datagrams are sent with a
+ * TTL of 1.
+ */
+public class DatagramChannelSink implements EventSink {
+  private final DatagramChannel channel;
+  private final InetSocketAddress target;
+
+  /**
+   * @param address the address to send the events to
+   * @param port the port to send the events to
+   * @throws IOException
+   */
+  public DatagramChannelSink(InetAddress address, int port)
+    throws IOException
+  {
+    this.target = new InetSocketAddress(address, port);
+    this.channel = DatagramChannel.open();
+  }
+
+  @Override
+  public void send(ByteBuffer event) throws IOException {
+    channel.send(event, target);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
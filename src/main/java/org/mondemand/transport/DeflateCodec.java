@@ -0,0 +1,70 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses with the deflate implementation of the JDK, reusing its
+ * Deflater and Inflater.
+ */
+public class DeflateCodec implements BatchCodec {
+  public static final byte ID = 1;
+
+  private final Deflater deflater;
+  private final Inflater inflater = new Inflater();
+
+  public DeflateCodec() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param level the compression level, from 0 to 9
+   */
+  public DeflateCodec(int level) {
+    this.deflater = new Deflater(level);
+  }
+
+  @Override
+  public byte getId() {
+    return ID;
+  }
+
+  @Override
+  public int compress(byte[] input, int length, byte[] output, int offset) {
+    deflater.reset();
+    deflater.setInput(input, 0, length);
+    deflater.finish();
+    int size = deflater.deflate(output, offset, output.length - offset);
+    return deflater.finished() ? size : -1;
+  }
+
+  @Override
+  public void decompress(byte[] input, int offset, int length, byte[] output)
+    throws IOException
+  {
+    inflater.reset();
+    inflater.setInput(input, offset, length);
+    try {
+      int size = inflater.inflate(output);
+      if (size != output.length || !inflater.finished()) {
+        throw new IOException("invalid deflate data");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("invalid deflate data: " + e.getMessage());
+    }
+  }
+}
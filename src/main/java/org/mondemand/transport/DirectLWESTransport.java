@@ -0,0 +1,432 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.lwes.Event;
+import org.mondemand.Context;
+import org.mondemand.LogMessage;
+import org.mondemand.MetricsSnapshot;
+import org.mondemand.SamplesMessage;
+import org.mondemand.StatsMessage;
+import org.mondemand.TraceId;
+import org.mondemand.SnapshotTransport;
+import org.mondemand.TransportException;
+import org.mondemand.util.HostName;
+
+/**
+ * Sends the same events as LWESTransport, but encodes them straight into a
+ * reused buffer with an EventEncoder rather than building org.lwes.Event
+ * objects, and hands them to an EventSink.  The transport is thread-safe,
+ * events are encoded and sent one at a time.
+ * <p>
+ * The encoded contexts are kept and copied into the following events as long
+ * as the same array of contexts is passed, so the arrays must not be
+ * modified once given to the transport.
+ * <p>
+ * Events never exceed the maximum size of an LWES event, which lwes-java
+ * cannot send either: the timings of a performance trace are spread over as
+ * many events as needed, and a trace value, metric key or timing label too
+ * large for an event of its own is truncated, as log messages are.
+ */
+public class DirectLWESTransport
+  implements SnapshotTransport, Flushable
+{
+  private final EventSink sink;
+  private static final int MAX_EVENT_SIZE = Event.MAX_MESSAGE_SIZE;
+  private final EventEncoder encoder = new EventEncoder(MAX_EVENT_SIZE);
+  private int maxEventBytes = LWESTransport.DEFAULT_MAX_EVENT_BYTES;
+  private final HostName localHost = HostName.local();
+  private volatile String sourceHost = null;
+  // the last contexts encoded, the client passes the same array as long as
+  // its contexts don't change
+  private Context[] encodedContexts = null;
+  private byte[] encodedContextBytes = null;
+
+  /**
+   * Creates a transport sending UDP datagrams.
+   * @param address the address to send events to
+   * @param port the port to send events to
+   * @throws TransportException
+   */
+  public DirectLWESTransport(InetAddress address, int port)
+    throws TransportException
+  {
+    try {
+      this.sink = new DatagramChannelSink(address, port);
+    } catch(IOException e) {
+      throw new TransportException("Unable to open datagram channel", e);
+    }
+  }
+
+  /**
+   * Creates a transport sending its events to a sink.
+   * @param sink the destination of the events
+   */
+  public DirectLWESTransport(EventSink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * @return the maximum size of the events in bytes
+   */
+  public synchronized int getMaxEventBytes() {
+    return maxEventBytes;
+  }
+
+  /**
+   * Sets the maximum size of the events, see LWESTransport.setMaxEventBytes.
+   * @param maxEventBytes the maximum size of the events in bytes, capped to
+   *        the maximum size of an LWES event
+   */
+  public synchronized void setMaxEventBytes(int maxEventBytes) {
+    this.maxEventBytes = Math.min(maxEventBytes, MAX_EVENT_SIZE);
+  }
+
+  /**
+   * @return the host name sent with trace messages
+   */
+  public String getSourceHost() {
+    String host = sourceHost;
+    return (host != null) ? host : localHost.get();
+  }
+
+  /**
+   * Sets the host name sent with trace messages, see
+   * LWESTransport.setSourceHost.
+   * @param sourceHost the host name, null for the name of the local host
+   */
+  public void setSourceHost(String sourceHost) {
+    this.sourceHost = sourceHost;
+  }
+
+  @Override
+  public synchronized void sendLogs (String programId,
+                                     LogMessage[] messages,
+                                     Context[] contexts)
+    throws TransportException
+  {
+    if (messages == null || messages.length == 0 || contexts == null) {
+      return;
+    }
+
+    try {
+      int numPosition = beginEvent(LWESTransport.LOG_EVENT, programId, contexts);
+      int num = 0;
+      for(LogMessage message : messages) {
+        String text = message.getMessage();
+        int messageSize = LWESTransport.logMessageSize(message, text, num);
+
+        // start a new event if the message doesn't fit in the current one
+        if(num > 0 && encoder.size() + messageSize > maxEventBytes) {
+          emit(numPosition, num);
+          numPosition = beginEvent(LWESTransport.LOG_EVENT, programId, contexts);
+          num = 0;
+          messageSize = LWESTransport.logMessageSize(message, text, num);
+        }
+
+        // a message too large for an event of its own is truncated
+        if(encoder.size() + messageSize > maxEventBytes) {
+          int excess = encoder.size() + messageSize - maxEventBytes;
+          text = EventSize.truncate(text,
+              Math.max(0, EventSize.utf8Length(text) - excess),
+              LWESTransport.TRUNCATED_MARKER);
+        }
+
+        TraceId traceId = message.getTraceId();
+        if(traceId != null && traceId.compareTo(TraceId.NULL_TRACE_ID) != 0) {
+          encoder.uint64(FieldNames.TRACE_ID.get(num), traceId.getId());
+        }
+        encoder.string(FieldNames.FILENAME.get(num), message.getFilename());
+        encoder.uint32(FieldNames.LINE.get(num), message.getLine());
+        encoder.uint32(FieldNames.PRIORITY.get(num), message.getLevel());
+        encoder.string(FieldNames.MESSAGE.get(num), text);
+        if(message.getRepeat() > 1) {
+          encoder.uint16(FieldNames.REPEAT.get(num), message.getRepeat());
+        }
+        num++;
+      }
+      emit(numPosition, num);
+    } catch(Exception e) {
+      throw new TransportException("Error sending log event", e);
+    }
+  }
+
+  @Override
+  public void send(String programId, StatsMessage[] stats,
+      SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics)
+    throws TransportException
+  {
+    if (contexts == null) {
+      return;
+    }
+
+    send(MetricsSnapshot.of(programId, stats, samples, contexts, maxNumMetrics));
+  }
+
+  @Override
+  public synchronized void send(MetricsSnapshot snapshot)
+    throws TransportException
+  {
+    if (snapshot.getContexts() == null) {
+      return;
+    }
+
+    try {
+      Integer maxNumMetrics = snapshot.getMaxNumMetrics();
+      MetricEncoder metrics = new MetricEncoder(snapshot.getProgramId(),
+          snapshot.getContexts(), (null == maxNumMetrics) ?
+              LWESTransport.DEFAULT_MAXIMUM_METRICS : maxNumMetrics);
+
+      for (int i = 0; i < snapshot.size(); ++i) {
+        metrics.add(snapshot.getType(i).toString(), snapshot.getKey(i),
+                    snapshot.getValue(i));
+      }
+
+      metrics.flush();
+    } catch(Exception e) {
+      throw new TransportException("Error sending stats event", e);
+    }
+  }
+
+  @Override
+  public synchronized void sendTrace (String programId,
+                                      Context[] contexts)
+    throws TransportException
+  {
+    if (contexts == null) {
+      return;
+    }
+
+    try {
+      encoder.begin(LWESTransport.TRACE_EVENT);
+      encoder.string(LWESTransport.PROG_ID_KEY, programId);
+      encoder.string(LWESTransport.SRC_HOST_KEY, getSourceHost());
+      for(int i=0; i<contexts.length; ++i) {
+        String key = contexts[i].getKey();
+        String value = fit(contexts[i].getValue(),
+            EventSize.string(EventSize.utf8Length(key), contexts[i].getValue()));
+        if(value == null) {
+          // not even the key fits, the remaining contexts are dropped
+          break;
+        }
+        encoder.string(key, value);
+      }
+      sink.send(encoder.finish());
+    } catch(Exception e) {
+      throw new TransportException("Error sending trace event", e);
+    }
+  }
+
+  @Override
+  public synchronized void sendPerformanceTrace(String id, String callerLabel,
+                                                String[] label, long[] start,
+                                                long[] end, Context[] contexts)
+    throws TransportException
+  {
+    if (id == null || callerLabel == null || label == null || start == null ||
+        end == null || contexts == null)
+    {
+      throw new IllegalArgumentException("missing required argument");
+    }
+
+    if (label.length != start.length || label.length != end.length)
+    {
+      throw new IllegalArgumentException("label, start, and end arrays must " +
+                                         "all be of equal length");
+    }
+
+    try {
+      int numPosition = beginPerf(id, callerLabel, contexts);
+      int num = 0;
+      for (int i = 0; i < label.length; ++i) {
+        // start a new event if the timing doesn't fit in the current one
+        if (num > 0 && encoder.size() + timingSize(label[i], num)
+            > MAX_EVENT_SIZE) {
+          emit(numPosition, num);
+          numPosition = beginPerf(id, callerLabel, contexts);
+          num = 0;
+        }
+        String text = fit(label[i], timingSize(label[i], num));
+        if (text == null) {
+          throw new IllegalArgumentException("id, caller label and contexts " +
+                                             "too large for a perf event");
+        }
+        encoder.string(FieldNames.LABEL.get(num), text);
+        encoder.int64(FieldNames.START.get(num), start[i]);
+        encoder.int64(FieldNames.END.get(num), end[i]);
+        num++;
+      }
+      if (label.length == 0) {
+        sink.send(encoder.finish());
+      } else {
+        emit(numPosition, num);
+      }
+    } catch(Exception e) {
+      throw new TransportException("Error sending perf event", e);
+    }
+  }
+
+  @Override
+  public void shutdown()
+    throws TransportException
+  {
+    try {
+      sink.close();
+    } catch(IOException e) {
+      throw new TransportException("Unable to close event sink", e);
+    }
+  }
+
+  /**
+   * begins a performance trace event with its id, caller label and contexts
+   * @return the position of the "num" value
+   */
+  private int beginPerf(String id, String callerLabel, Context[] contexts) {
+    encoder.begin(LWESTransport.PERF_EVENT);
+    encoder.string(LWESTransport.PERF_ID_KEY, id);
+    encoder.string(LWESTransport.PERF_CALLER_LABEL_KEY, callerLabel);
+    int numPosition = encoder.uint16(LWESTransport.PERF_NUM_KEY, 0);
+    if (contexts.length > 0) {
+      encoder.uint16("ctxt_num", contexts.length);
+      for (int i = 0; i < contexts.length; ++i) {
+        encoder.string(FieldNames.CONTEXT_KEY.get(i), contexts[i].getKey());
+        encoder.string(FieldNames.CONTEXT_VALUE.get(i), contexts[i].getValue());
+      }
+    }
+    return numPosition;
+  }
+
+  /**
+   * @return the size of the attributes of a timing at index i
+   */
+  private static int timingSize(String label, int i) {
+    return EventSize.string(EventSize.name("label", i), label)
+      + EventSize.int64(EventSize.name("start", i))
+      + EventSize.int64(EventSize.name("end", i));
+  }
+
+  /**
+   * truncates a value so that the attributes holding it fit in the current
+   * event
+   * @param value the value
+   * @param size the size of the attributes holding the value
+   * @return the value, truncated if needed, or null if the attributes don't
+   *         fit even without it
+   */
+  private String fit(String value, int size) {
+    int excess = encoder.size() + size - MAX_EVENT_SIZE;
+    if (excess <= 0) {
+      return value;
+    }
+    int maxBytes = EventSize.utf8Length(value) - excess;
+    if (maxBytes < EventSize.utf8Length(LWESTransport.TRUNCATED_MARKER)) {
+      return null;
+    }
+    return EventSize.truncate(value, maxBytes, LWESTransport.TRUNCATED_MARKER);
+  }
+
+  /**
+   * begins an event with the program id and the contexts
+   * @return the position of the "num" value
+   */
+  private int beginEvent(String eventName, String programId,
+                         Context[] contexts) {
+    encoder.begin(eventName);
+    encoder.string("prog_id", programId);
+    int numPosition = encoder.uint16("num", 0);
+    // stats events always have the number of contexts
+    if (contexts.length > 0 || eventName == LWESTransport.STATS_EVENT) {
+      encoder.uint16("ctxt_num", contexts.length);
+      if (contexts == encodedContexts) {
+        encoder.append(encodedContextBytes, 2 * contexts.length);
+      } else {
+        int start = encoder.size();
+        for (int i = 0; i < contexts.length; ++i) {
+          encoder.string(FieldNames.CONTEXT_KEY.get(i), contexts[i].getKey());
+          encoder.string(FieldNames.CONTEXT_VALUE.get(i), contexts[i].getValue());
+        }
+        encodedContexts = contexts;
+        encodedContextBytes = encoder.copy(start);
+      }
+    }
+    return numPosition;
+  }
+
+  /**
+   * sets the number of entries of the current event, and sends it
+   */
+  private void emit(int numPosition, int num) throws IOException {
+    if (num == 0) {
+      return;
+    }
+    encoder.setUInt16(numPosition, num);
+    sink.send(encoder.finish());
+  }
+
+  /**
+   * tells a sink which batches events, such as CompressingEventSink, that
+   * the events of a flush of the client were all sent
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    if (sink instanceof Flushable) {
+      ((Flushable) sink).flush();
+    }
+  }
+
+  /**
+   * Fills StatsMsg events with metrics, as LWESTransport's
+   * StatsMessageStreamer.
+   */
+  private class MetricEncoder {
+    private final String programId;
+    private final Context[] contexts;
+    private final int maxMetrics;
+    private int numPosition;
+    private int numMetrics = 0;
+
+    MetricEncoder(String programId, Context[] contexts, int maxMetrics) {
+      this.programId = programId;
+      this.contexts = contexts;
+      this.maxMetrics = maxMetrics;
+      this.numPosition = beginEvent(LWESTransport.STATS_EVENT, programId, contexts);
+    }
+
+    void add(String type, String key, long value) throws IOException {
+      if (numMetrics == maxMetrics
+          || (numMetrics > 0 && encoder.size()
+              + LWESTransport.metricSize(type, key, numMetrics) > maxEventBytes)) {
+        flush();
+        numPosition = beginEvent(LWESTransport.STATS_EVENT, programId, contexts);
+      }
+      // a key too large for an event of its own is truncated
+      key = fit(key, LWESTransport.metricSize(type, key, numMetrics));
+      if (key == null) {
+        return;
+      }
+      encoder.string(FieldNames.TYPE.get(numMetrics), type);
+      encoder.string(FieldNames.KEY.get(numMetrics), key);
+      encoder.int64(FieldNames.VALUE.get(numMetrics), value);
+      numMetrics++;
+    }
+
+    void flush() throws IOException {
+      emit(numPosition, numMetrics);
+      numMetrics = 0;
+    }
+  }
+}
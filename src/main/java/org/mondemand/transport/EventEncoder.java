@@ -0,0 +1,190 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes LWES events straight into a reusable buffer, in the same wire
+ * format as lwes-java's Event.serialize(): the event name preceded by its
+ * length on one byte, the number of attributes on two bytes, then the
+ * attributes, starting with the "enc" attribute lwes-java adds to every
+ * event.  Numbers are big-endian, names are UTF-8 preceded by their length
+ * on one byte and strings are UTF-8 preceded by their length on two bytes.
+ * <p>
+ * An encoder is not thread-safe, and the buffer returned by finish is only
+ * valid until the next event is begun.
+ */
+public class EventEncoder {
+  static final byte UINT16 = 0x01;
+  static final byte INT16  = 0x02;
+  static final byte UINT32 = 0x03;
+  static final byte STRING = 0x05;
+  static final byte INT64  = 0x07;
+  static final byte UINT64 = 0x08;
+
+  private static final short UTF_8_ENCODING = 1;
+
+  private final ByteBuffer buffer;
+  private int countPosition = 0;
+  private int count = 0;
+
+  /**
+   * @param capacity the maximum size of the events in bytes
+   */
+  public EventEncoder(int capacity) {
+    this.buffer = ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * starts a new event, discarding the previous one
+   * @param eventName the name of the event
+   */
+  public void begin(String eventName) {
+    buffer.clear();
+    writeName(eventName);
+    countPosition = buffer.position();
+    buffer.putShort((short) 0);
+    count = 0;
+    int16("enc", UTF_8_ENCODING);
+  }
+
+  /**
+   * @return the number of bytes of the event so far
+   */
+  public int size() {
+    return buffer.position();
+  }
+
+  /**
+   * @return the event, ready to be read
+   */
+  public ByteBuffer finish() {
+    buffer.putShort(countPosition, (short) count);
+    buffer.flip();
+    return buffer;
+  }
+
+  public void string(String name, String value) {
+    attribute(name, STRING);
+    int lengthPosition = buffer.position();
+    buffer.putShort((short) 0);
+    buffer.putShort(lengthPosition, (short) writeUtf8(value));
+  }
+
+  public void int16(String name, int value) {
+    attribute(name, INT16);
+    buffer.putShort((short) value);
+  }
+
+  /**
+   * @return the position of the value, to update it with setUInt16
+   */
+  public int uint16(String name, int value) {
+    attribute(name, UINT16);
+    int position = buffer.position();
+    buffer.putShort((short) value);
+    return position;
+  }
+
+  /**
+   * updates the value of a uint16 attribute written earlier
+   * @param position the position returned by uint16
+   * @param value the new value
+   */
+  public void setUInt16(int position, int value) {
+    buffer.putShort(position, (short) value);
+  }
+
+  public void uint32(String name, long value) {
+    attribute(name, UINT32);
+    buffer.putInt((int) value);
+  }
+
+  public void int64(String name, long value) {
+    attribute(name, INT64);
+    buffer.putLong(value);
+  }
+
+  public void uint64(String name, long value) {
+    attribute(name, UINT64);
+    buffer.putLong(value);
+  }
+
+  /**
+   * @param position a size of the event returned by size
+   * @return a copy of the bytes written since position, to add them to later
+   *         events with append
+   */
+  public byte[] copy(int position) {
+    byte[] bytes = new byte[buffer.position() - position];
+    for(int i=0; i<bytes.length; ++i) {
+      bytes[i] = buffer.get(position + i);
+    }
+    return bytes;
+  }
+
+  /**
+   * adds attributes encoded earlier, as returned by copy
+   * @param attributes the encoded attributes
+   * @param attributeCount the number of attributes they hold
+   */
+  public void append(byte[] attributes, int attributeCount) {
+    buffer.put(attributes);
+    count += attributeCount;
+  }
+
+  private void attribute(String name, byte type) {
+    writeName(name);
+    buffer.put(type);
+    count++;
+  }
+
+  private void writeName(String name) {
+    int lengthPosition = buffer.position();
+    buffer.put((byte) 0);
+    buffer.put(lengthPosition, (byte) writeUtf8(name));
+  }
+
+  /**
+   * encodes a string as String.getBytes("UTF-8") does, unpaired surrogates
+   * being replaced by '?'
+   * @return the number of bytes written
+   */
+  private int writeUtf8(String value) {
+    int start = buffer.position();
+    for(int i=0; i<value.length(); ++i) {
+      char c = value.charAt(i);
+      if(c < 0x80) {
+        buffer.put((byte) c);
+      } else if(c < 0x800) {
+        buffer.put((byte) (0xc0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      } else if(Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer.put((byte) (0xf0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+      } else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        buffer.put((byte) '?');
+      } else {
+        buffer.put((byte) (0xe0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    return buffer.position() - start;
+  }
+}
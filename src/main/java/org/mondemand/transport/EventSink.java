@@ -0,0 +1,30 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of the events encoded by a DirectLWESTransport.
+ */
+public interface EventSink {
+  /**
+   * sends an event, the buffer is reused once this method returns
+   * @param event the serialized event, from its position to its limit
+   * @throws IOException
+   */
+  public void send(ByteBuffer event) throws IOException;
+
+  public void close() throws IOException;
+}
@@ -0,0 +1,143 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+/**
+ * Computes the number of bytes LWES events take once serialized, so events
+ * can be filled up to a byte budget without serializing them.  An attribute
+ * takes one byte for the length of its name, the name, one byte for its type
+ * and its value, strings being preceded by their length on two bytes.
+ */
+public final class EventSize {
+  // events carry an "enc" int16 attribute holding the string encoding
+  private static final int ENCODING_ATTRIBUTE = 1 + 3 + 1 + 2;
+
+  private EventSize() {
+  }
+
+  /**
+   * @param eventName the name of the event
+   * @return the size of an event without any attribute
+   */
+  public static int event(String eventName) {
+    // name length, name, number of attributes
+    return 1 + utf8Length(eventName) + 2 + ENCODING_ATTRIBUTE;
+  }
+
+  /**
+   * @param nameLength the length of the attribute name
+   * @param value the value of the attribute
+   * @return the size of a string attribute
+   */
+  public static int string(int nameLength, String value) {
+    return attribute(nameLength) + 2 + utf8Length(value);
+  }
+
+  /**
+   * @param nameLength the length of the attribute name
+   * @return the size of a uint16 attribute
+   */
+  public static int uint16(int nameLength) {
+    return attribute(nameLength) + 2;
+  }
+
+  /**
+   * @param nameLength the length of the attribute name
+   * @return the size of a uint32 attribute
+   */
+  public static int uint32(int nameLength) {
+    return attribute(nameLength) + 4;
+  }
+
+  /**
+   * @param nameLength the length of the attribute name
+   * @return the size of an int64 or uint64 attribute
+   */
+  public static int int64(int nameLength) {
+    return attribute(nameLength) + 8;
+  }
+
+  /**
+   * @param prefix the prefix of an indexed attribute name, such as "k"
+   * @param index the index appended to the prefix
+   * @return the length of the attribute name
+   */
+  public static int name(String prefix, int index) {
+    int digits = 1;
+    for(int i = index; i >= 10; i /= 10) {
+      digits++;
+    }
+    return prefix.length() + digits;
+  }
+
+  /**
+   * @param value a string
+   * @return the number of bytes of the string encoded in UTF-8
+   */
+  public static int utf8Length(String value) {
+    if(value == null) {
+      return 0;
+    }
+    int length = 0;
+    for(int i=0; i<value.length(); ++i) {
+      length += utf8Length(value.charAt(i));
+    }
+    return length;
+  }
+
+  /**
+   * Truncates a string so that it takes at most maxBytes bytes in UTF-8,
+   * including a marker telling that it was truncated.
+   * @param value the string to truncate
+   * @param maxBytes the maximum number of bytes of the result
+   * @param marker appended to the string if it is truncated
+   * @return the string itself if it fits, or its truncated version
+   */
+  public static String truncate(String value, int maxBytes, String marker) {
+    if(utf8Length(value) <= maxBytes) {
+      return value;
+    }
+    int available = maxBytes - utf8Length(marker);
+    int length = 0;
+    int end = 0;
+    while(end < value.length()) {
+      char c = value.charAt(end);
+      // keep surrogate pairs together
+      int chars =
+        (Character.isHighSurrogate(c) && end + 1 < value.length()) ? 2 : 1;
+      int bytes = utf8Length(c) * chars;
+      if(length + bytes > available) {
+        break;
+      }
+      length += bytes;
+      end += chars;
+    }
+    return value.substring(0, end) + marker;
+  }
+
+  private static int attribute(int nameLength) {
+    // name length, name, type
+    return 1 + nameLength + 1;
+  }
+
+  private static int utf8Length(char c) {
+    if(c < 0x80) {
+      return 1;
+    } else if(c < 0x800
+        || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+      // a surrogate pair takes 4 bytes
+      return 2;
+    }
+    return 3;
+  }
+}
@@ -0,0 +1,337 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A queue of events kept in a directory, in a ring of memory-mapped segment
+ * files of a fixed size.  Events are appended to the last segment, each
+ * preceded by its length as a 4-byte integer, a length of 0 marking the end
+ * of the segment.  When all the segments are full the oldest one is
+ * discarded with the events not read yet, which are counted as dropped.
+ * <p>
+ * The position of the next event to read is kept in a small mapped file as
+ * well, so the events not read yet are found again when the spool is opened
+ * after a restart.  Nothing is forced to disk while the spool is used, the
+ * mapped pages survive the process and are written back by the operating
+ * system, close forces them once.
+ */
+public class EventSpool {
+  public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+  public static final int DEFAULT_MAX_SEGMENTS = 8;
+  private static final Pattern SEGMENT_NAME = Pattern.compile("spool-(\\d+)");
+  private static final String CURSOR_NAME = "cursor";
+
+  /**
+   * a mapped segment file
+   */
+  private static class Segment {
+    final long sequence;
+    final File file;
+    final MappedByteBuffer buffer;
+
+    Segment(long sequence, File file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * an event read from the spool, with where it was read from
+   */
+  public static class Entry {
+    private final long sequence;
+    private final int position;
+    private final byte[] event;
+
+    Entry(long sequence, int position, byte[] event) {
+      this.sequence = sequence;
+      this.position = position;
+      this.event = event;
+    }
+
+    /**
+     * @return a copy of the serialized event
+     */
+    public byte[] getEvent() {
+      return event;
+    }
+  }
+
+  private final File directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private final MappedByteBuffer cursor;   // sequence and position of the reader
+  private int readPosition = 0;            // in the first segment
+  private int writePosition = 0;           // in the last segment
+  private int size = 0;                    // events not read yet
+  private long dropped = 0;
+
+  /**
+   * Opens the spool of a directory with the default segments.
+   * @param directory the directory of the spool, created if needed
+   * @throws IOException
+   */
+  public EventSpool(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+  }
+
+  /**
+   * Opens the spool of a directory, finding the events left by a previous
+   * process.
+   * @param directory the directory of the spool, created if needed
+   * @param segmentBytes the size of each segment file, which is also the
+   *        maximum size of an event plus 4
+   * @param maxSegments the number of segment files, the size of the spool
+   *        being segmentBytes * maxSegments
+   * @throws IOException
+   */
+  public EventSpool(File directory, int segmentBytes, int maxSegments)
+    throws IOException
+  {
+    if(segmentBytes < 8 || maxSegments < 2) {
+      throw new IllegalArgumentException("invalid spool of " + maxSegments
+          + " segments of " + segmentBytes + " bytes");
+    }
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("unable to create " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+    this.cursor = map(new File(directory, CURSOR_NAME), 12);
+
+    List<Long> sequences = new ArrayList<Long>();
+    File[] files = directory.listFiles();
+    if(files != null) {
+      for(File file : files) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        if(matcher.matches()) {
+          sequences.add(Long.valueOf(matcher.group(1)));
+        }
+      }
+    }
+    Collections.sort(sequences);
+
+    long readSequence = cursor.getLong(0);
+    for(Long sequence : sequences) {
+      File file = segmentFile(sequence);
+      if(sequence < readSequence
+         || sequences.size() - sequences.indexOf(sequence) > maxSegments) {
+        // already read, or beyond the size of the spool
+        file.delete();
+        continue;
+      }
+      segments.add(new Segment(sequence, file, map(file, 0)));
+    }
+
+    if(segments.isEmpty()) {
+      addSegment(readSequence);
+    } else {
+      if(segments.getFirst().sequence == readSequence) {
+        readPosition = cursor.getInt(8);
+      }
+      for(Segment segment : segments) {
+        int position = (segment == segments.getFirst()) ? readPosition : 0;
+        int length;
+        while((length = length(segment, position)) > 0) {
+          size++;
+          position += 4 + length;
+        }
+        writePosition = position;
+      }
+    }
+    saveCursor();
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(directory, "spool-" + sequence);
+  }
+
+  /**
+   * maps a file, extending it with zeros to at least a size
+   */
+  private static MappedByteBuffer map(File file, int bytes) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if(raf.length() < bytes) {
+        raf.setLength(bytes);
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                  raf.length());
+    } finally {
+      // the mapping stays valid once the file is closed
+      raf.close();
+    }
+  }
+
+  private void addSegment(long sequence) throws IOException {
+    File file = segmentFile(sequence);
+    segments.add(new Segment(sequence, file, map(file, segmentBytes)));
+    writePosition = 0;
+  }
+
+  /**
+   * @return the length of the event at a position of a segment, 0 if there
+   *         is none
+   */
+  private static int length(Segment segment, int position) {
+    if(position + 4 > segment.buffer.capacity()) {
+      return 0;
+    }
+    int length = segment.buffer.getInt(position);
+    if(length <= 0 || position + 4 + length > segment.buffer.capacity()) {
+      return 0;
+    }
+    return length;
+  }
+
+  private void saveCursor() {
+    cursor.putLong(0, segments.getFirst().sequence);
+    cursor.putInt(8, readPosition);
+  }
+
+  /**
+   * appends an event, discarding the oldest segment if the spool is full
+   * @param event the serialized event, from its position to its limit
+   * @return false if the event is too large for a segment
+   * @throws IOException if a new segment cannot be created
+   */
+  public synchronized boolean append(ByteBuffer event) throws IOException {
+    int length = event.remaining();
+    if(length == 0 || 4 + length > segmentBytes) {
+      dropped++;
+      return false;
+    }
+    Segment last = segments.getLast();
+    if(writePosition + 4 + length > last.buffer.capacity()) {
+      if(segments.size() == maxSegments) {
+        discardFirst();
+      }
+      addSegment(last.sequence + 1);
+      last = segments.getLast();
+    }
+
+    // the length goes last, so a partly written event is never read
+    ByteBuffer buffer = last.buffer.duplicate();
+    buffer.position(writePosition + 4);
+    buffer.put(event);
+    last.buffer.putInt(writePosition, length);
+    writePosition += 4 + length;
+    size++;
+    return true;
+  }
+
+  /**
+   * discards the oldest segment and the events not read yet in it
+   */
+  private void discardFirst() {
+    Segment first = segments.removeFirst();
+    int length;
+    while((length = length(first, readPosition)) > 0) {
+      readPosition += 4 + length;
+      size--;
+      dropped++;
+    }
+    first.file.delete();
+    readPosition = 0;
+    saveCursor();
+  }
+
+  /**
+   * @return the oldest event not read yet, or null if there is none.  The
+   *         event stays in the spool until it is removed.
+   */
+  public synchronized Entry peek() {
+    while(true) {
+      Segment first = segments.getFirst();
+      int length = length(first, readPosition);
+      if(length > 0) {
+        byte[] event = new byte[length];
+        ByteBuffer buffer = first.buffer.duplicate();
+        buffer.position(readPosition + 4);
+        buffer.get(event);
+        return new Entry(first.sequence, readPosition, event);
+      }
+      if(first == segments.getLast()) {
+        return null;
+      }
+      // the segment was read entirely
+      segments.removeFirst();
+      first.file.delete();
+      readPosition = 0;
+      saveCursor();
+    }
+  }
+
+  /**
+   * removes an event returned by peek, unless the spool got full since and
+   * discarded it along with its segment, in which case the oldest event is
+   * another one and stays
+   * @param entry the entry returned by peek
+   * @return true if the event was removed, false if it was discarded
+   */
+  public synchronized boolean remove(Entry entry) {
+    Segment first = segments.getFirst();
+    if(first.sequence != entry.sequence || readPosition != entry.position) {
+      return false;
+    }
+    int length = length(first, readPosition);
+    if(length <= 0) {
+      return false;
+    }
+    readPosition += 4 + length;
+    size--;
+    saveCursor();
+    return true;
+  }
+
+  /**
+   * @return the number of events not read yet
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of events discarded because the spool was full or
+   *         they were too large
+   */
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * forces the segments and the position of the reader to disk
+   */
+  public synchronized void close() {
+    for(Segment segment : segments) {
+      segment.buffer.force();
+    }
+    cursor.force();
+  }
+}
@@ -0,0 +1,90 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+/**
+ * Table of indexed LWES attribute names such as "k0", "k1", ... so the
+ * names are built once for all the events rather than concatenated for
+ * every attribute of every event.  The table grows as larger indexes are
+ * asked for, and is shared by all the transports.
+ */
+public final class FieldNames {
+  public static final FieldNames TYPE = new FieldNames("t");
+  public static final FieldNames KEY = new FieldNames("k");
+  public static final FieldNames VALUE = new FieldNames("v");
+  public static final FieldNames CONTEXT_KEY = new FieldNames("ctxt_k");
+  public static final FieldNames CONTEXT_VALUE = new FieldNames("ctxt_v");
+  public static final FieldNames FILENAME = new FieldNames("f");
+  public static final FieldNames LINE = new FieldNames("l");
+  public static final FieldNames PRIORITY = new FieldNames("p");
+  public static final FieldNames MESSAGE = new FieldNames("m");
+  public static final FieldNames REPEAT = new FieldNames("r");
+  public static final FieldNames TRACE_ID = new FieldNames("trace_id");
+  public static final FieldNames LABEL = new FieldNames("label");
+  public static final FieldNames START = new FieldNames("start");
+  public static final FieldNames END = new FieldNames("end");
+
+  private static final int INITIAL_SIZE = 16;
+
+  private final String prefix;
+  // replaced by a larger copy when growing, never modified once published
+  private volatile String[] names;
+
+  /**
+   * @param prefix the prefix of the names, followed by the index
+   */
+  public FieldNames(String prefix) {
+    this.prefix = prefix;
+    this.names = build(new String[0], INITIAL_SIZE);
+  }
+
+  /**
+   * @param index the index of the attribute
+   * @return the prefix followed by the index
+   */
+  public String get(int index) {
+    String[] current = names;
+    if(index < current.length) {
+      return current[index];
+    }
+    return grow(index);
+  }
+
+  /**
+   * @return the prefix of the names
+   */
+  public String getPrefix() {
+    return prefix;
+  }
+
+  private synchronized String grow(int index) {
+    if(index < 0) {
+      throw new IndexOutOfBoundsException("negative index " + index);
+    }
+    String[] current = names;
+    if(index >= current.length) {
+      current = build(current, Math.max(index + 1, current.length * 2));
+      names = current;
+    }
+    return current[index];
+  }
+
+  private String[] build(String[] current, int size) {
+    String[] grown = new String[size];
+    System.arraycopy(current, 0, grown, 0, current.length);
+    for(int i = current.length; i < size; ++i) {
+      grown[i] = prefix + i;
+    }
+    return grown;
+  }
+}
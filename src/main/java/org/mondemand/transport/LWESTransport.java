@@ -25,31 +25,38 @@ import org.lwes.emitter.EmitterGroupBuilder;
 import org.mondemand.Config;
 import org.mondemand.Context;
 import org.mondemand.LogMessage;
+import org.mondemand.MetricsSnapshot;
 import org.mondemand.SampleTrackType;
 import org.mondemand.SamplesMessage;
 import org.mondemand.StatType;
 import org.mondemand.StatsMessage;
 import org.mondemand.TraceId;
-import org.mondemand.Transport;
+import org.mondemand.SnapshotTransport;
 import org.mondemand.TransportException;
+import org.mondemand.util.HostName;
 
 public class LWESTransport
-  implements Transport
+  implements SnapshotTransport
 {
 
   /********************
    * Constants        *
    ********************/
-  private static final String LOG_EVENT   = "MonDemand::LogMsg";
-  private static final String PERF_EVENT  = "MonDemand::PerfMsg";
-  private static final String STATS_EVENT = "MonDemand::StatsMsg";
-  private static final String TRACE_EVENT = "MonDemand::TraceMsg";
-  private static final int DEFAULT_MAXIMUM_METRICS = 512;
+  static final String LOG_EVENT   = "MonDemand::LogMsg";
+  static final String PERF_EVENT  = "MonDemand::PerfMsg";
+  static final String STATS_EVENT = "MonDemand::StatsMsg";
+  static final String TRACE_EVENT = "MonDemand::TraceMsg";
+  static final int DEFAULT_MAXIMUM_METRICS = 512;
+  public static final int DEFAULT_MAX_EVENT_BYTES = Event.MAX_MESSAGE_SIZE;
+  public static final String TRUNCATED_MARKER = "...[truncated]";
 
   /***********************
    * Instance attributes *
    ***********************/
   private EmitterGroup emitterGroup = null;
+  private int maxEventBytes = DEFAULT_MAX_EVENT_BYTES;
+  private final HostName localHost = HostName.local();
+  private volatile String sourceHost = null;
 
   /**
    * Creates an initializes a LWES transport.
@@ -107,6 +114,42 @@ public class LWESTransport
     }
   }
 
+  /**
+   * @return the maximum size of the events in bytes
+   */
+  public int getMaxEventBytes() {
+    return maxEventBytes;
+  }
+
+  /**
+   * Sets the maximum size of the events, such as 1400 bytes to avoid IP
+   * fragmentation.  Log messages and metrics are spread over as many events
+   * as needed, and a log message too large for an event on its own is
+   * truncated.
+   * @param maxEventBytes the maximum size of the events in bytes, capped to
+   *        the maximum size of an LWES event
+   */
+  public void setMaxEventBytes(int maxEventBytes) {
+    this.maxEventBytes = Math.min(maxEventBytes, Event.MAX_MESSAGE_SIZE);
+  }
+
+  /**
+   * @return the host name sent with trace messages
+   */
+  public String getSourceHost() {
+    String host = sourceHost;
+    return (host != null) ? host : localHost.get();
+  }
+
+  /**
+   * Sets the host name sent with trace messages, instead of the name of the
+   * local host which is looked up in the background.
+   * @param sourceHost the host name, null for the name of the local host
+   */
+  public void setSourceHost(String sourceHost) {
+    this.sourceHost = sourceHost;
+  }
+
   @Override
   public void sendLogs (String programId,
                         LogMessage[] messages,
@@ -119,46 +162,120 @@ public class LWESTransport
     }
 
     try {
-      // create the event and set parameters
-      Event logMsg = emitterGroup.createEvent(LOG_EVENT, false);
-      logMsg.setString("prog_id", programId);
-      logMsg.setUInt16("num", messages.length);
-
-      // for each log message, set the appropriate fields
-      for(int i=0; i<messages.length; ++i) {
-        TraceId traceId = messages[i].getTraceId();
-        if(traceId != null) {
-          if(traceId.compareTo(TraceId.NULL_TRACE_ID) != 0) {
-            logMsg.setUInt64 ("trace_id" + i, traceId.getId());
-          }
+      // the size of the attributes every event has
+      int fixedSize = EventSize.event(LOG_EVENT)
+        + EventSize.string("prog_id".length(), programId)
+        + EventSize.uint16("num".length());
+      if(contexts.length > 0) {
+        fixedSize += EventSize.uint16("ctxt_num".length());
+        for(int i=0; i<contexts.length; ++i) {
+          fixedSize += EventSize.string(EventSize.name("ctxt_k", i), contexts[i].getKey())
+            + EventSize.string(EventSize.name("ctxt_v", i), contexts[i].getValue());
         }
+      }
 
-        logMsg.setString("f" + i, messages[i].getFilename());
-        logMsg.setUInt32("l" + i, messages[i].getLine());
-        logMsg.setUInt32("p" + i, messages[i].getLevel());
-        logMsg.setString("m" + i, messages[i].getMessage());
+      Event logMsg = null;
+      int num = 0;
+      int size = fixedSize;
+      for(LogMessage message : messages) {
+        String text = message.getMessage();
+        int messageSize = logMessageSize(message, text, num);
+
+        // start a new event if the message doesn't fit in the current one
+        if(num > 0 && size + messageSize > maxEventBytes) {
+          emitLogs(logMsg, programId, num, contexts);
+          logMsg = null;
+          num = 0;
+          size = fixedSize;
+          messageSize = logMessageSize(message, text, num);
+        }
 
-        if(messages[i].getRepeat() > 1) {
-          logMsg.setUInt16("r" + i, messages[i].getRepeat());
+        // a message too large for an event of its own is truncated
+        if(size + messageSize > maxEventBytes) {
+          int excess = size + messageSize - maxEventBytes;
+          text = EventSize.truncate(text,
+              Math.max(0, EventSize.utf8Length(text) - excess),
+              TRUNCATED_MARKER);
+          messageSize = logMessageSize(message, text, num);
         }
-      }
 
-      // set the contextual data in the event
-      if(contexts.length > 0) {
-        logMsg.setUInt16("ctxt_num", contexts.length);
-        for(int i=0; i<contexts.length; ++i) {
-          logMsg.setString("ctxt_k" + i, contexts[i].getKey());
-          logMsg.setString("ctxt_v" + i, contexts[i].getValue());
+        if(logMsg == null) {
+          logMsg = emitterGroup.createEvent(LOG_EVENT, false);
         }
+        setLogMessage(logMsg, message, text, num);
+        num++;
+        size += messageSize;
       }
-
-      // emit the event
-      emitterGroup.emitToGroup(logMsg);
+      emitLogs(logMsg, programId, num, contexts);
     } catch(EventSystemException e) {
       throw new TransportException("Error sending log event", e);
     }
   }
 
+  /**
+   * @return the size of the attributes of a log message at index i
+   */
+  static int logMessageSize(LogMessage message, String text, int i) {
+    int size = EventSize.string(EventSize.name("f", i), message.getFilename())
+      + EventSize.uint32(EventSize.name("l", i))
+      + EventSize.uint32(EventSize.name("p", i))
+      + EventSize.string(EventSize.name("m", i), text);
+    TraceId traceId = message.getTraceId();
+    if(traceId != null && traceId.compareTo(TraceId.NULL_TRACE_ID) != 0) {
+      size += EventSize.int64(EventSize.name("trace_id", i));
+    }
+    if(message.getRepeat() > 1) {
+      size += EventSize.uint16(EventSize.name("r", i));
+    }
+    return size;
+  }
+
+  /**
+   * sets the attributes of a log message at index i
+   */
+  private static void setLogMessage(Event logMsg, LogMessage message,
+                                    String text, int i) {
+    TraceId traceId = message.getTraceId();
+    if(traceId != null) {
+      if(traceId.compareTo(TraceId.NULL_TRACE_ID) != 0) {
+        logMsg.setUInt64 (FieldNames.TRACE_ID.get(i), traceId.getId());
+      }
+    }
+
+    logMsg.setString(FieldNames.FILENAME.get(i), message.getFilename());
+    logMsg.setUInt32(FieldNames.LINE.get(i), message.getLine());
+    logMsg.setUInt32(FieldNames.PRIORITY.get(i), message.getLevel());
+    logMsg.setString(FieldNames.MESSAGE.get(i), text);
+
+    if(message.getRepeat() > 1) {
+      logMsg.setUInt16(FieldNames.REPEAT.get(i), message.getRepeat());
+    }
+  }
+
+  /**
+   * sets the attributes every log event has, and emits the event
+   */
+  private void emitLogs(Event logMsg, String programId, int num,
+                        Context[] contexts) {
+    if(num == 0) {
+      return;
+    }
+    logMsg.setString("prog_id", programId);
+    logMsg.setUInt16("num", num);
+
+    // set the contextual data in the event
+    if(contexts.length > 0) {
+      logMsg.setUInt16("ctxt_num", contexts.length);
+      for(int i=0; i<contexts.length; ++i) {
+        logMsg.setString(FieldNames.CONTEXT_KEY.get(i), contexts[i].getKey());
+        logMsg.setString(FieldNames.CONTEXT_VALUE.get(i), contexts[i].getValue());
+      }
+    }
+
+    // emit the event
+    emitterGroup.emitToGroup(logMsg);
+  }
+
   /**
    * sends all the stats and samples
    * @param programId - program id
@@ -177,14 +294,35 @@ public class LWESTransport
       return;
     }
 
+    send(MetricsSnapshot.of(programId, stats, samples, contexts, maxNumMetrics));
+  }
+
+  /**
+   * sends the metrics of a snapshot
+   * @param snapshot - the metrics, with the program id and contexts
+   * @throws TransportException
+   */
+  @Override
+  public void send(MetricsSnapshot snapshot) throws TransportException
+  {
+    if (snapshot.getContexts() == null || emitterGroup == null)
+    {
+      return;
+    }
+
     try
     {
+      Integer maxNumMetrics = snapshot.getMaxNumMetrics();
       StatsMessageStreamer sms =
-        new StatsMessageStreamer(programId, contexts, emitterGroup,
-            (null == maxNumMetrics) ? DEFAULT_MAXIMUM_METRICS : maxNumMetrics);
-
-      sendStats(sms, stats);
-      sendSamples(sms, samples);
+        new StatsMessageStreamer(snapshot.getProgramId(),
+            snapshot.getContexts(), emitterGroup,
+            (null == maxNumMetrics) ? DEFAULT_MAXIMUM_METRICS : maxNumMetrics,
+            maxEventBytes);
+
+      for (int i = 0; i < snapshot.size(); ++i) {
+        sms.addMetric(snapshot.getType(i).toString(), snapshot.getKey(i),
+                      snapshot.getValue(i));
+      }
       sms.flush();
     }
     catch (EventSystemException e)
@@ -254,27 +392,11 @@ public class LWESTransport
       // go through all the trackTypes and if one is set for the counter, emit that
       for(SampleTrackType trackType: SampleTrackType.values()) {
         if( (msg.getTrackingTypeValue() & trackType.value) == trackType.value) {
-          // default value (in case samples were not updated since last emit)
-          long value = 0;
-          if(sortedSamples.size() > 0) {
-            // values for average, sum and count are not coming from sortedSamples
-            if(trackType.value == SampleTrackType.AVG.value) {
-              value = msg.getCounter()/msg.getUpdateCounts();
-            } else if(trackType.value == SampleTrackType.SUM.value) {
-              value = msg.getCounter();
-            } else if(trackType.value == SampleTrackType.COUNT.value) {
-              value = msg.getUpdateCounts();
-            } else {
-              value = sortedSamples.get((int)( (sortedSamples.size() - 1) * trackType.indexInSamples));
-            }
-          } else {
-            // samples were not updated, i.e., no increment since the last
-            // emit, so send a value of 0
-          }
           // "_min", "_max", ... will be added to the original key
           // all these stats are gauges.
           sms.addMetric(StatType.Gauge.toString(),
-                msg.getKey() + trackType.keySuffix, value);
+                msg.getKey() + trackType.keySuffix,
+                MetricsSnapshot.sampleValue(msg, trackType, sortedSamples));
         }
       }
     }
@@ -282,10 +404,21 @@ public class LWESTransport
     return;
   }
 
+  /**
+   * @return the size of the attributes of a metric at index i
+   */
+  static int metricSize(String type, String key, int i)
+  {
+    return EventSize.string(EventSize.name("t", i), type)
+      + EventSize.string(EventSize.name("k", i), key)
+      + EventSize.int64(EventSize.name("v", i));
+  }
+
   /**
    * StatsMessageStreamer is a class that will take care of sending the lwes
    * events that contain all stats and samples metrics, ensuring that each event
-   * does not contain more than MAXIMUM_METRICS metrics.  Metrics are added by
+   * does not contain more than MAXIMUM_METRICS metrics nor take more than
+   * maxBytes bytes, unless a single metric does.  Metrics are added by
    * calling addMetric, and a call to flush should be done once all metrics have
    * been added.
    */
@@ -294,16 +427,32 @@ public class LWESTransport
     Context[] contexts;
     int maxMetrics;
     int numMetrics = 0;
+    int maxBytes;
+    int fixedBytes;
+    int numBytes;
     Event statsMsg;
     EmitterGroup emitterGroup;
 
-    StatsMessageStreamer (String programId, Context[] contexts, EmitterGroup emitterGroup, Integer maxMetrics)
+    StatsMessageStreamer (String programId, Context[] contexts,
+        EmitterGroup emitterGroup, Integer maxMetrics, int maxBytes)
       throws EventSystemException
     {
       this.programId = programId;
       this.contexts = contexts;
       this.emitterGroup = emitterGroup;
       this.maxMetrics = maxMetrics;
+      this.maxBytes = maxBytes;
+
+      // the size of the attributes every event has
+      fixedBytes = EventSize.event(STATS_EVENT)
+        + EventSize.string("prog_id".length(), programId)
+        + EventSize.uint16("num".length())
+        + EventSize.uint16("ctxt_num".length());
+      for (int i = 0; i < contexts.length; ++i) {
+        fixedBytes +=
+          EventSize.string(EventSize.name("ctxt_k", i), contexts[i].getKey())
+          + EventSize.string(EventSize.name("ctxt_v", i), contexts[i].getValue());
+      }
 
       initializeEvent();
     }
@@ -315,6 +464,7 @@ public class LWESTransport
       throws EventSystemException
     {
       statsMsg = emitterGroup.createEvent(STATS_EVENT, false);
+      numBytes = fixedBytes;
     }
 
     /**
@@ -327,8 +477,8 @@ public class LWESTransport
       statsMsg.setUInt16("num", numMetrics);
       int contextCount = 0;
       for (Context context : contexts) {
-        statsMsg.setString("ctxt_k" + contextCount, context.getKey());
-        statsMsg.setString("ctxt_v" + contextCount, context.getValue());
+        statsMsg.setString(FieldNames.CONTEXT_KEY.get(contextCount), context.getKey());
+        statsMsg.setString(FieldNames.CONTEXT_VALUE.get(contextCount), context.getValue());
         ++contextCount;
       }
       statsMsg.setUInt16("ctxt_num", contextCount);
@@ -361,21 +511,25 @@ public class LWESTransport
      */
     void addMetric(String type, String key, long value)
     {
-      if (numMetrics == maxMetrics)
+      int metricBytes = metricSize(type, key, numMetrics);
+      if (numMetrics == maxMetrics
+          || (numMetrics > 0 && numBytes + metricBytes > maxBytes))
       {
         // this resets numMetrics to 0
         emitMessage();
         initializeEvent();
+        metricBytes = metricSize(type, key, numMetrics);
       }
-      statsMsg.setString("t" + numMetrics, type);
-      statsMsg.setString("k" + numMetrics, key);
-      statsMsg.setInt64("v" + numMetrics, value);
+      statsMsg.setString(FieldNames.TYPE.get(numMetrics), type);
+      statsMsg.setString(FieldNames.KEY.get(numMetrics), key);
+      statsMsg.setInt64(FieldNames.VALUE.get(numMetrics), value);
       numMetrics++;
+      numBytes += metricBytes;
     }
   }
 
-  private static final String PROG_ID_KEY  = "mondemand.prog_id";
-  private static final String SRC_HOST_KEY = "mondemand.src_host";
+  static final String PROG_ID_KEY  = "mondemand.prog_id";
+  static final String SRC_HOST_KEY = "mondemand.src_host";
 
   @Override
   public void sendTrace (String programId,
@@ -389,8 +543,7 @@ public class LWESTransport
     try {
       Event traceMsg = emitterGroup.createEvent(TRACE_EVENT, false);
       traceMsg.setString(PROG_ID_KEY, programId);
-      String hostName = InetAddress.getLocalHost ().getHostName ();
-      traceMsg.setString(SRC_HOST_KEY, hostName);
+      traceMsg.setString(SRC_HOST_KEY, getSourceHost());
 
       for(int i=0; i<contexts.length; ++i) {
           traceMsg.setString(contexts[i].getKey(), contexts[i].getValue());
@@ -402,12 +555,9 @@ public class LWESTransport
     }
   }
 
-  private static final String PERF_ID_KEY = "id";
-  private static final String PERF_CALLER_LABEL_KEY = "caller_label";
-  private static final String PERF_NUM_KEY = "num";
-  private static final String PERF_LABEL_PREFIX = "label";
-  private static final String PERF_START_PREFIX = "start";
-  private static final String PERF_END_PREFIX = "end";
+  static final String PERF_ID_KEY = "id";
+  static final String PERF_CALLER_LABEL_KEY = "caller_label";
+  static final String PERF_NUM_KEY = "num";
 
   @Override
   public void sendPerformanceTrace(String id, String callerLabel,
@@ -435,9 +585,9 @@ public class LWESTransport
       perfMsg.setUInt16(PERF_NUM_KEY, label.length);
 
       for (int i = 0; i < label.length; ++i) {
-        perfMsg.setString(PERF_LABEL_PREFIX + i, label[i]);
-        perfMsg.setInt64(PERF_START_PREFIX + i, start[i]);
-        perfMsg.setInt64(PERF_END_PREFIX + i, end[i]);
+        perfMsg.setString(FieldNames.LABEL.get(i), label[i]);
+        perfMsg.setInt64(FieldNames.START.get(i), start[i]);
+        perfMsg.setInt64(FieldNames.END.get(i), end[i]);
       }
 
       // set the contextual data in the event
@@ -445,8 +595,8 @@ public class LWESTransport
         perfMsg.setUInt16("ctxt_num", contexts.length);
 
         for (int i = 0; i < contexts.length; ++i) {
-          perfMsg.setString("ctxt_k" + i, contexts[i].getKey());
-          perfMsg.setString("ctxt_v" + i, contexts[i].getValue());
+          perfMsg.setString(FieldNames.CONTEXT_KEY.get(i), contexts[i].getKey());
+          perfMsg.setString(FieldNames.CONTEXT_VALUE.get(i), contexts[i].getValue());
         }
       }
 
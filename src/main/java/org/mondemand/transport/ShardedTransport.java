@@ -0,0 +1,293 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.transport;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mondemand.Config;
+import org.mondemand.Context;
+import org.mondemand.LogMessage;
+import org.mondemand.MetricsSnapshot;
+import org.mondemand.SamplesMessage;
+import org.mondemand.SnapshotTransport;
+import org.mondemand.StatsMessage;
+import org.mondemand.Transport;
+import org.mondemand.TransportException;
+
+/**
+ * Spreads the metrics over several collectors, each metric key going to
+ * the same collectors on every flush as given by a ConsistentHashRing, so
+ * each collector only keeps a stable share of the series.  The extra stats
+ * of a sample follow the sample key, so they all go to the same
+ * collectors.  With a replication of 2 or more each metric goes to that
+ * many collectors.
+ * <p>
+ * Logs and traces are not series, they go to the collectors of the program
+ * id, and performance traces to the collectors of their id.
+ */
+public class ShardedTransport
+  implements SnapshotTransport, Flushable
+{
+  private final Transport[] collectors;
+  private final ConsistentHashRing ring;
+  private final int replicas;
+  // the collectors of each key seen, keys rarely change between flushes
+  private final ConcurrentHashMap<String, int[]> routes =
+    new ConcurrentHashMap<String, int[]>();
+  // the indexes of the metrics of a send bucketed by collector, the bucket
+  // of collector c going from starts[c] to ends[c]
+  private int[] indexes = new int[0];
+  private final int[] starts;
+  private final int[] ends;
+
+  /**
+   * @param collectors the transports to the collectors
+   * @param names the names of the collectors, such as "host:port", which
+   *        place them on the ring
+   * @param virtualNodes the number of points of each collector on the ring
+   * @param replicas the number of collectors each metric is sent to
+   */
+  public ShardedTransport(List<? extends Transport> collectors,
+                          List<String> names, int virtualNodes, int replicas) {
+    if (collectors.size() != names.size()) {
+      throw new IllegalArgumentException("there should be as many names as "
+          + "collectors");
+    }
+    this.collectors = collectors.toArray(new Transport[collectors.size()]);
+    this.ring = new ConsistentHashRing(names, virtualNodes);
+    this.replicas = Math.max(1, Math.min(replicas, collectors.size()));
+    this.starts = new int[collectors.size() + 1];
+    this.ends = new int[collectors.size()];
+  }
+
+  /**
+   * Creates an LWESTransport for each address of a config, with the number
+   * of replicas of the config.
+   * @param config the addresses of the collectors
+   * @throws TransportException
+   */
+  public ShardedTransport(Config config) throws TransportException {
+    this(createCollectors(config), names(config),
+         ConsistentHashRing.DEFAULT_VIRTUAL_NODES,
+         config.getReplicas() == null ? 1 : config.getReplicas());
+  }
+
+  private static List<Transport> createCollectors(Config config)
+    throws TransportException
+  {
+    List<Transport> collectors = new ArrayList<Transport>();
+    for (int i = 0; i < config.getAddresses().size(); ++i) {
+      collectors.add(new LWESTransport(config.getAddresses().get(i),
+          get(config.getPorts(), i, null),
+          config.getInterfaces() == null ? null : config.getInterfaces().get(i),
+          get(config.getTtls(), i, Config.TTL_DEFAULT)));
+    }
+    return collectors;
+  }
+
+  private static List<String> names(Config config) {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < config.getAddresses().size(); ++i) {
+      names.add(config.getAddresses().get(i).getHostAddress() + ":"
+                + get(config.getPorts(), i, null));
+    }
+    return names;
+  }
+
+  /**
+   * @return the value at index i, or the only value, or the default value
+   */
+  private static <T> T get(List<T> values, int i, T defaultValue) {
+    if (values == null) {
+      return defaultValue;
+    }
+    return values.size() == 1 ? values.get(0) : values.get(i);
+  }
+
+  /**
+   * @param key a metric key, program id or performance trace id
+   * @return the indexes of the collectors of the key
+   */
+  public int[] collectorsFor(String key) {
+    int[] route = routes.get(key);
+    if (route == null) {
+      route = ring.nodesFor(key, replicas);
+      routes.putIfAbsent(key, route);
+    }
+    return route;
+  }
+
+  @Override
+  public void send(String programId, StatsMessage[] stats,
+      SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics)
+    throws TransportException
+  {
+    if (contexts == null) {
+      return;
+    }
+
+    send(MetricsSnapshot.of(programId, stats, samples, contexts, maxNumMetrics));
+  }
+
+  @Override
+  public synchronized void send(MetricsSnapshot snapshot)
+    throws TransportException
+  {
+    int size = snapshot.size();
+    if (indexes.length < size * replicas) {
+      indexes = new int[size * replicas];
+    }
+    // counts the metrics of each collector, then fills the buckets
+    Arrays.fill(starts, 0);
+    for (int i = 0; i < size; ++i) {
+      for (int collector : collectorsFor(snapshot.getBaseKey(i))) {
+        starts[collector + 1]++;
+      }
+    }
+    for (int c = 0; c < collectors.length; ++c) {
+      starts[c + 1] += starts[c];
+      ends[c] = starts[c];
+    }
+    for (int i = 0; i < size; ++i) {
+      for (int collector : collectorsFor(snapshot.getBaseKey(i))) {
+        indexes[ends[collector]++] = i;
+      }
+    }
+
+    TransportException error = null;
+    for (int c = 0; c < collectors.length; ++c) {
+      if (ends[c] == starts[c]) {
+        continue;
+      }
+      try {
+        send(collectors[c],
+             snapshot.select(indexes, starts[c], ends[c] - starts[c]));
+      } catch (TransportException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static void send(Transport collector, MetricsSnapshot snapshot)
+    throws TransportException
+  {
+    if (collector instanceof SnapshotTransport) {
+      ((SnapshotTransport) collector).send(snapshot);
+      return;
+    }
+    StatsMessage[] stats = new StatsMessage[snapshot.size()];
+    for (int i = 0; i < stats.length; ++i) {
+      stats[i] = new StatsMessage(snapshot.getKey(i), snapshot.getType(i));
+      stats[i].setCounter(snapshot.getValue(i));
+    }
+    collector.send(snapshot.getProgramId(), stats, null,
+                   snapshot.getContexts(), snapshot.getMaxNumMetrics());
+  }
+
+  @Override
+  public void sendLogs(String programId, LogMessage[] messages,
+                       Context[] contexts)
+    throws TransportException
+  {
+    TransportException error = null;
+    for (int c : collectorsFor(programId)) {
+      try {
+        collectors[c].sendLogs(programId, messages, contexts);
+      } catch (TransportException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public void sendTrace(String programId, Context[] contexts)
+    throws TransportException
+  {
+    TransportException error = null;
+    for (int c : collectorsFor(programId)) {
+      try {
+        collectors[c].sendTrace(programId, contexts);
+      } catch (TransportException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public void sendPerformanceTrace(String id, String callerLabel,
+                                   String[] label, long[] start,
+                                   long[] end, Context[] contexts)
+    throws TransportException
+  {
+    TransportException error = null;
+    for (int c : collectorsFor(id)) {
+      try {
+        collectors[c].sendPerformanceTrace(id, callerLabel, label, start, end,
+                                           contexts);
+      } catch (TransportException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * flushes the collectors which batch events
+   */
+  @Override
+  public void flush() throws IOException {
+    IOException error = null;
+    for (Transport collector : collectors) {
+      if (collector instanceof Flushable) {
+        try {
+          ((Flushable) collector).flush();
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public void shutdown() throws TransportException {
+    TransportException error = null;
+    for (Transport collector : collectors) {
+      try {
+        collector.shutdown();
+      } catch (TransportException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the events over a persistent TCP connection, each event preceded
+ * by its length as a 4-byte big-endian integer.  Used with a
+ * DirectLWESTransport where UDP loses too many events:
+ * <pre>
+ *   new DirectLWESTransport(new SocketChannelSink(address, port));
+ * </pre>
+ * send only copies the event into a write buffer.  A background thread
+ * swaps that buffer with a second one and writes all the events it holds
+ * at once, so the events sent while a write is in progress are coalesced
+ * into the next one.
+ * <p>
+ * The background thread also connects, and reconnects after an error with
+ * a backoff that doubles up to a maximum.  While it is disconnected the
+ * events stay in the write buffer, the events which don't fit in it are
+ * dropped and counted.  The events of a failed write are sent again on
+ * the next connection, from the first event not completely written.
+ * <p>
+ * Once told to reject the events while it is disconnected, send throws
+ * instead from an error until the next connection, and when the write
+ * buffer is full, so that a SpoolingEventSink keeps those events.  The
+ * background thread then reconnects even without events to write.
+ */
+public class SocketChannelSink implements EventSink, Runnable {
+  public static final int DEFAULT_BUFFER_BYTES = 1024 * 1024;
+  public static final long DEFAULT_CONNECT_TIMEOUT = 5000;          // milliseconds
+  public static final long DEFAULT_INITIAL_BACKOFF = 100;           // milliseconds
+  public static final long DEFAULT_MAX_BACKOFF = 30000;             // milliseconds
+  public static final long DEFAULT_CLOSE_TIMEOUT = 1000;            // milliseconds
+  private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final InetSocketAddress target;
+  private final Thread thread;
+  private ByteBuffer pending;         // filled by send, guarded by this
+  private ByteBuffer writing;         // written by the background thread
+  private SocketChannel channel = null;
+  private long nextConnect = 0;
+  private long backoff = 0;
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong connects = new AtomicLong();
+  private volatile boolean connected = false;
+  private volatile boolean failing = false;   // from an error to a connection
+  private volatile boolean rejectWhileDisconnected = false;
+  private volatile boolean idle = false;
+  private volatile boolean running = true;
+  private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+  private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+  private volatile long closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+  /**
+   * Creates a sink with the default write buffer size.
+   * @param address the address to send the events to
+   * @param port the port to send the events to
+   */
+  public SocketChannelSink(InetAddress address, int port) {
+    this(address, port, DEFAULT_BUFFER_BYTES);
+  }
+
+  /**
+   * Creates a sink and starts its background thread, which connects.
+   * @param address the address to send the events to
+   * @param port the port to send the events to
+   * @param bufferBytes the size of the write buffer, which bounds the
+   *        events waiting to be written
+   */
+  public SocketChannelSink(InetAddress address, int port, int bufferBytes) {
+    if(bufferBytes < 4) {
+      throw new IllegalArgumentException("invalid buffer size " + bufferBytes);
+    }
+    this.target = new InetSocketAddress(address, port);
+    this.pending = ByteBuffer.allocate(bufferBytes);
+    this.writing = ByteBuffer.allocate(bufferBytes);
+    this.writing.flip();
+    this.thread = new Thread(this, "mondemand-socket-sink");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * copies the event into the write buffer, dropping it if the buffer is
+   * full
+   * @throws IOException if the sink is closed, or if it rejects the events
+   *         while disconnected and it is, or its buffer is full
+   */
+  @Override
+  public void send(ByteBuffer event) throws IOException {
+    if(!running) {
+      throw new IOException("sink is closed");
+    }
+    if(rejectWhileDisconnected && failing) {
+      throw new IOException("not connected to " + target);
+    }
+    synchronized(this) {
+      if(pending.remaining() < 4 + event.remaining()) {
+        if(rejectWhileDisconnected) {
+          throw new IOException("write buffer full");
+        }
+        dropped.incrementAndGet();
+        return;
+      }
+      pending.putInt(event.remaining());
+      pending.put(event);
+    }
+    if(idle) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  @Override
+  public void run() {
+    while(running || hasPending()) {
+      if(!writing.hasRemaining()) {
+        swap();
+      }
+      // a rejecting sink reconnects without waiting for events
+      boolean reconnect = rejectWhileDisconnected && failing && running;
+      if(!writing.hasRemaining() && !reconnect) {
+        if(!running) {
+          break;
+        }
+        idle = true;
+        // check again, an event sent before idle was set wouldn't wake us
+        if(!hasPending()) {
+          LockSupport.parkNanos(this, IDLE_WAIT);
+        }
+        idle = false;
+        continue;
+      }
+
+      if(channel == null && !connect()) {
+        if(!running) {
+          break;
+        }
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(
+            Math.max(1, nextConnect - System.currentTimeMillis())));
+        continue;
+      }
+      write();
+    }
+    disconnect();
+  }
+
+  private synchronized boolean hasPending() {
+    return writing.hasRemaining() || pending.position() > 0;
+  }
+
+  /**
+   * hands the events sent so far to the background thread
+   */
+  private synchronized void swap() {
+    ByteBuffer events = pending;
+    writing.clear();
+    pending = writing;
+    events.flip();
+    writing = events;
+  }
+
+  /**
+   * @return true if the sink is connected, false if it is backing off
+   */
+  private boolean connect() {
+    long now = System.currentTimeMillis();
+    if(now < nextConnect) {
+      return false;
+    }
+    SocketChannel socket = null;
+    try {
+      socket = SocketChannel.open();
+      socket.socket().setTcpNoDelay(true);
+      socket.socket().connect(target, (int) connectTimeout);
+      channel = socket;
+      connected = true;
+      failing = false;
+      backoff = 0;
+      connects.incrementAndGet();
+      return true;
+    } catch(IOException e) {
+      if(socket != null) {
+        try {
+          socket.close();
+        } catch(IOException ignored) {}
+      }
+      backOff();
+      return false;
+    }
+  }
+
+  private void backOff() {
+    failing = true;
+    backoff = (backoff == 0) ? initialBackoff
+                             : Math.min(backoff * 2, maxBackoff);
+    nextConnect = System.currentTimeMillis() + backoff;
+  }
+
+  /**
+   * writes the events of the write buffer, keeping the events not completely
+   * written for the next connection if the write fails
+   */
+  private void write() {
+    int start = writing.position();
+    try {
+      while(writing.hasRemaining()) {
+        channel.write(writing);
+      }
+      sent.addAndGet(frames(start, writing.limit()));
+    } catch(IOException e) {
+      // go back to the first event not completely written
+      int end = writing.position();
+      int position = start;
+      while(position + 4 <= end && position + 4 + writing.getInt(position) <= end) {
+        position += 4 + writing.getInt(position);
+      }
+      sent.addAndGet(frames(start, position));
+      writing.position(position);
+      disconnect();
+      backOff();
+    }
+  }
+
+  /**
+   * @return the number of events between two positions of the write buffer
+   */
+  private int frames(int start, int end) {
+    int count = 0;
+    for(int position = start; position < end;
+        position += 4 + writing.getInt(position)) {
+      count++;
+    }
+    return count;
+  }
+
+  private void disconnect() {
+    connected = false;
+    if(channel != null) {
+      try {
+        channel.close();
+      } catch(IOException e) {}
+      channel = null;
+    }
+  }
+
+  /**
+   * Stops accepting events, waits at most the close timeout for the
+   * buffered events to be written, and closes the connection.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(Math.max(1, closeTimeout));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if(thread.isAlive()) {
+      // unblocks a write to an unresponsive peer
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * @param connectTimeout the maximum time to wait for a connection, in
+   *        milliseconds
+   */
+  public void setConnectTimeout(long connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * @param initialBackoff the time to wait before reconnecting after a
+   *        first error, in milliseconds
+   * @param maxBackoff the longest time to wait before reconnecting, in
+   *        milliseconds
+   */
+  public void setReconnectBackoff(long initialBackoff, long maxBackoff) {
+    this.initialBackoff = Math.max(1, initialBackoff);
+    this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+  }
+
+  /**
+   * @param closeTimeout the maximum time close waits for the buffered events
+   *        to be written, in milliseconds
+   */
+  public void setCloseTimeout(long closeTimeout) {
+    this.closeTimeout = closeTimeout;
+  }
+
+  /**
+   * @param rejectWhileDisconnected true if send throws instead of buffering
+   *        the events from an error until the next connection, and instead
+   *        of dropping the events which don't fit in the write buffer
+   */
+  public void setRejectWhileDisconnected(boolean rejectWhileDisconnected) {
+    this.rejectWhileDisconnected = rejectWhileDisconnected;
+  }
+
+  /**
+   * @return true if the sink is connected
+   */
+  public boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * @return the number of connections made, the first one included
+   */
+  public long getConnects() {
+    return connects.get();
+  }
+
+  /**
+   * @return the number of events written to a connection
+   */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * @return the number of events dropped because the write buffer was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+}
@@ -0,0 +1,194 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the events another sink fails to send in an EventSpool, and sends
+ * them again once that sink works:
+ * <pre>
+ *   SocketChannelSink socket = new SocketChannelSink(address, port);
+ *   socket.setRejectWhileDisconnected(true);
+ *   new DirectLWESTransport(new SpoolingEventSink(socket,
+ *       new EventSpool(new File("/var/spool/mondemand"))));
+ * </pre>
+ * After a failure the other sink is not tried for a retry interval, the
+ * events go straight to the spool meanwhile.  A background thread then
+ * replays the spooled events at a limited rate, so a recovering collector
+ * isn't flooded.  The new events keep going to the spool until it is
+ * empty, so the events arrive in order, which takes a replay rate above
+ * the rate of the events.  The replay stops at the first failure, until
+ * the next retry interval.
+ * <p>
+ * Only the sinks which throw when they can't send benefit from the spool.
+ * A SocketChannelSink only throws once told to reject the events while it
+ * is disconnected, otherwise it buffers then drops them.  AsyncEventSink
+ * counts its failures instead, and a DatagramChannelSink doesn't know if
+ * its events arrive.
+ */
+public class SpoolingEventSink implements EventSink, Runnable {
+  public static final long DEFAULT_RETRY_INTERVAL = 5000;           // milliseconds
+  public static final int DEFAULT_REPLAY_RATE = 1000;               // events per second
+  private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final EventSink sink;
+  private final EventSpool spool;
+  private final Thread thread;
+  // held while sending, so a replayed event and a new one don't cross
+  private final Object sending = new Object();
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private volatile long retryAt = 0;      // the sink is skipped until then
+  private volatile boolean running = true;
+  private volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+  private volatile int replayRate = DEFAULT_REPLAY_RATE;
+
+  /**
+   * Creates a sink and starts the thread replaying the spool, which may
+   * hold the events of a previous process.
+   * @param sink the sink to send the events to
+   * @param spool the spool of the events the sink failed to send
+   */
+  public SpoolingEventSink(EventSink sink, EventSpool spool) {
+    this.sink = sink;
+    this.spool = spool;
+    this.thread = new Thread(this, "mondemand-spool-replay");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * sends the event, or spools it if the sink fails or is being skipped
+   * @throws IOException if the spool cannot take the event either
+   */
+  @Override
+  public void send(ByteBuffer event) throws IOException {
+    if(!running) {
+      throw new IOException("sink is closed");
+    }
+    int position = event.position();
+    synchronized(sending) {
+      if(System.currentTimeMillis() >= retryAt && spool.size() == 0) {
+        try {
+          sink.send(event);
+          return;
+        } catch(Exception e) {
+          retryAt = System.currentTimeMillis() + retryInterval;
+          event.position(position);
+        }
+      }
+      spool(event);
+    }
+  }
+
+  private void spool(ByteBuffer event) throws IOException {
+    if(spool.append(event)) {
+      spooled.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void run() {
+    long next = System.nanoTime();
+    while(running) {
+      long now = System.currentTimeMillis();
+      if(now < retryAt) {
+        LockSupport.parkNanos(this,
+            TimeUnit.MILLISECONDS.toNanos(retryAt - now));
+        continue;
+      }
+      EventSpool.Entry entry = spool.peek();
+      if(entry == null) {
+        LockSupport.parkNanos(this, IDLE_WAIT);
+        next = System.nanoTime();
+        continue;
+      }
+      synchronized(sending) {
+        try {
+          sink.send(ByteBuffer.wrap(entry.getEvent()));
+          // leaves the spool alone if it discarded the event meanwhile
+          spool.remove(entry);
+          replayed.incrementAndGet();
+        } catch(Exception e) {
+          retryAt = System.currentTimeMillis() + retryInterval;
+          continue;
+        }
+      }
+      // one event every 1/rate second, catching up after short delays only
+      next = Math.max(next + TimeUnit.SECONDS.toNanos(1) / Math.max(1, replayRate),
+                      System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+      long wait = next - System.nanoTime();
+      if(wait > 0) {
+        LockSupport.parkNanos(this, wait);
+      }
+    }
+  }
+
+  /**
+   * Stops the replay and closes the spool and the other sink.  The events
+   * left in the spool are replayed by the next sink using it.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(1000);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    spool.close();
+    sink.close();
+  }
+
+  /**
+   * @param retryInterval the time the other sink is skipped after a failure,
+   *        in milliseconds
+   */
+  public void setRetryInterval(long retryInterval) {
+    this.retryInterval = retryInterval;
+  }
+
+  /**
+   * @param replayRate the maximum number of spooled events sent per second
+   */
+  public void setReplayRate(int replayRate) {
+    this.replayRate = replayRate;
+  }
+
+  /**
+   * @return the number of events in the spool
+   */
+  public int getSpoolSize() {
+    return spool.size();
+  }
+
+  /**
+   * @return the number of events spooled
+   */
+  public long getSpooled() {
+    return spooled.get();
+  }
+
+  /**
+   * @return the number of spooled events sent
+   */
+  public long getReplayed() {
+    return replayed.get();
+  }
+}
@@ -0,0 +1,366 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mondemand.Context;
+import org.mondemand.LogMessage;
+import org.mondemand.MetricsSnapshot;
+import org.mondemand.SamplesMessage;
+import org.mondemand.SnapshotTransport;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.TransportException;
+
+/**
+ * Sends the stats to a StatsD agent, as lines such as
+ * <pre>
+ *   prog_id.requests:12|c|#cluster:east,host:web1
+ * </pre>
+ * The contexts become DogStatsD tags, and the extra stats of the samples
+ * are sent as gauges.  The lines are packed into datagrams of at most
+ * maxPacketBytes, encoded straight into a single reused buffer and sent
+ * over one DatagramChannel.
+ * <p>
+ * MonDemand counters are totals, while StatsD counters are increments, so
+ * by default the difference with the previous value of each counter is
+ * sent, the whole value when the counter went down.  Clients flushing with
+ * resetStats should turn this off with setCounterDeltas.  Logs and traces
+ * have no StatsD equivalent and are ignored.
+ */
+public class StatsdTransport
+  implements SnapshotTransport
+{
+  // an Ethernet MTU less the IP and UDP headers
+  public static final int DEFAULT_MAX_PACKET_BYTES = 1432;
+
+  private final DatagramChannel channel;
+  private final InetSocketAddress target;
+  private final ByteBuffer packet;
+  // the last value of each counter, by program id, tags and key
+  private final Map<String, Map<String, Map<String, long[]>>> lastCounters =
+    new HashMap<String, Map<String, Map<String, long[]>>>();
+  private boolean counterDeltas = true;
+  private Context[] taggedContexts = null;
+  private String tags = "";
+  private long dropped = 0;
+
+  /**
+   * @param address the address of the StatsD agent
+   * @param port the port of the StatsD agent
+   * @throws TransportException
+   */
+  public StatsdTransport(InetAddress address, int port)
+    throws TransportException
+  {
+    this(address, port, DEFAULT_MAX_PACKET_BYTES);
+  }
+
+  /**
+   * @param address the address of the StatsD agent
+   * @param port the port of the StatsD agent
+   * @param maxPacketBytes the maximum size of the datagrams
+   * @throws TransportException
+   */
+  public StatsdTransport(InetAddress address, int port, int maxPacketBytes)
+    throws TransportException
+  {
+    try {
+      this.target = new InetSocketAddress(address, port);
+      this.channel = DatagramChannel.open();
+      this.packet = ByteBuffer.allocate(maxPacketBytes);
+    } catch(IOException e) {
+      throw new TransportException("Unable to open StatsD channel", e);
+    }
+  }
+
+  /**
+   * @param counterDeltas true to send the increase of the counters since
+   *        the previous send, false to send their value
+   */
+  public synchronized void setCounterDeltas(boolean counterDeltas) {
+    this.counterDeltas = counterDeltas;
+  }
+
+  /**
+   * @return the number of lines too large for a datagram, which were not
+   *         sent
+   */
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  @Override
+  public void sendLogs(String programId, LogMessage[] messages,
+                       Context[] contexts)
+  {
+  }
+
+  @Override
+  public void send(String programId, StatsMessage[] stats,
+      SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics)
+    throws TransportException
+  {
+    if (contexts == null) {
+      return;
+    }
+
+    send(MetricsSnapshot.of(programId, stats, samples, contexts, maxNumMetrics));
+  }
+
+  @Override
+  public synchronized void send(MetricsSnapshot snapshot)
+    throws TransportException
+  {
+    if (snapshot.getContexts() == null) {
+      return;
+    }
+
+    try {
+      String programId = snapshot.getProgramId();
+      String tags = tags(snapshot.getContexts());
+      // the length of a line without its key and value: the program id,
+      // '.', ':', the type and the tags
+      int fixed = length(programId) + 2 + 2 + length(tags);
+      Map<String, long[]> counters =
+        counterDeltas ? counters(programId, tags) : null;
+      packet.clear();
+      for (int i = 0; i < snapshot.size(); ++i) {
+        String key = snapshot.getKey(i);
+        long value = snapshot.getValue(i);
+        if (snapshot.getType(i) == StatType.Counter) {
+          if (counters != null) {
+            long[] last = counters.get(key);
+            if (last == null) {
+              counters.put(key, new long[] { value });
+            } else {
+              long previous = last[0];
+              last[0] = value;
+              if (value >= previous) {
+                value -= previous;
+              }
+            }
+          }
+          line(programId, key, value, "|c", tags, fixed);
+        } else {
+          // a gauge starting with a sign is a relative change in StatsD
+          if (value < 0) {
+            line(programId, key, 0, "|g", tags, fixed);
+          }
+          line(programId, key, value, "|g", tags, fixed);
+        }
+      }
+      flush();
+    } catch(IOException e) {
+      throw new TransportException("Error sending StatsD packet", e);
+    }
+  }
+
+  /**
+   * @return the last values of the counters of a program with the tags
+   */
+  private Map<String, long[]> counters(String programId, String tags) {
+    Map<String, Map<String, long[]>> byTags = lastCounters.get(programId);
+    if (byTags == null) {
+      byTags = new HashMap<String, Map<String, long[]>>();
+      lastCounters.put(programId, byTags);
+    }
+    Map<String, long[]> counters = byTags.get(tags);
+    if (counters == null) {
+      counters = new HashMap<String, long[]>();
+      byTags.put(tags, counters);
+    }
+    return counters;
+  }
+
+  /**
+   * @return the DogStatsD tags of the contexts, kept until they change
+   */
+  private String tags(Context[] contexts) {
+    if (contexts != taggedContexts) {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < contexts.length; ++i) {
+        builder.append(i == 0 ? "|#" : ",");
+        appendName(builder, contexts[i].getKey());
+        builder.append(':');
+        appendName(builder, contexts[i].getValue());
+      }
+      tags = builder.toString();
+      taggedContexts = contexts;
+    }
+    return tags;
+  }
+
+  private static void appendName(StringBuilder builder, String name) {
+    for (int i = 0; i < name.length(); ++i) {
+      char c = name.charAt(i);
+      builder.append(isSeparator(c) ? '_' : c);
+    }
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == ':' || c == '|' || c == '@' || c == '#' || c == ','
+      || c == '\n';
+  }
+
+  /**
+   * adds a line to the packet, sending the packet first if the line does
+   * not fit in what is left of it
+   * @param fixed the length of the line without its key and value
+   */
+  private void line(String programId, String key, long value, String type,
+                    String tags, int fixed) throws IOException {
+    int length = fixed + length(key) + digits(value);
+    if (packet.position() > 0 && 1 + length > packet.remaining()) {
+      flush();
+    }
+    if (length > packet.remaining()) {
+      dropped++;
+      return;
+    }
+    if (packet.position() > 0) {
+      packet.put((byte) '\n');
+    }
+    put(programId, true);
+    packet.put((byte) '.');
+    put(key, true);
+    packet.put((byte) ':');
+    put(value);
+    put(type, false);
+    put(tags, false);
+  }
+
+  /**
+   * @return the number of characters of a number in decimal
+   */
+  private static int digits(long value) {
+    int digits = value < 0 ? 2 : 1;
+    // negative values, as -Long.MIN_VALUE does not fit in a long
+    for (long v = value < 0 ? value : -value; v <= -10; v /= 10) {
+      digits++;
+    }
+    return digits;
+  }
+
+  /**
+   * writes a number in decimal, from its last digit
+   */
+  private void put(long value) {
+    int end = packet.position() + digits(value);
+    int index = end;
+    long v = value < 0 ? value : -value;
+    do {
+      packet.put(--index, (byte) ('0' - v % 10));
+      v /= 10;
+    } while (v != 0);
+    if (value < 0) {
+      packet.put(--index, (byte) '-');
+    }
+    packet.position(end);
+  }
+
+  /**
+   * @return the number of bytes written by put for a string
+   */
+  private static int length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                 && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        ++i;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * writes a string as UTF-8, replacing the StatsD separators of names
+   */
+  private void put(String value, boolean name) {
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (name && isSeparator(c)) {
+        c = '_';
+      }
+      if (c < 0x80) {
+        packet.put((byte) c);
+      } else if (c < 0x800) {
+        packet.put((byte) (0xc0 | (c >> 6)));
+        packet.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                 && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        packet.put((byte) (0xf0 | (codePoint >> 18)));
+        packet.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        packet.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        packet.put((byte) (0x80 | (codePoint & 0x3f)));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // an unpaired surrogate
+        packet.put((byte) '?');
+      } else {
+        packet.put((byte) (0xe0 | (c >> 12)));
+        packet.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        packet.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  private void flush() throws IOException {
+    if (packet.position() == 0) {
+      return;
+    }
+    packet.flip();
+    channel.send(packet, target);
+    packet.clear();
+  }
+
+  @Override
+  public void sendTrace(String programId, Context[] contexts)
+  {
+  }
+
+  @Override
+  public void sendPerformanceTrace(String id, String callerLabel,
+                                   String[] label, long[] start,
+                                   long[] end, Context[] contexts)
+  {
+  }
+
+  @Override
+  public void shutdown()
+    throws TransportException
+  {
+    try {
+      channel.close();
+    } catch(IOException e) {
+      throw new TransportException("Unable to close StatsD channel", e);
+    }
+  }
+}
@@ -18,12 +18,13 @@ import java.util.Collections;
 import org.mondemand.Context;
 import org.mondemand.Level;
 import org.mondemand.LogMessage;
+import org.mondemand.MetricsSnapshot;
 import org.mondemand.SampleTrackType;
 import org.mondemand.SamplesMessage;
 import org.mondemand.StatsMessage;
-import org.mondemand.Transport;
+import org.mondemand.SnapshotTransport;
 
-public class StderrTransport implements Transport {
+public class StderrTransport implements SnapshotTransport {
 
   public StderrTransport() {
   }
@@ -59,6 +60,19 @@ public class StderrTransport implements Transport {
    sendSamples(programId, samples);
   }
 
+  public void send (MetricsSnapshot snapshot) {
+    for(int i=0; i<snapshot.size(); ++i) {
+      try {
+        System.err.println("["+snapshot.getProgramId()+"] "
+                                              + snapshot.getType(i) + " : "
+                                              + snapshot.getKey(i) + " : "
+                                              + snapshot.getValue(i));
+      } catch(Exception e) {
+        // we can't write to stderr, so just give up
+      }
+    }
+  }
+
   public void sendStats (String programId,
                          StatsMessage[] messages,
                          Context[] contexts)
@@ -88,23 +102,7 @@ public class StderrTransport implements Transport {
         // go through all the trackTypes and if one is set for the counter, log that
         for(SampleTrackType trackType: SampleTrackType.values()) {
           if( (msg.getTrackingTypeValue() & trackType.value) == trackType.value) {
-            // default value (in case samples were not updated since last log)
-            long value = 0;
-            if(sortedSamples.size() != 0) {
-              // values for average, sum and count are not coming from sortedSamples
-              if(trackType.value == SampleTrackType.AVG.value) {
-                value = msg.getCounter()/msg.getUpdateCounts();
-              } else if(trackType.value == SampleTrackType.SUM.value) {
-                value = msg.getCounter();
-              } else if(trackType.value == SampleTrackType.COUNT.value) {
-                value = msg.getUpdateCounts();
-              } else {
-                value = sortedSamples.get((int)( (sortedSamples.size() - 1) * trackType.indexInSamples));
-              }
-            } else {
-              // samples were not updated, i.e., no increment since the last
-              // log, so log a value of 0
-            }
+            long value = MetricsSnapshot.sampleValue(msg, trackType, sortedSamples);
             // "min_", "max_", ... will be added to the original key
             System.err.println("["+programId+"] " + msg.getType() + " : "
                 + msg.getKey() + trackType.keySuffix + " : "
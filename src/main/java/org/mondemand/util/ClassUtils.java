@@ -12,15 +12,28 @@
 
 package org.mondemand.util;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+
 /**
  * Various class utilities that are used when the user doesn't specify parameters in the API.
  * These methods do not usually perform very well due to the need to obtain stack traces, so it is almost always
  * preferred for the user to specify these parameters in the MonDemand API instead of trying to determine
  * them using this class at runtime.
- * 
+ * <p>
+ * To limit the cost, only the frames that are needed are looked at when the
+ * JVM allows it: through the StackWalker API on Java 9 and later, and through
+ * the JVM's internal access to a single stack trace element on older JVMs.
+ * Other JVMs fall back to capturing the whole stack trace.
+ *
  * @author Michael Lum
  */
 public class ClassUtils {
+  private static final FrameLocator LOCATOR = createLocator();
+
   /**
    * Returns the top-level class name.   Useful when trying to determine the name of the application
    * calling the system when it is not specified.
@@ -39,16 +52,10 @@ public class ClassUtils {
    * @return the name of the calling class in the stack
    */
   public static String getCallingClass(int depth) {
-    try {
-      StackTraceElement[] st = (new Throwable()).getStackTrace();
-      if (st != null) {
-        if(depth > st.length) {
-          return st[st.length-1].getClassName();
-        } else {
-          return st[depth].getClassName();
-        }
-      }
-    } catch(Exception e) {}
+    StackTraceElement location = locate(depth + 1);
+    if (location != null) {
+      return location.getClassName();
+    }
 
     return ClassUtils.getMainClass();
   }
@@ -59,17 +66,189 @@ public class ClassUtils {
    * @return the line number of the calling class in the stack
    */
   public static int getCallingLine(int depth) {
+    StackTraceElement location = locate(depth + 1);
+    if (location != null) {
+      return location.getLineNumber();
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns both the calling class and line number from the depth specified
+   * with a single look up of the stack, which is cheaper than calling
+   * getCallingClass and getCallingLine.
+   * @param depth the depth to traverse in the stack
+   * @return the stack element of the caller, or null if it can't be determined
+   */
+  public static StackTraceElement getCallingLocation(int depth) {
+    return locate(depth + 1);
+  }
+
+  /**
+   * looks up the stack element at the given depth, where depth 0 is this
+   * method and depth 1 its caller, or the deepest element if the stack is not
+   * that deep.
+   */
+  private static StackTraceElement locate(int depth) {
+    if (depth < 1) {
+      return null;
+    }
     try {
+      return LOCATOR.locate(depth);
+    } catch(Exception e) {}
+
+    return null;
+  }
+
+  /**
+   * picks the cheapest way to look up a single stack frame on this JVM
+   */
+  private static FrameLocator createLocator() {
+    try {
+      return new StackWalkerLocator();
+    } catch(Throwable t) {}
+    try {
+      return new JavaLangAccessLocator();
+    } catch(Throwable t) {}
+    return new ThrowableLocator();
+  }
+
+  /**
+   * looks up a single frame of the current stack, where depth 0 is the
+   * frame calling locate.
+   */
+  interface FrameLocator {
+    StackTraceElement locate(int depth) throws Exception;
+  }
+
+  /**
+   * captures the whole stack trace, works on any JVM
+   */
+  static class ThrowableLocator implements FrameLocator {
+    @Override
+    public StackTraceElement locate(int depth) {
       StackTraceElement[] st = (new Throwable()).getStackTrace();
-      if (st != null) {
-        if(depth > st.length) {
-          return st[st.length-1].getLineNumber();
-        } else {
-          return st[depth].getLineNumber();
-        }
+      if (st == null || st.length == 0) {
+        return null;
       }
-    } catch(Exception e) {}
+      // skip this frame
+      depth++;
+      return depth >= st.length ? st[st.length - 1] : st[depth];
+    }
+  }
 
-    return 0;
+  /**
+   * fills in the native stack of a throwable but only builds the stack trace
+   * element that is needed, available up to Java 8
+   */
+  static class JavaLangAccessLocator implements FrameLocator {
+    private final Object javaLangAccess;
+    private final Method getStackTraceDepth;
+    private final Method getStackTraceElement;
+
+    JavaLangAccessLocator() throws Exception {
+      Class<?> sharedSecrets = Class.forName("sun.misc.SharedSecrets");
+      Class<?> accessClass = Class.forName("sun.misc.JavaLangAccess");
+      javaLangAccess = sharedSecrets.getMethod("getJavaLangAccess").invoke(null);
+      getStackTraceDepth =
+        accessClass.getMethod("getStackTraceDepth", Throwable.class);
+      getStackTraceElement =
+        accessClass.getMethod("getStackTraceElement", Throwable.class, int.class);
+      // make sure it works before using it
+      if (locate(0) == null) {
+        throw new IllegalStateException("unable to look up stack frames");
+      }
+    }
+
+    @Override
+    public StackTraceElement locate(int depth) throws Exception {
+      Throwable t = new Throwable();
+      int stackDepth = (Integer) getStackTraceDepth.invoke(javaLangAccess, t);
+      if (stackDepth == 0) {
+        return null;
+      }
+      // skip this frame
+      depth++;
+      return (StackTraceElement) getStackTraceElement.invoke(javaLangAccess, t,
+          depth >= stackDepth ? stackDepth - 1 : depth);
+    }
+  }
+
+  /**
+   * walks only the frames that are needed with the StackWalker API, available
+   * from Java 9 on.  The library is built for Java 6, so the StackWalker and
+   * the Java 8 Function and Stream types it uses are only reached through
+   * reflection, the Function being a proxy.
+   */
+  static class StackWalkerLocator implements FrameLocator {
+    private final Object walker;
+    private final Method walk;
+    private final Method toStackTraceElement;
+    private final Constructor<?> function;
+    private final Method skip;
+    private final Method iterator;
+
+    StackWalkerLocator() throws Exception {
+      Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+      Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+      Class<?> functionClass = Class.forName("java.util.function.Function");
+      Class<?> streamClass = Class.forName("java.util.stream.Stream");
+      walker = walkerClass.getMethod("getInstance").invoke(null);
+      walk = walkerClass.getMethod("walk", functionClass);
+      toStackTraceElement = frameClass.getMethod("toStackTraceElement");
+      function = Proxy.getProxyClass(functionClass.getClassLoader(),
+          functionClass).getConstructor(InvocationHandler.class);
+      skip = streamClass.getMethod("skip", long.class);
+      iterator = streamClass.getMethod("iterator");
+      // make sure it works before using it
+      if (locate(0) == null) {
+        throw new IllegalStateException("unable to walk the stack");
+      }
+    }
+
+    @Override
+    public StackTraceElement locate(final int depth) throws Exception {
+      // the walk starts at this frame, reflection frames are not shown
+      Object frame = walk.invoke(walker,
+          function.newInstance(new FrameAt(depth + 1)));
+      if (frame == null) {
+        // not that deep, fall back on the deepest frame
+        StackTraceElement[] st = (new Throwable()).getStackTrace();
+        return st.length == 0 ? null : st[st.length - 1];
+      }
+      return (StackTraceElement) toStackTraceElement.invoke(frame);
+    }
+
+    /**
+     * the Function returning the frame at a given depth of the walked
+     * stream of frames, or null
+     */
+    class FrameAt implements InvocationHandler {
+      private final int depth;
+
+      FrameAt(int depth) {
+        this.depth = depth;
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable
+      {
+        if ("apply".equals(method.getName()) && args != null
+            && args.length == 1) {
+          Iterator<?> it = (Iterator<?>)
+            iterator.invoke(skip.invoke(args[0], (long) depth));
+          return it.hasNext() ? it.next() : null;
+        }
+        if ("equals".equals(method.getName())) {
+          return proxy == args[0];
+        }
+        if ("hashCode".equals(method.getName())) {
+          return System.identityHashCode(proxy);
+        }
+        return "FrameAt(" + depth + ")";
+      }
+    }
   }
 }
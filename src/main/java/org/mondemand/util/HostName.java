@@ -0,0 +1,85 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.util;
+
+import java.net.InetAddress;
+
+/**
+ * The name of the local host, resolved once and then refreshed by a
+ * background thread, so reading it never waits for a name lookup.  Looking
+ * up the host name can take seconds when DNS is slow.
+ */
+public class HostName implements Runnable {
+  public static final long DEFAULT_REFRESH_INTERVAL = 10 * 60 * 1000;  // milliseconds
+  static final String UNKNOWN = "localhost";
+
+  private static HostName local = null;
+
+  private final long refreshInterval;
+  private volatile String name;
+
+  /**
+   * @return the name of the local host, shared by all the transports.  The
+   *         first call resolves the name, so it is best made at startup.
+   */
+  public static synchronized HostName local() {
+    if (local == null) {
+      local = new HostName(DEFAULT_REFRESH_INTERVAL);
+      local.start();
+    }
+    return local;
+  }
+
+  /**
+   * resolves the name of the local host
+   * @param refreshInterval the time between lookups in milliseconds
+   */
+  HostName(long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+    this.name = UNKNOWN;
+    refresh();
+  }
+
+  private void start() {
+    Thread thread = new Thread(this, "mondemand-host-name");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return the last name resolved, "localhost" if it was never resolved
+   */
+  public String get() {
+    return name;
+  }
+
+  /**
+   * looks up the name again, keeping the previous one if the lookup fails
+   */
+  void refresh() {
+    try {
+      name = InetAddress.getLocalHost().getHostName();
+    } catch (Exception e) {}
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(refreshInterval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      refresh();
+    }
+  }
+}
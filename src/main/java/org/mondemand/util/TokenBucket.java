@@ -0,0 +1,81 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+
+package org.mondemand.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket.  Rather than a token count and a refill time,
+ * the bucket only keeps the time at which it will be full again, so taking
+ * a token is a single compare and set.
+ */
+public class TokenBucket {
+  private final long intervalNanos;   // time to refill one token
+  private final long capacityNanos;   // time to refill the whole bucket
+  private final AtomicLong fullAt;    // time at which the bucket is full
+
+  /**
+   * creates a full bucket
+   * @param permitsPerSecond the rate at which tokens are added to the bucket
+   * @param burst the number of tokens the bucket holds
+   */
+  public TokenBucket(double permitsPerSecond, int burst) {
+    if(permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("invalid rate " + permitsPerSecond
+          + " or burst " + burst);
+    }
+    this.intervalNanos = interval(permitsPerSecond);
+    this.capacityNanos = intervalNanos * burst;
+    this.fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  private static long interval(double permitsPerSecond) {
+    return Math.max(1, (long) (1000000000L / permitsPerSecond));
+  }
+
+  /**
+   * @param permitsPerSecond a rate
+   * @param burst a number of tokens
+   * @return true if the bucket was created with that rate and burst
+   */
+  public boolean hasRate(double permitsPerSecond, int burst) {
+    return permitsPerSecond > 0 && intervalNanos == interval(permitsPerSecond)
+      && capacityNanos == intervalNanos * burst;
+  }
+
+  /**
+   * @return true if a token was taken from the bucket
+   */
+  public boolean tryAcquire() {
+    return tryAcquire(System.nanoTime());
+  }
+
+  /**
+   * @param now the current time in nanoseconds, as returned by
+   *        System.nanoTime()
+   * @return true if a token was taken from the bucket
+   */
+  public boolean tryAcquire(long now) {
+    while(true) {
+      long full = fullAt.get();
+      // a bucket that is already full doesn't get any fuller
+      long next = (full - now < 0 ? now : full) + intervalNanos;
+      if(next - now > capacityNanos) {
+        return false;
+      }
+      if(fullAt.compareAndSet(full, next)) {
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.mondemand.log4j.MonDemandAppender;
+
+/**
+ * Measures the throughput of logging from several threads through the
+ * MonDemandAppender, directly and behind log4j's AsyncAppender.  Not run as
+ * part of the unit tests, run its main method with the test classpath after
+ * "mvn test-compile".  Events are sent to 127.0.0.1:20402.
+ */
+public class AppenderBenchmark {
+  private static final int THREADS = 8;
+  private static final int EVENTS = 100000;
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    MonDemandAppender direct = createAppender();
+    Logger directLogger = Logger.getLogger("direct");
+    directLogger.setAdditivity(false);
+    directLogger.addAppender(direct);
+
+    AsyncAppender async = new AsyncAppender();
+    async.setBlocking(true);
+    async.setLocationInfo(true);
+    async.addAppender(createAppender());
+    Logger asyncLogger = Logger.getLogger("async");
+    asyncLogger.setAdditivity(false);
+    asyncLogger.addAppender(async);
+
+    for (int round = 0; round < ROUNDS; ++round) {
+      System.out.println("round " + round);
+      report("MonDemandAppender", run(directLogger));
+      report("AsyncAppender", run(asyncLogger));
+    }
+    async.close();
+    direct.close();
+  }
+
+  private static MonDemandAppender createAppender() {
+    MonDemandAppender appender = new MonDemandAppender();
+    appender.setProgId("AppenderBenchmark");
+    appender.setAddress("127.0.0.1");
+    appender.setPort(20402);
+    appender.activateOptions();
+    return appender;
+  }
+
+  private static void report(String name, long nanos) {
+    System.out.println(String.format("  %-20s %10d events/s", name,
+        (long) THREADS * EVENTS * 1000000000L / nanos));
+  }
+
+  private static long run(final Logger logger) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(THREADS);
+    for (int t = 0; t < THREADS; ++t) {
+      final int thread = t;
+      new Thread() {
+        @Override
+        public void run() {
+          MDC.put("thread", Integer.toString(thread));
+          try {
+            start.await();
+            for (int i = 0; i < EVENTS; ++i) {
+              logger.warn("benchmark");
+            }
+          } catch (InterruptedException e) {
+            // stop
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - begin;
+  }
+}
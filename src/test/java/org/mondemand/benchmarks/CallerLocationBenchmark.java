@@ -0,0 +1,79 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.benchmarks;
+
+import org.mondemand.Client;
+import org.mondemand.Level;
+import org.mondemand.util.ClassUtils;
+
+/**
+ * Measures the cost of looking up the caller of a log call.  Not run as part
+ * of the unit tests, run its main method with the test classpath after
+ * "mvn test-compile".
+ *
+ * "two throwables" is what the convenience log methods used to do, one full
+ * stack capture for the class and another one for the line number.
+ */
+public class CallerLocationBenchmark {
+  private static final int ITERATIONS = 200000;
+  private static final int ROUNDS = 5;
+  private static final int STACK_DEPTH = 30;
+
+  public static void main(String[] args) {
+    Client client = new Client("CallerLocationBenchmark");
+    client.setNoSendLevel(Level.ALL);
+    client.setImmediateSendLevel(Level.OFF);
+
+    for (int round = 0; round < ROUNDS; ++round) {
+      System.out.println("round " + round);
+      report("two throwables", run(0, client));
+      report("getCallingLocation", run(1, client));
+      report("client.error(String)", run(2, client));
+    }
+  }
+
+  private static void report(String name, long nanos) {
+    System.out.println(String.format("  %-24s %8d ns/call",
+                                     name, nanos / ITERATIONS));
+  }
+
+  private static long run(int mode, Client client) {
+    long start = System.nanoTime();
+    long sink = 0;
+    for (int i = 0; i < ITERATIONS; ++i) {
+      sink += call(STACK_DEPTH, mode, client);
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sink == 42) {
+      System.out.println();
+    }
+    return elapsed;
+  }
+
+  // recurse first, so the stack looks like the one of an application
+  private static int call(int depth, int mode, Client client) {
+    if (depth > 0) {
+      return call(depth - 1, mode, client);
+    }
+    switch (mode) {
+      case 0:
+        StackTraceElement[] st1 = new Throwable().getStackTrace();
+        StackTraceElement[] st2 = new Throwable().getStackTrace();
+        return st1[2].getClassName().length() + st2[2].getLineNumber();
+      case 1:
+        return ClassUtils.getCallingLocation(2).getLineNumber();
+      default:
+        client.error("benchmark");
+        return 1;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+
+import org.mondemand.Context;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.transport.FieldNames;
+import org.mondemand.transport.LWESTransport;
+
+/**
+ * Measures the memory allocated for the attribute names of a full
+ * MonDemand::StatsMsg event, when concatenating them as the transport used
+ * to and when looking them up in FieldNames, and the memory allocated by a
+ * whole flush of as many stats.  Not run as part of the unit tests, run its
+ * main method with the test classpath after "mvn test-compile".  Requires a
+ * JVM reporting per-thread allocations, such as HotSpot.
+ */
+public class FieldNamesBenchmark {
+  private static final int METRICS = 512;
+  private static final int CONTEXTS = 4;
+  private static final int ITERATIONS = 1000;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  public static void main(String[] args) throws Exception {
+    StatsMessage[] stats = new StatsMessage[METRICS];
+    for (int i = 0; i < METRICS; ++i) {
+      stats[i] = new StatsMessage("key_" + i, StatType.Counter);
+      stats[i].incrementBy(i);
+    }
+    Context[] contexts = new Context[CONTEXTS];
+    for (int i = 0; i < CONTEXTS; ++i) {
+      contexts[i] = new Context("context_" + i, "value_" + i);
+    }
+    LWESTransport transport =
+      new LWESTransport(InetAddress.getByName("127.0.0.1"), 20402, null);
+
+    for (int round = 0; round < 3; ++round) {
+      report("concatenated names", concatenated());
+      report("FieldNames", table());
+      report("whole flush", flush(transport, stats, contexts));
+    }
+  }
+
+  private static void report(String name, long bytes) {
+    System.out.println(String.format("  %-20s %10d bytes/flush", name,
+                                     bytes / ITERATIONS));
+  }
+
+  private static long allocated() {
+    return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long concatenated() {
+    long sink = 0;
+    long start = allocated();
+    for (int n = 0; n < ITERATIONS; ++n) {
+      for (int i = 0; i < METRICS; ++i) {
+        sink += ("t" + i).length() + ("k" + i).length() + ("v" + i).length();
+      }
+      for (int i = 0; i < CONTEXTS; ++i) {
+        sink += ("ctxt_k" + i).length() + ("ctxt_v" + i).length();
+      }
+    }
+    long bytes = allocated() - start;
+    return sink == 42 ? 0 : bytes;
+  }
+
+  private static long table() {
+    long sink = 0;
+    long start = allocated();
+    for (int n = 0; n < ITERATIONS; ++n) {
+      for (int i = 0; i < METRICS; ++i) {
+        sink += FieldNames.TYPE.get(i).length() + FieldNames.KEY.get(i).length()
+          + FieldNames.VALUE.get(i).length();
+      }
+      for (int i = 0; i < CONTEXTS; ++i) {
+        sink += FieldNames.CONTEXT_KEY.get(i).length()
+          + FieldNames.CONTEXT_VALUE.get(i).length();
+      }
+    }
+    long bytes = allocated() - start;
+    return sink == 42 ? 0 : bytes;
+  }
+
+  private static long flush(LWESTransport transport, StatsMessage[] stats,
+                            Context[] contexts) throws Exception {
+    long start = allocated();
+    for (int n = 0; n < ITERATIONS; ++n) {
+      transport.send("FieldNamesBenchmark", stats, null, contexts, METRICS);
+    }
+    return allocated() - start;
+  }
+}
@@ -0,0 +1,114 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.mondemand.Client;
+import org.mondemand.Level;
+import org.mondemand.LogMessage;
+import org.mondemand.SampleTrackType;
+import org.mondemand.StatsMessage;
+import org.mondemand.annotation.Counted;
+import org.mondemand.annotation.Logged;
+import org.mondemand.annotation.Timed;
+import org.mondemand.tests.ClientTest.ClientTestTransport;
+
+public class AnnotationProcessorTest {
+  static class Worker {
+    private final Client client;
+    // the lines of the log calls, as seen at runtime
+    int logLine;
+    int failLogLine;
+    int loopLogLine;
+
+    Worker(Client client) {
+      this.client = client;
+    }
+
+    @Counted
+    @Timed(key = "work_time", track = { SampleTrackType.MAX })
+    @Logged
+    void work(int time) {
+      client.increment(AnnotationProcessorTest_Worker_MonDemand.workCounted);
+      client.addSample(AnnotationProcessorTest_Worker_MonDemand.workTimed, time);
+      // a reference in a comment is not a log call: Worker_MonDemand.workLogged
+      logLine = line(); client.log(AnnotationProcessorTest_Worker_MonDemand.workLogged,
+                 Level.ERROR, null, "worked {}", new Object[] { time });
+      // the line is the one of the call, not of the statement it is in
+      if (time > 5)
+        client.log(AnnotationProcessorTest_Worker_MonDemand.workFailedLogged, Level.ERROR, null, "too long {}", new Object[] { time, failLogLine = line() });
+      for (int i = time; i > 6;
+           i = 0)
+        client.log(AnnotationProcessorTest_Worker_MonDemand.workLoopLogged, Level.ERROR, null, "loop {}", new Object[] { time, loopLogLine = line() });
+    }
+
+    private static int line() {
+      return new Throwable().getStackTrace()[1].getLineNumber();
+    }
+
+    @Counted(key = "work_overload")
+    void work() {
+      client.increment(AnnotationProcessorTest_Worker_MonDemand.workCounted_2);
+    }
+  }
+
+  @Test
+  public void testGeneratedHandles() {
+    Client client = new Client("AnnotationProcessorTest");
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setImmediateSendLevel(Level.OFF);
+
+    Worker worker = new Worker(client);
+    worker.work(5);
+    worker.work(7);
+    worker.work();
+
+    client.flush();
+    assertEquals(transport.stats.length, 2);
+    for (StatsMessage stat : transport.stats) {
+      if (stat.getKey().equals("work_overload")) {
+        assertEquals(stat.getCounter(), 1);
+      } else {
+        // the nested classes are separated by '.' in keys
+        assertEquals(stat.getKey(),
+            Worker.class.getName().replace('$', '.') + ".work");
+        assertEquals(stat.getCounter(), 2);
+      }
+    }
+    assertEquals(transport.samples.length, 1);
+    assertEquals(transport.samples[0].getKey(), "work_time");
+    assertEquals(transport.samples[0].getTrackingTypeValue(),
+                 SampleTrackType.MAX.value);
+
+    // each log call has its own log site, with the line of the call
+    // and the binary name of its class, as the call sites found at runtime
+    assertEquals(transport.logs.length, 3);
+    for (LogMessage log : transport.logs) {
+      assertEquals(log.getFilename(), Worker.class.getName());
+      if (log.getMessage().equals("worked 5")) {
+        assertEquals(log.getLine(), worker.logLine);
+        assertEquals(log.getRepeat(), 2);
+      } else if (log.getMessage().startsWith("loop")) {
+        assertEquals(log.getMessage(), "loop 7 " + worker.loopLogLine);
+        assertEquals(log.getLine(), worker.loopLogLine);
+        assertEquals(log.getRepeat(), 1);
+      } else {
+        assertEquals(log.getMessage(), "too long 7 " + worker.failLogLine);
+        assertEquals(log.getLine(), worker.failLogLine);
+        assertEquals(log.getRepeat(), 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mondemand.transport.AsyncEventSink;
+import org.mondemand.transport.AsyncEventSink.OverflowPolicy;
+
+public class AsyncEventSinkTest {
+  /**
+   * a sink that blocks until it is released, as a full socket buffer would
+   */
+  static class BlockedSink extends DirectLWESTransportTest.CapturingSink {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+
+    @Override
+    public void send(ByteBuffer event) {
+      entered.countDown();
+      try {
+        released.await();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      super.send(event);
+    }
+  }
+
+  private static ByteBuffer event(int value) {
+    return ByteBuffer.wrap(new byte[] { (byte) value });
+  }
+
+  /**
+   * fills the queue of a sink stuck sending event 0 with events 1 to 5
+   */
+  private static AsyncEventSink fill(BlockedSink blocked, int capacity,
+                                     OverflowPolicy policy) throws Exception {
+    AsyncEventSink sink = new AsyncEventSink(blocked, capacity, policy);
+    sink.send(event(0));
+    assertTrue(blocked.entered.await(5, TimeUnit.SECONDS));
+    for (int i = 1; i <= 5; ++i) {
+      sink.send(event(i));
+    }
+    assertEquals(sink.getQueueDepth(), capacity);
+    return sink;
+  }
+
+  private static void assertSent(BlockedSink blocked, int... values) {
+    assertEquals(blocked.events.size(), values.length);
+    for (int i = 0; i < values.length; ++i) {
+      assertEquals(blocked.events.get(i)[0], values[i]);
+    }
+  }
+
+  @Test
+  public void testDropNewest() throws Exception {
+    BlockedSink blocked = new BlockedSink();
+    AsyncEventSink sink = fill(blocked, 3, OverflowPolicy.DROP_NEWEST);
+    assertEquals(sink.getDropped(), 2);
+
+    blocked.released.countDown();
+    sink.close();
+    assertTrue(blocked.closed);
+    assertSent(blocked, 0, 1, 2, 3);
+    assertEquals(sink.getSent(), 4);
+    assertEquals(sink.getQueueDepth(), 0);
+    assertTrue(sink.getMaxSendNanos() > 0);
+    assertTrue(sink.getSendNanos() >= sink.getMaxSendNanos());
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    BlockedSink blocked = new BlockedSink();
+    AsyncEventSink sink = fill(blocked, 3, OverflowPolicy.DROP_OLDEST);
+    assertEquals(sink.getDropped(), 2);
+
+    blocked.released.countDown();
+    sink.close();
+    assertSent(blocked, 0, 3, 4, 5);
+  }
+
+  @Test
+  public void testBlock() throws Exception {
+    final BlockedSink blocked = new BlockedSink();
+    final AsyncEventSink sink =
+      new AsyncEventSink(blocked, 1, OverflowPolicy.BLOCK);
+    sink.send(event(0));
+    assertTrue(blocked.entered.await(5, TimeUnit.SECONDS));
+    sink.send(event(1));
+
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          sink.send(event(2));
+        } catch(IOException e) {
+        }
+      }
+    };
+    sender.start();
+    sender.join(100);
+    assertTrue(sender.isAlive());
+
+    blocked.released.countDown();
+    sender.join(5000);
+    sink.close();
+    assertSent(blocked, 0, 1, 2);
+    assertEquals(sink.getDropped(), 0);
+  }
+
+  @Test
+  public void testFailures() throws Exception {
+    AsyncEventSink sink = new AsyncEventSink(
+        new DirectLWESTransportTest.CapturingSink() {
+          @Override
+          public void send(ByteBuffer event) {
+            throw new IllegalStateException("unreachable");
+          }
+        });
+    sink.send(event(0));
+    sink.close();
+    assertEquals(sink.getFailed(), 1);
+    assertEquals(sink.getSent(), 0);
+
+    try {
+      sink.send(event(1));
+      assertTrue(false);
+    } catch(IOException e) {
+    }
+  }
+}
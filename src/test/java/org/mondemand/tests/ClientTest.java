@@ -29,13 +29,18 @@ import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.spi.LocationInfo;
@@ -57,18 +62,25 @@ import org.mondemand.ErrorHandler;
 import org.mondemand.EventType;
 import org.mondemand.Level;
 import org.mondemand.LogMessage;
+import org.mondemand.MetricsSnapshot;
 import org.mondemand.MondemandException;
 import org.mondemand.SampleTrackType;
 import org.mondemand.SamplesMessage;
 import org.mondemand.StatType;
+import org.mondemand.SnapshotTransport;
 import org.mondemand.StatsMessage;
 import org.mondemand.TraceId;
 import org.mondemand.Transport;
 import org.mondemand.TransportException;
 import org.mondemand.log4j.MonDemandAppender;
+import org.mondemand.transport.EventSize;
+import org.mondemand.transport.FieldNames;
 import org.mondemand.transport.LWESTransport;
 import org.mondemand.transport.StderrTransport;
 import org.mondemand.util.ClassUtils;
+import org.mondemand.util.TokenBucket;
+
+import com.google.common.base.Supplier;
 
 public class ClientTest {
   // stub emitter group for LwesTransport
@@ -81,6 +93,7 @@ public class ClientTest {
       public Map<String, String> eventKeys = new HashMap<String, String>();
       public Map<String, Long> eventValues = new HashMap<String, Long>();
       public Map<String, Object> others = new HashMap<String, Object>();
+      public int size = 0;
       public EventData() { }
     }
 
@@ -105,6 +118,7 @@ public class ClientTest {
       // that start with "t", "k" or "v"
       MapEvent me = (MapEvent)event;
       EventData ed = new EventData();
+      ed.size = me.serialize().length;
       for(String key : me.getEventAttributes()) {
         if(key.startsWith("t")) {
           ed.eventTypes.put(key, me.getString(key));
@@ -297,6 +311,27 @@ public class ClientTest {
     ClassUtils.getCallingLine(-20000);
   }
 
+  @Test
+  public void testCallingLocation() {
+    StackTraceElement here = ClassUtils.getCallingLocation(1);
+    assertEquals(here.getClassName(), ClientTest.class.getName());
+    assertEquals(here.getMethodName(), "testCallingLocation");
+    assertEquals(ClassUtils.getCallingClass(1), ClientTest.class.getName());
+    assertEquals(ClassUtils.getCallingLine(1), here.getLineNumber() + 4);
+    assertNull(ClassUtils.getCallingLocation(-1));
+    assertNotNull(ClassUtils.getCallingLocation(1000000));
+
+    // the convenience log methods record their caller
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setImmediateSendLevel(Level.OFF);
+    client.error("located");
+    client.flushLogs();
+    assertEquals(transport.logs[0].getFilename(), ClientTest.class.getName());
+    assertEquals(transport.logs[0].getLine(), here.getLineNumber() + 13);
+  }
+
   @Test
   public void testProgId() {
     Client client = createClient();
@@ -353,6 +388,115 @@ public class ClientTest {
     assertNull(client.getContext("key1"));
   }
 
+  @Test
+  public void testMaxEventBytesLogs() throws Exception {
+    LWESTransport localLwesTransport = new LWESTransport(InetAddress.getLocalHost(), 9292, null);
+    StubEmitterGroup g = createStubEmitterGroup(localLwesTransport);
+    localLwesTransport.setMaxEventBytes(600);
+    assertEquals(localLwesTransport.getMaxEventBytes(), 600);
+
+    // about 175 bytes per message, and about 100 bytes for the rest
+    StringBuilder text = new StringBuilder();
+    for(int i=0; i<10; ++i) {
+      text.append("message\u00e9\u4e2d ");
+    }
+    LogMessage[] messages = new LogMessage[11];
+    for(int i=0; i<messages.length; ++i) {
+      messages[i] = new LogMessage();
+      messages[i].setFilename("ClientTest");
+      messages[i].setLine(i);
+      messages[i].setMessage(text.toString());
+      messages[i].setRepeat(i);
+    }
+    messages[5].setMessage(text.toString() + text + text + text + text);
+    Context[] contexts = new Context[] { new Context("ctxt", "value") };
+    localLwesTransport.sendLogs("ClientTestSample", messages, contexts);
+
+    // all the messages are sent, in events that are all under the limit
+    assertEquals(g.getEventsNumber(), 7);
+    int num = 0;
+    for(StubEmitterGroup.EventData ed : g.eventDataList) {
+      assertTrue(ed.size <= 600);
+      assertEquals(ed.others.get("ctxt_k0"), "ctxt");
+      for(int i=0; i<(Integer) ed.others.get("num"); ++i, ++num) {
+        assertEquals(ed.others.get("l" + i), (long) num);
+        String message = (String) ed.others.get("m" + i);
+        if(num == 5) {
+          assertTrue(message.endsWith(LWESTransport.TRUNCATED_MARKER));
+          assertTrue(text.toString().startsWith(message.substring(0, 10)));
+        } else {
+          assertEquals(message, text.toString());
+        }
+      }
+    }
+    assertEquals(num, messages.length);
+
+    // the sizes are exact
+    g.clearMaps();
+    localLwesTransport.setMaxEventBytes(65535);
+    localLwesTransport.sendLogs("ClientTestSample", messages, contexts);
+    assertEquals(g.getEventsNumber(), 1);
+    int size = EventSize.event("MonDemand::LogMsg")
+      + EventSize.string(7, "ClientTestSample") + EventSize.uint16(3)
+      + EventSize.uint16(8) + EventSize.string(7, "ctxt") + EventSize.string(7, "value");
+    for(int i=0; i<messages.length; ++i) {
+      int digits = (i < 10 ? 1 : 2);
+      size += EventSize.string(1 + digits, "ClientTest")
+        + 2 * EventSize.uint32(1 + digits)
+        + EventSize.string(1 + digits, messages[i].getMessage())
+        + (i > 1 ? EventSize.uint16(1 + digits) : 0);
+    }
+    assertEquals(g.eventDataList.get(0).size, size);
+  }
+
+  @Test
+  public void testMaxEventBytesStats() throws Exception {
+    LWESTransport localLwesTransport = new LWESTransport(InetAddress.getLocalHost(), 9292, null);
+    Client client = createLwesClient(localLwesTransport);
+    StubEmitterGroup g = createStubEmitterGroup(localLwesTransport);
+    localLwesTransport.setMaxEventBytes(1400);
+
+    int count = 100;
+    client.addContext("test1", "test2");
+    for(int cnt=0; cnt<count; ++cnt) {
+      client.increment("a_fairly_long_key_name_" + cnt, cnt);
+    }
+    client.flush(false);
+
+    // the metrics are spread over events that are all under the limit, and
+    // each event is filled as much as possible
+    assertTrue(g.getEventsNumber() > 1);
+    int num = 0;
+    for(StubEmitterGroup.EventData ed : g.eventDataList) {
+      assertTrue(ed.size <= 1400);
+      if(num + (Integer) ed.others.get("num") < count) {
+        assertTrue(ed.size > 1400 - 60);
+      }
+      num += (Integer) ed.others.get("num");
+    }
+    assertEquals(num, count);
+    assertEquals(g.eventKeysSize(), count);
+
+    // the count limit still applies
+    g.clearMaps();
+    client.setMaxNumMetrics(10);
+    client.flush(false);
+    assertEquals(g.getEventsNumber(), 10);
+  }
+
+  @Test
+  public void testFieldNames() {
+    FieldNames names = new FieldNames("k");
+    assertEquals(names.get(0), "k0");
+    assertEquals(names.get(15), "k15");
+    // grows past its initial size, and keeps returning the same instances
+    String name = names.get(1000);
+    assertEquals(name, "k1000");
+    assertTrue(name == names.get(1000));
+    assertEquals(names.get(16), "k16");
+    assertEquals(FieldNames.CONTEXT_VALUE.get(3), "ctxt_v3");
+  }
+
   @Test
   public void testMaxNumMetrics() throws Exception {
     LWESTransport localLwesTransport = new LWESTransport(InetAddress.getLocalHost(), 9292, null);
@@ -383,6 +527,86 @@ public class ClientTest {
     client.finalize();
   }
 
+  @Test
+  public void testEmitChangedOnly() throws MondemandException {
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setEmitChangedOnly(true);
+    client.setFullEmitInterval(3);
+    assertTrue(client.isEmitChangedOnly());
+    assertEquals(client.getFullEmitInterval(), 3);
+
+    client.increment("changed1");
+    client.increment("changed2");
+    client.setKey("gauge1", 5);
+    client.flush();
+    assertEquals(transport.stats.length, 3);
+
+    // only the counter that was incremented and the gauge set to a new
+    // value should be emitted
+    client.increment("changed1");
+    client.increment("changed2", 0);
+    client.setKey("gauge1", 6);
+    transport.stats = new StatsMessage[0];
+    client.flush();
+    assertEquals(transport.stats.length, 2);
+
+    // the third flush is a full emit, even if nothing changed
+    transport.stats = new StatsMessage[0];
+    client.flush();
+    assertEquals(transport.stats.length, 3);
+
+    // nothing changed, nothing is sent
+    client.setKey("gauge1", 6);
+    transport.stats = new StatsMessage[0];
+    client.flush();
+    assertEquals(transport.stats.length, 0);
+
+    client.setEmitChangedOnly(false);
+    client.flush();
+    assertEquals(transport.stats.length, 3);
+  }
+
+  @Test
+  public void testEmitChangedOnlyConcurrentSet() throws Exception {
+    Client client = createClientNoTransports();
+    final long[] sent = new long[] { -1 };
+    client.addTransport(new ClientTestTransport() {
+      @Override
+      public void send(String programId, StatsMessage[] messages,
+                       SamplesMessage[] samples, Context[] contexts,
+                       Integer maxNumMetrics) {
+        for(StatsMessage message : messages) {
+          sent[0] = message.getCounter();
+        }
+      }
+    });
+    client.setEmitChangedOnly(true);
+    client.setFullEmitInterval(Integer.MAX_VALUE);
+
+    // a gauge set during a flush is sent by that flush or the next one
+    final Client setter = client;
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for(int i=0; i<200000; ++i) {
+            setter.setKey("gauge", i);
+          }
+        } catch(MondemandException e) {
+          fail(e.getMessage());
+        }
+      }
+    };
+    thread.start();
+    while(thread.isAlive()) {
+      client.flush();
+    }
+    client.flush();
+    assertEquals(sent[0], 199999);
+  }
+
   @Test
   public void testPerformanceTrace() throws Exception {
     LWESTransport localLwesTransport = new LWESTransport(InetAddress.getLocalHost(), 9292, null);
@@ -1064,6 +1288,562 @@ public class ClientTest {
     }
   }
 
+  @Test
+  public void testLogRepeats() {
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setNoSendLevel(Level.DEBUG);
+    client.setImmediateSendLevel(Level.OFF);
+    for(int i=0; i<5; ++i) {
+      // equal names are the same call site even if they are other strings
+      String name = (i % 2 == 0) ? "repeated" : new String("repeated");
+      client.log(name, 10, Level.ERROR, null, "Repeated", new Object[] { i });
+    }
+    client.log("repeated", 11, Level.ERROR, null, "Other line", null);
+    client.flushLogs();
+    assertEquals(transport.logs.length, 2);
+    for(LogMessage msg : transport.logs) {
+      if(msg.getLine() == 10) {
+        // only the first occurrence is formatted
+        assertEquals(msg.getMessage(), "Repeated 0");
+        assertEquals(msg.getRepeat(), 5);
+      } else {
+        assertEquals(msg.getMessage(), "Other line");
+        assertEquals(msg.getRepeat(), 1);
+      }
+    }
+  }
+
+  @Test
+  public void testLogContexts() throws Exception {
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setImmediateSendLevel(Level.OFF);
+    client.addContext("app", "client");
+    client.addContext("host", "localhost");
+
+    Map<String,String> properties = new HashMap<String,String>();
+    properties.put("app", "message");
+    properties.put("request", "42");
+    properties.put("empty", null);
+    client.log("contexts", 10, Level.ERROR, null, "With contexts", null, properties);
+    client.log("contexts", 11, Level.ERROR, null, "Without contexts", null, null);
+    client.flushLogs();
+
+    // the message with contexts is sent on its own, after the other ones
+    assertEquals(transport.logsSent, 2);
+    assertEquals(transport.logs.length, 1);
+    assertEquals(transport.logs[0].getMessage(), "With contexts");
+    Map<String,String> sent = new HashMap<String,String>();
+    for(Context context : transport.logContexts) {
+      sent.put(context.getKey(), context.getValue());
+    }
+    assertEquals(sent.size(), 3);
+    assertEquals(sent.get("app"), "message");
+    assertEquals(sent.get("host"), "localhost");
+    assertEquals(sent.get("request"), "42");
+
+    // the client contexts are left alone
+    assertEquals(client.getContext("app"), "client");
+    assertNull(client.getContext("request"));
+  }
+
+  @Test
+  public void testLogContextsRepeats() throws Exception {
+    Client client = createClientNoTransports();
+    final Map<String,List<LogMessage>> sent =
+      new HashMap<String,List<LogMessage>>();
+    client.addTransport(new ClientTestTransport() {
+      @Override
+      public void sendLogs(String programId, LogMessage[] messages,
+                           Context[] contexts) {
+        String request = null;
+        for(Context context : contexts) {
+          if(context.getKey().equals("request")) {
+            request = context.getValue();
+          }
+        }
+        assertNull(sent.put(request, Arrays.asList(messages)));
+      }
+    });
+    client.setImmediateSendLevel(Level.OFF);
+
+    Map<String,String> first = new HashMap<String,String>();
+    first.put("request", "42");
+    first.put("user", "a");
+    Map<String,String> second = new HashMap<String,String>();
+    second.put("request", "43");
+    second.put("user", "a");
+    Map<String,String> firstAgain = new LinkedHashMap<String,String>();
+    firstAgain.put("user", "a");
+    firstAgain.put("request", "42");
+    client.log("contexts", 10, Level.ERROR, null, "Request {}", new Object[] { 42 }, first);
+    client.log("contexts", 10, Level.ERROR, null, "Request {}", new Object[] { 43 }, second);
+    client.log("contexts", 10, Level.ERROR, null, "Request {}", new Object[] { 42 }, firstAgain);
+    client.log("contexts", 11, Level.ERROR, null, "Other {}", new Object[] { 43 }, second);
+    client.flushLogs();
+
+    // repeats are counted per contexts, and the messages with the same
+    // contexts are sent together
+    assertEquals(sent.size(), 2);
+    assertEquals(sent.get("42").size(), 1);
+    assertEquals(sent.get("42").get(0).getMessage(), "Request 42");
+    assertEquals(sent.get("42").get(0).getRepeat(), 2);
+    assertEquals(sent.get("43").size(), 2);
+    for(LogMessage message : sent.get("43")) {
+      assertTrue(message.getMessage().endsWith(" 43"));
+      assertEquals(message.getRepeat(), 1);
+    }
+  }
+
+  @Test
+  public void testLogTextRepeats() throws Exception {
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setImmediateSendLevel(Level.OFF);
+
+    // without a line the messages of a name only repeat on the same text
+    StringBuilder text = new StringBuilder("disk full");
+    client.log("com.example.Store", Level.ERROR, null, text, null);
+    text.setLength(0);
+    text.append("disk ok");
+    client.log("com.example.Store", Level.ERROR, null, text, null);
+    client.log("com.example.Store", Level.ERROR, null, "disk full", null);
+    // nor with a message logged at line 0 with the same name
+    client.log("com.example.Store", 0, Level.ERROR, null, "disk full", null);
+    client.flushLogs();
+
+    assertEquals(transport.logs.length, 3);
+    Map<String,Integer> repeats = new HashMap<String,Integer>();
+    for(LogMessage message : transport.logs) {
+      Integer repeat = repeats.get(message.getMessage());
+      repeats.put(message.getMessage(),
+                  message.getRepeat() + (repeat == null ? 0 : repeat));
+    }
+    assertEquals(repeats.get("disk full"), Integer.valueOf(3));
+    assertEquals(repeats.get("disk ok"), Integer.valueOf(1));
+  }
+
+  @Test
+  public void testConcurrentLogFlushes() throws Exception {
+    Client client = createClientNoTransports();
+    final AtomicInteger sent = new AtomicInteger();
+    client.addTransport(new ClientTestTransport() {
+      @Override
+      public void sendLogs(String programId, LogMessage[] messages,
+                           Context[] contexts) {
+        sent.addAndGet(messages.length);
+      }
+    });
+    client.setImmediateSendLevel(Level.OFF);
+
+    // each message is new, and the logging threads keep flushing the
+    // table as it fills up, no message must be lost
+    final Client logger = client;
+    Thread[] threads = new Thread[4];
+    for(int i=0; i<threads.length; ++i) {
+      final String name = "thread" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for(int line=0; line<5000; ++line) {
+            logger.log(name, line, Level.ERROR, null, "Message", null);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    client.flushLogs();
+    assertEquals(sent.get(), 4 * 5000);
+  }
+
+  @Test
+  public void testTransportBackoff() throws Exception {
+    Client client = createClientNoTransports();
+    final List<String> errors = new ArrayList<String>();
+    client.setErrorHandler(new TestErrorHandler() {
+      @Override
+      public void handleError(String error) {
+        errors.add(error);
+      }
+
+      @Override
+      public void handleError(String error, Exception e) {
+        errors.add(error);
+      }
+    });
+    final int[] calls = new int[1];
+    final boolean[] failing = new boolean[] { true };
+    client.addTransport(new BogusTransport() {
+      @Override
+      public void send(String programId, StatsMessage[] messages,
+          SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics)
+        throws TransportException {
+        calls[0]++;
+        if (failing[0]) {
+          throw new TransportException("BogusTransport");
+        }
+      }
+    });
+    client.setTransportBackoff(2, 100, 150);
+    assertEquals(client.getTransportFailureThreshold(), 2);
+
+    // two failures open the breaker, then the transport is skipped
+    for (int i = 0; i < 10; ++i) {
+      client.increment("backoff");
+      client.flush();
+    }
+    assertEquals(calls[0], 2);
+    assertEquals(errors.size(), 2);
+    assertTrue(errors.get(1).contains("2 times in a row"));
+
+    // a failed probe reports a single summary and backs off further
+    Thread.sleep(120);
+    client.increment("backoff");
+    client.flush();
+    client.increment("backoff");
+    client.flush();
+    assertEquals(calls[0], 3);
+    assertEquals(errors.size(), 3);
+    assertTrue(errors.get(2).contains("1 more times and 8 sends were skipped"));
+    assertTrue(errors.get(2).contains("150 ms"));
+
+    // a successful probe closes the breaker
+    failing[0] = false;
+    Thread.sleep(170);
+    client.increment("backoff");
+    client.flush();
+    client.increment("backoff");
+    client.flush();
+    assertEquals(calls[0], 5);
+    assertEquals(errors.size(), 4);
+    assertTrue(errors.get(3).endsWith("recovered"));
+  }
+
+  @Test
+  public void testTransportProbeRuntimeException() throws Exception {
+    Client client = createClientNoTransports();
+    final List<String> errors = new ArrayList<String>();
+    client.setErrorHandler(new TestErrorHandler() {
+      @Override
+      public void handleError(String error) {
+        errors.add(error);
+      }
+
+      @Override
+      public void handleError(String error, Exception e) {
+        errors.add(error);
+      }
+    });
+    final int[] calls = new int[1];
+    final RuntimeException[] thrown = new RuntimeException[1];
+    client.addTransport(new ClientTestTransport() {
+      @Override
+      public void send(String programId, StatsMessage[] messages,
+          SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics) {
+        calls[0]++;
+        if (thrown[0] != null) {
+          throw thrown[0];
+        }
+      }
+    });
+    client.setTransportBackoff(1, 50, 50);
+
+    // the breaker opens, then the probe fails with a runtime exception
+    thrown[0] = new IllegalArgumentException("bad address");
+    client.increment("probe");
+    client.flush();
+    Thread.sleep(70);
+    client.increment("probe");
+    client.flush();
+    assertEquals(calls[0], 2);
+    assertEquals(errors.size(), 2);
+    assertTrue(errors.get(1).contains("skipping the transport for 50 ms"));
+
+    // which ended the probe, so the transport is probed again and recovers
+    thrown[0] = null;
+    Thread.sleep(70);
+    client.increment("probe");
+    client.flush();
+    assertEquals(calls[0], 3);
+    assertTrue(errors.get(errors.size() - 1).endsWith("recovered"));
+  }
+
+  @Test
+  public void testSnapshotTransport() throws Exception {
+    Client client = createClientNoTransports();
+    SnapshotTestTransport transport = new SnapshotTestTransport();
+    ClientTestTransport legacy = new ClientTestTransport();
+    client.addTransport(transport);
+    client.addTransport(legacy);
+
+    client.increment("snapshot", 7);
+    for (int i = 1; i <= 5; ++i) {
+      client.addSample("latency", i,
+          SampleTrackType.MIN.value | SampleTrackType.MAX.value
+          | SampleTrackType.AVG.value);
+    }
+    client.flush();
+
+    // the snapshot has the stats followed by the computed sample stats
+    MetricsSnapshot snapshot = transport.snapshot;
+    assertEquals(snapshot.getProgramId(), "ClientTestSample");
+    assertEquals(snapshot.size(), 4);
+    Map<String,Long> values = new HashMap<String,Long>();
+    for (int i = 0; i < snapshot.size(); ++i) {
+      values.put(snapshot.getType(i) + ":" + snapshot.getKey(i),
+                 snapshot.getValue(i));
+    }
+    assertEquals(values.get("counter:snapshot"), Long.valueOf(7));
+    assertEquals(values.get("gauge:latency_min"), Long.valueOf(1));
+    assertEquals(values.get("gauge:latency_max"), Long.valueOf(5));
+    assertEquals(values.get("gauge:latency_avg"), Long.valueOf(3));
+    assertEquals(transport.stats.length, 0);
+
+    // other transports still get the messages
+    assertEquals(legacy.stats.length, 1);
+    assertEquals(legacy.samples.length, 1);
+  }
+
+  @Test
+  public void testParallelDispatch() throws Exception {
+    Client client = createClientNoTransports();
+    final CountDownLatch released = new CountDownLatch(1);
+    final CountDownLatch fastSent = new CountDownLatch(1);
+    ClientTestTransport slow = new ClientTestTransport() {
+      @Override
+      public void send(String programId, StatsMessage[] messages,
+          SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics) {
+        try {
+          released.await();
+        } catch(InterruptedException e) {
+        }
+        super.send(programId, messages, samples, contexts, maxNumMetrics);
+      }
+    };
+    ClientTestTransport fast = new ClientTestTransport() {
+      @Override
+      public void send(String programId, StatsMessage[] messages,
+          SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics) {
+        super.send(programId, messages, samples, contexts, maxNumMetrics);
+        fastSent.countDown();
+      }
+    };
+    client.addTransport(slow);
+    client.addTransport(fast);
+    client.setParallelDispatch(true);
+    assertTrue(client.isParallelDispatch());
+
+    client.increment("fanout", 5);
+    client.addSample("latency", 3, SampleTrackType.MAX.value);
+    client.flush();
+
+    // the fast transport doesn't wait for the slow one
+    assertTrue(fastSent.await(5, TimeUnit.SECONDS));
+    assertEquals(fast.stats.length, 1);
+    assertEquals(fast.stats[0].getCounter(), 5);
+    assertEquals(fast.samples.length, 1);
+    assertEquals(slow.stats.length, 0);
+
+    // the slow transport gets the same copy, later changes don't show
+    client.increment("fanout", 1);
+    released.countDown();
+    client.setParallelDispatch(false);
+    assertFalse(client.isParallelDispatch());
+    assertEquals(slow.stats.length, 1);
+    assertEquals(slow.stats[0].getCounter(), 5);
+    assertEquals(slow.samples[0].getSamples().size(), 1);
+  }
+
+  @Test
+  public void testParallelDispatchContexts() throws Exception {
+    Client client = createClientNoTransports();
+    final List<String> errors =
+      Collections.synchronizedList(new ArrayList<String>());
+    client.setErrorHandler(new TestErrorHandler() {
+      @Override
+      public void handleError(String error, Exception e) {
+        errors.add(error);
+      }
+    });
+    final CountDownLatch released = new CountDownLatch(1);
+    final List<String> sent =
+      Collections.synchronizedList(new ArrayList<String>());
+    ClientTestTransport slow = new ClientTestTransport() {
+      @Override
+      public void send(String programId, StatsMessage[] messages,
+          SamplesMessage[] samples, Context[] contexts, Integer maxNumMetrics) {
+        try {
+          released.await();
+        } catch(InterruptedException e) {
+        }
+        for(Context context : contexts) {
+          if(context.getKey().equals("shard")) {
+            sent.add(context.getValue());
+          }
+        }
+      }
+    };
+    client.addTransport(slow);
+    client.setParallelDispatch(true);
+
+    // more context lists than the transport queues sends
+    for(int i=0; i<20; ++i) {
+      ContextList contexts = new ContextList();
+      contexts.addContext(new Context("shard", Integer.toString(i)));
+      client.increment(contexts, "requests", i + 1);
+    }
+    client.flush();
+    client.flush();
+    released.countDown();
+    client.setParallelDispatch(false);
+
+    assertEquals(errors.size(), 0);
+    assertEquals(sent.size(), 40);
+  }
+
+  @Test
+  public void testContextSnapshot() throws Exception {
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.addContext("app", "client");
+
+    client.increment("snapshot");
+    client.flush();
+    Context[] first = transport.statsContexts;
+    assertEquals(first.length, 1);
+
+    // the same array is passed as long as the contexts don't change
+    client.increment("snapshot");
+    client.flush();
+    assertTrue(transport.statsContexts == first);
+
+    client.addContext("host", "localhost");
+    client.increment("snapshot");
+    client.flush();
+    Context[] second = transport.statsContexts;
+    assertTrue(second != first);
+    assertEquals(second.length, 2);
+
+    client.removeContext("app");
+    client.increment("snapshot");
+    client.flush();
+    assertEquals(transport.statsContexts.length, 1);
+    assertEquals(transport.statsContexts[0].getKey(), "host");
+
+    // removing a missing context keeps the snapshot
+    Context[] third = transport.statsContexts;
+    client.removeContext("missing");
+    client.increment("snapshot");
+    client.flush();
+    assertTrue(transport.statsContexts == third);
+  }
+
+  @Test
+  public void testLogRateLimit() {
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setLogRateLimit(0.001, 2);
+    assertEquals(client.getLogRateLimit(), 0.001, 0);
+
+    // errors are sent immediately until the call site runs out of tokens
+    for(int i=0; i<100; ++i) {
+      client.log("limited", 10, Level.CRIT, null, "Limited", null);
+    }
+    assertEquals(transport.logsSent, 2);
+    assertEquals(transport.logs[0].getRepeat(), 1);
+
+    // the suppressed occurrences go out with the next flush
+    client.flushLogs();
+    assertEquals(transport.logsSent, 3);
+    assertEquals(transport.logs[0].getRepeat(), 98);
+
+    // the call site keeps its limiter across flushes
+    client.log("limited", 10, Level.CRIT, null, "Limited", null);
+    assertEquals(transport.logsSent, 3);
+
+    // other call sites have their own limit
+    client.log("limited", 11, Level.CRIT, null, "Other line", null);
+    assertEquals(transport.logsSent, 4);
+
+    client.setLogRateLimit(0, 1);
+    client.log("limited", 10, Level.CRIT, null, "Limited", null);
+    assertEquals(transport.logsSent, 5);
+
+    TokenBucket bucket = new TokenBucket(10, 2);
+    long now = System.nanoTime();
+    assertTrue(bucket.tryAcquire(now));
+    assertTrue(bucket.tryAcquire(now));
+    assertFalse(bucket.tryAcquire(now));
+    // one token every 100ms
+    assertFalse(bucket.tryAcquire(now + 50000000L));
+    assertTrue(bucket.tryAcquire(now + 100000000L));
+    assertFalse(bucket.tryAcquire(now + 100000000L));
+    // the bucket doesn't fill past its burst
+    assertTrue(bucket.tryAcquire(now + 10000000000L));
+    assertTrue(bucket.tryAcquire(now + 10000000000L));
+    assertFalse(bucket.tryAcquire(now + 10000000000L));
+  }
+
+  @Test
+  public void testLogFormatting() {
+    Client client = createClientNoTransports();
+    ClientTestTransport transport = new ClientTestTransport();
+    client.addTransport(transport);
+    client.setNoSendLevel(Level.INFO);
+    client.setImmediateSendLevel(Level.OFF);
+
+    // nothing is rendered for a disabled level
+    final int[] rendered = new int[] { 0 };
+    Object arg = new Object() {
+      @Override
+      public String toString() {
+        rendered[0]++;
+        return "arg";
+      }
+    };
+    Supplier<String> supplier = new Supplier<String>() {
+      @Override
+      public String get() {
+        rendered[0]++;
+        return "supplied";
+      }
+    };
+    client.log("format", 1, Level.DEBUG, null, "value {}", new Object[] { arg });
+    client.debug(null, "value {}", new Object[] { arg });
+    client.log("format", 2, Level.DEBUG, null, supplier);
+    client.log(Level.DEBUG, null, supplier);
+    client.flushLogs();
+    assertEquals(rendered[0], 0);
+    assertEquals(transport.logs.length, 0);
+
+    client.log("format", 1, Level.ERROR, null, "{} and {}", new Object[] { arg, 2, 3 });
+    client.log("format", 2, Level.ERROR, null, "{} and {}", new Object[] { arg });
+    client.log("format", 3, Level.ERROR, null, supplier);
+    client.log("format", 3, Level.ERROR, null, supplier);
+    client.flushLogs();
+    assertEquals(rendered[0], 3);
+    assertEquals(transport.logs.length, 3);
+    for(LogMessage msg : transport.logs) {
+      if(msg.getLine() == 1) {
+        assertEquals(msg.getMessage(), "arg and 2 3");
+      } else if(msg.getLine() == 2) {
+        assertEquals(msg.getMessage(), "arg and {}");
+      } else {
+        assertEquals(msg.getMessage(), "supplied");
+        assertEquals(msg.getRepeat(), 2);
+      }
+    }
+  }
+
   @Test
   public void testStderrTransport() throws Exception {
     Client client = createClientNoTransports();
@@ -1219,6 +1999,24 @@ public class ClientTest {
     client.log(Level.DEBUG, null, "abc123", new String[] { "test" });
   }
 
+  @Test
+  public void testShutdown() {
+    Client client = createClientNoTransports();
+    final int[] shutdowns = new int[] { 0 };
+    ClientTestTransport transport = new ClientTestTransport() {
+      @Override
+      public void shutdown() {
+        shutdowns[0]++;
+      }
+    };
+    client.addTransport(transport);
+    client.log("shutdown", 10, Level.ERROR, null, "Before", null);
+    client.shutdown();
+    assertEquals(transport.logsSent, 1);
+    assertEquals(transport.logs[0].getMessage(), "Before");
+    assertEquals(shutdowns[0], 1);
+  }
+
   @Test
   public void testFinalize() {
     Client client = createClientNoTransports();
@@ -1316,12 +2114,17 @@ public class ClientTest {
     public StatsMessage[] stats = new StatsMessage[0];
     public SamplesMessage[] samples = new SamplesMessage[0];
     public TraceId traceId = null;
+    public int logsSent = 0;
+    public Context[] logContexts = null;
+    public Context[] statsContexts = null;
 
     @Override
     public void sendLogs (String programId,
                           LogMessage[] messages,
                           Context[] contexts)
     {
+      logsSent++;
+      logContexts = contexts;
       logs = new LogMessage[messages.length];
       for(int i=0; i<logs.length; ++i) {
         logs[i] = messages[i];
@@ -1337,6 +2140,7 @@ public class ClientTest {
         SamplesMessage[] samples,
         Context[] contexts,
         Integer maxNumMetrics) {
+      statsContexts = contexts;
       stats = new StatsMessage[messages.length];
       for(int i=0; i<stats.length; ++i) {
         stats[i] = messages[i];
@@ -1372,6 +2176,17 @@ public class ClientTest {
     }
   }
 
+  public static class SnapshotTestTransport extends ClientTestTransport
+    implements SnapshotTransport
+  {
+    public MetricsSnapshot snapshot = null;
+
+    @Override
+    public void send(MetricsSnapshot snapshot) {
+      this.snapshot = snapshot;
+    }
+  }
+
   public static class BogusTransport implements Transport
   {
     @Override
@@ -0,0 +1,209 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mondemand.Client;
+import org.mondemand.Context;
+import org.mondemand.ContextList;
+import org.mondemand.Level;
+import org.mondemand.SampleTrackType;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.tests.DirectLWESTransportTest.CapturingSink;
+import org.mondemand.transport.BatchDecoder;
+import org.mondemand.transport.CompressingEventSink;
+import org.mondemand.transport.DeflateCodec;
+import org.mondemand.transport.DirectLWESTransport;
+import org.mondemand.transport.SocketChannelSink;
+
+public class CompressingEventSinkTest {
+  private static final String[] ENDPOINTS = {
+    "ad_request", "bid_request", "bid_response", "impression", "click",
+    "conversion", "win_notice", "loss_notice"
+  };
+
+  /**
+   * the stats of a busy host, series named after endpoints and status
+   * codes, with a few contexts
+   */
+  private static StatsMessage[] stats(int count) {
+    StatsMessage[] stats = new StatsMessage[count];
+    for (int i = 0; i < count; ++i) {
+      stats[i] = new StatsMessage("http_" + ENDPOINTS[i % ENDPOINTS.length]
+          + "_status_" + (200 + (i / ENDPOINTS.length) % 50) + "_shard_"
+          + (i / 400), StatType.Counter);
+      stats[i].setCounter(i % 1000);
+    }
+    return stats;
+  }
+
+  private final Context[] contexts;
+
+  public CompressingEventSinkTest() throws Exception {
+    contexts = new Context[] {
+      new Context("cluster", "us-east-1-production"),
+      new Context("host", "frontend-0042.example.com"),
+      new Context("version", "8.1.0")
+    };
+  }
+
+  private static List<byte[]> decode(List<byte[]> frames) throws IOException {
+    BatchDecoder decoder = new BatchDecoder();
+    List<byte[]> events = new ArrayList<byte[]>();
+    for (byte[] frame : frames) {
+      assertTrue(BatchDecoder.isBatch(frame));
+      events.addAll(decoder.decode(frame));
+    }
+    return events;
+  }
+
+  private static void assertSameEvents(List<byte[]> actual,
+                                       List<byte[]> expected) {
+    assertEquals(actual.size(), expected.size());
+    for (int i = 0; i < actual.size(); ++i) {
+      assertTrue(Arrays.equals(actual.get(i), expected.get(i)));
+    }
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    StatsMessage[] stats = stats(4000);
+    CapturingSink plain = new CapturingSink();
+    new DirectLWESTransport(plain).send("CompressingEventSinkTest", stats,
+                                        null, contexts, null);
+
+    CapturingSink frames = new CapturingSink();
+    CompressingEventSink sink = new CompressingEventSink(frames);
+    DirectLWESTransport transport = new DirectLWESTransport(sink);
+    transport.send("CompressingEventSinkTest", stats, null, contexts, null);
+    assertEquals(frames.events.size(), 0);
+    transport.flush();
+
+    // one frame for the flush, holding the same events
+    assertEquals(frames.events.size(), 1);
+    assertSameEvents(decode(frames.events), plain.events);
+    assertEquals(sink.getEvents(), plain.events.size());
+    assertEquals(sink.getFrames(), 1);
+
+    long plainBytes = 0;
+    for (byte[] event : plain.events) {
+      plainBytes += event.length;
+    }
+    long frameBytes = frames.events.get(0).length;
+    assertEquals(sink.getCompressedBytes(), frameBytes);
+    assertTrue("compressed " + plainBytes + " bytes to " + frameBytes,
+               plainBytes > 5 * frameBytes);
+  }
+
+  @Test
+  public void testClientFlush() throws Exception {
+    CapturingSink frames = new CapturingSink();
+    CompressingEventSink sink = new CompressingEventSink(frames);
+    Client client = new Client("CompressingEventSinkTest");
+    client.addTransport(new DirectLWESTransport(sink));
+    client.setImmediateSendLevel(Level.OFF);
+    client.increment("requests", 3);
+    client.addSample("latency", 5, SampleTrackType.MAX.value);
+    for (int i = 0; i < 3; ++i) {
+      ContextList contextList = new ContextList();
+      contextList.addContext(new Context("shard", "" + i));
+      client.increment(contextList, "hits", i + 1);
+    }
+    client.log(Level.ERROR, null, "failed", null);
+
+    // the logs, stats and context stats of a flush go in one frame
+    client.flush();
+    assertEquals(frames.events.size(), 1);
+    assertEquals(decode(frames.events).size(), 5);
+    client.shutdown();
+  }
+
+  @Test
+  public void testBatchSize() throws Exception {
+    CapturingSink frames = new CapturingSink();
+    CompressingEventSink sink =
+      new CompressingEventSink(frames, new DeflateCodec(1), 100);
+    List<byte[]> events = new ArrayList<byte[]>();
+    for (int i = 1; i <= 10; ++i) {
+      byte[] event = new byte[i * 10];
+      Arrays.fill(event, (byte) i);
+      events.add(event);
+      sink.send(ByteBuffer.wrap(event));
+    }
+    sink.close();
+    assertTrue(frames.closed);
+    // events 1 to 3 fit in a batch, 4 and 5 in another one, the other ones
+    // get a batch each
+    assertEquals(frames.events.size(), 7);
+    assertSameEvents(decode(frames.events), events);
+
+    // plain events pass through the decoder, unknown codecs are rejected
+    byte[] event = new byte[] { 5, 'h', 'e', 'l', 'l', 'o' };
+    assertFalse(BatchDecoder.isBatch(event));
+    assertEquals(new BatchDecoder().decode(event).get(0), event);
+    try {
+      new BatchDecoder().decode(new byte[] { 0, 9, 0, 0, 0, 0 });
+      fail("unknown codec");
+    } catch (IOException e) {
+    }
+
+    // as are frames claiming more than the maximum size
+    try {
+      new BatchDecoder().decode(new byte[] { 0, 1, 0x7f, -1, -1, -1, 0 });
+      fail("frame too large");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("invalid frame size"));
+    }
+    try {
+      new BatchDecoder(100).decode(frames.events.get(frames.events.size() - 1));
+      fail("frame larger than 100 bytes");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("invalid frame size"));
+    }
+  }
+
+  @Test
+  public void testOverTcp() throws Exception {
+    SocketChannelSinkTest.Receiver receiver =
+      new SocketChannelSinkTest.Receiver(0);
+    DirectLWESTransport transport = new DirectLWESTransport(
+        new CompressingEventSink(new SocketChannelSink(
+            InetAddress.getByName("127.0.0.1"), receiver.getPort())));
+    CapturingSink plain = new CapturingSink();
+    DirectLWESTransport reference = new DirectLWESTransport(plain);
+    for (int i = 0; i < 3; ++i) {
+      transport.send("CompressingEventSinkTest", stats(1000), null, contexts,
+                     null);
+      transport.flush();
+      reference.send("CompressingEventSinkTest", stats(1000), null, contexts,
+                     null);
+    }
+
+    assertEquals(receiver.await(3).size(), 3);
+    assertSameEvents(decode(receiver.getEvents()), plain.events);
+    transport.shutdown();
+    receiver.close();
+  }
+}
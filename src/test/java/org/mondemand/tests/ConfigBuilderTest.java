@@ -1,6 +1,8 @@
 package org.mondemand.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -44,4 +46,59 @@ public class ConfigBuilderTest {
     assertEquals(esc2.getAddresses().get(0), InetAddress.getByName("127.0.0.1"));
     assertEquals((int)esc2.getPorts().get(0), 9191);
   }
+
+  @Test
+  public void testReplicas() throws UnknownHostException {
+    Properties props = new Properties();
+    props.setProperty("MONDEMAND_ADDR", "127.0.0.1,127.0.0.2,127.0.0.3");
+    props.setProperty("MONDEMAND_PORT", "9191");
+    props.setProperty("MONDEMAND_REPLICAS", "2");
+    props.setProperty("MONDEMAND_LOG_ADDR", "127.0.0.4");
+    props.setProperty("MONDEMAND_LOG_REPLICAS", "1");
+
+    Config c = ConfigBuilder.buildDefaultConfig(props);
+    assertEquals((int)c.getReplicas(), 2);
+    assertNull(c.getSendTo());
+
+    assertEquals((int)ConfigBuilder.buildEventSpecificConfig(
+        props, EventType.STATS, c).getReplicas(), 2);
+    assertEquals((int)ConfigBuilder.buildEventSpecificConfig(
+        props, EventType.LOG, c).getReplicas(), 1);
+
+    // an event-specific SENDTO replaces the default REPLICAS
+    props.setProperty("MONDEMAND_TRACE_SENDTO", "1");
+    EventSpecificConfig trace =
+      ConfigBuilder.buildEventSpecificConfig(props, EventType.TRACE, c);
+    assertEquals((int)trace.getSendTo(), 1);
+    assertNull(trace.getReplicas());
+    props.remove("MONDEMAND_TRACE_SENDTO");
+
+    // the default REPLICAS is checked against the event type's addresses
+    props.setProperty("MONDEMAND_PERF_ADDR", "127.0.0.5");
+    try {
+      ConfigBuilder.buildEventSpecificConfig(props, EventType.PERF, c);
+      fail("2 replicas of 1 PERF address");
+    } catch (IllegalArgumentException e) {
+    }
+    props.setProperty("MONDEMAND_PERF_SENDTO", "1");
+    assertNull(ConfigBuilder.buildEventSpecificConfig(
+        props, EventType.PERF, c).getReplicas());
+    props.remove("MONDEMAND_PERF_ADDR");
+    props.remove("MONDEMAND_PERF_SENDTO");
+
+    props.setProperty("MONDEMAND_REPLICAS", "4");
+    try {
+      ConfigBuilder.buildDefaultConfig(props);
+      fail("4 replicas of 3 addresses");
+    } catch (IllegalArgumentException e) {
+    }
+
+    props.setProperty("MONDEMAND_REPLICAS", "2");
+    props.setProperty("MONDEMAND_SENDTO", "2");
+    try {
+      ConfigBuilder.buildDefaultConfig(props);
+      fail("SENDTO with REPLICAS");
+    } catch (IllegalArgumentException e) {
+    }
+  }
 }
@@ -0,0 +1,349 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.lwes.Event;
+import org.lwes.EventFactory;
+import org.lwes.emitter.EmitterGroup;
+import org.mondemand.Context;
+import org.mondemand.LogMessage;
+import org.mondemand.SampleTrackType;
+import org.mondemand.SamplesMessage;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.TraceId;
+import org.mondemand.transport.DirectLWESTransport;
+import org.mondemand.transport.EventSink;
+import org.mondemand.transport.LWESTransport;
+import org.mondemand.util.HostName;
+
+public class DirectLWESTransportTest {
+  /**
+   * keeps a copy of the events it is given
+   */
+  public static class CapturingSink implements EventSink {
+    public List<byte[]> events = new ArrayList<byte[]>();
+    public boolean closed = false;
+
+    @Override
+    public void send(ByteBuffer event) {
+      byte[] bytes = new byte[event.remaining()];
+      event.get(bytes);
+      events.add(bytes);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /**
+   * keeps the serialized events lwes-java would send
+   */
+  static class CapturingEmitterGroup extends EmitterGroup {
+    List<byte[]> events = new ArrayList<byte[]>();
+
+    CapturingEmitterGroup() {
+      super(null, new EventFactory());
+    }
+
+    @Override
+    public int emitToGroup(Event event) {
+      events.add(event.serialize());
+      return 0;
+    }
+
+    @Override
+    protected int emit(Event event) {
+      return emitToGroup(event);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  private final CapturingSink sink = new CapturingSink();
+  private final DirectLWESTransport direct = new DirectLWESTransport(sink);
+  private final CapturingEmitterGroup group = new CapturingEmitterGroup();
+  private final LWESTransport reference;
+
+  public DirectLWESTransportTest() throws Exception {
+    reference = new LWESTransport(InetAddress.getLocalHost(), 9292, null);
+    Field emitterGroup = LWESTransport.class.getDeclaredField("emitterGroup");
+    emitterGroup.setAccessible(true);
+    emitterGroup.set(reference, group);
+  }
+
+  /**
+   * parses a serialized event into its name and attributes, since lwes-java
+   * writes the attributes in the order of a hash map
+   */
+  private static Map<String, String> parse(byte[] event) {
+    ByteBuffer buffer = ByteBuffer.wrap(event);
+    Map<String, String> attributes = new TreeMap<String, String>();
+    attributes.put("", ascii(buffer, buffer.get()));
+    int count = buffer.getShort();
+    for (int i = 0; i < count; ++i) {
+      String name = ascii(buffer, buffer.get());
+      byte type = buffer.get();
+      int length;
+      switch (type) {
+        case 0x01: case 0x02: length = 2; break;
+        case 0x03: case 0x04: length = 4; break;
+        case 0x05: length = 2 + (buffer.getShort(buffer.position()) & 0xffff); break;
+        case 0x07: case 0x08: length = 8; break;
+        default: throw new IllegalArgumentException("unexpected type " + type);
+      }
+      StringBuilder value = new StringBuilder().append(type).append(':');
+      for (int j = 0; j < length; ++j) {
+        value.append(Integer.toHexString(buffer.get() & 0xff)).append(' ');
+      }
+      attributes.put(name, value.toString());
+    }
+    assertEquals(buffer.remaining(), 0);
+    return attributes;
+  }
+
+  private static String ascii(ByteBuffer buffer, int length) {
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes);
+  }
+
+  private void assertSameEvents() {
+    assertEquals(sink.events.size(), group.events.size());
+    assertTrue(sink.events.size() > 0);
+    for (int i = 0; i < sink.events.size(); ++i) {
+      assertEquals(sink.events.get(i).length, group.events.get(i).length);
+      assertEquals(parse(sink.events.get(i)), parse(group.events.get(i)));
+    }
+  }
+
+  private static Context[] contexts() throws Exception {
+    return new Context[] { new Context("host", "h\u00f4te"),
+                           new Context("cluster", "\u4e2d\ud83d\ude00") };
+  }
+
+  @Test
+  public void testLogs() throws Exception {
+    LogMessage[] messages = new LogMessage[30];
+    for (int i = 0; i < messages.length; ++i) {
+      messages[i] = new LogMessage();
+      messages[i].setFilename("DirectLWESTransportTest");
+      messages[i].setLine(i);
+      messages[i].setLevel(i % 8);
+      messages[i].setMessage("message \u00e9 " + i);
+      messages[i].setRepeat(i);
+      if (i % 3 == 0) {
+        messages[i].setTraceId(new TraceId(1000 + i));
+      }
+    }
+    // long enough to be truncated
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      text.append("long message ");
+    }
+    messages[7].setMessage(text.toString());
+
+    direct.setMaxEventBytes(800);
+    reference.setMaxEventBytes(800);
+    direct.sendLogs("DirectLWESTransportTest", messages, contexts());
+    reference.sendLogs("DirectLWESTransportTest", messages, contexts());
+    assertTrue(sink.events.size() > 1);
+    assertSameEvents();
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    StatsMessage[] stats = new StatsMessage[100];
+    for (int i = 0; i < stats.length; ++i) {
+      stats[i] = new StatsMessage("key_" + i,
+          i % 2 == 0 ? StatType.Counter : StatType.Gauge);
+      stats[i].setCounter(i % 3 == 0 ? -i : i * 1000000000L);
+    }
+    SamplesMessage[] samples = new SamplesMessage[] {
+      new SamplesMessage("sample", SampleTrackType.MIN.value
+          | SampleTrackType.MAX.value | SampleTrackType.PCTL_95.value
+          | SampleTrackType.AVG.value),
+      new SamplesMessage("empty", SampleTrackType.SUM.value) };
+    for (int i = 0; i < 50; ++i) {
+      samples[0].addSample(i);
+    }
+
+    direct.setMaxEventBytes(1400);
+    reference.setMaxEventBytes(1400);
+    direct.send("DirectLWESTransportTest", stats, samples, contexts(), 30);
+    reference.send("DirectLWESTransportTest", stats, samples, contexts(), 30);
+    assertTrue(sink.events.size() > 1);
+    assertSameEvents();
+  }
+
+  @Test
+  public void testEncodedContexts() throws Exception {
+    StatsMessage[] stats = new StatsMessage[] {
+      new StatsMessage("key", StatType.Counter) };
+    Context[] contexts = contexts();
+
+    // the second event reuses the encoded contexts of the first one
+    direct.send("DirectLWESTransportTest", stats, null, contexts, 30);
+    direct.send("DirectLWESTransportTest", stats, null, contexts, 30);
+    reference.send("DirectLWESTransportTest", stats, null, contexts, 30);
+    reference.send("DirectLWESTransportTest", stats, null, contexts, 30);
+    assertSameEvents();
+
+    // other contexts are encoded again
+    Context[] others = new Context[] { new Context("host", "other") };
+    direct.send("DirectLWESTransportTest", stats, null, others, 30);
+    reference.send("DirectLWESTransportTest", stats, null, others, 30);
+    direct.send("DirectLWESTransportTest", stats, null, new Context[0], 30);
+    reference.send("DirectLWESTransportTest", stats, null, new Context[0], 30);
+    assertEquals(sink.events.size(), 4);
+    assertSameEvents();
+  }
+
+  @Test
+  public void testSourceHost() throws Exception {
+    assertEquals(direct.getSourceHost(), HostName.local().get());
+    assertEquals(reference.getSourceHost(), HostName.local().get());
+
+    direct.setSourceHost("collector-7");
+    reference.setSourceHost("collector-7");
+    direct.sendTrace("DirectLWESTransportTest", contexts());
+    reference.sendTrace("DirectLWESTransportTest", contexts());
+    assertSameEvents();
+    assertTrue(new String(sink.events.get(0), "ISO-8859-1").contains("collector-7"));
+
+    direct.setSourceHost(null);
+    assertEquals(direct.getSourceHost(), HostName.local().get());
+  }
+
+  @Test
+  public void testTraceAndPerf() throws Exception {
+    direct.sendTrace("DirectLWESTransportTest", contexts());
+    reference.sendTrace("DirectLWESTransportTest", contexts());
+    direct.sendPerformanceTrace("id", "caller", new String[] { "a", "b" },
+        new long[] { 1, 2 }, new long[] { 3, 4 }, contexts());
+    reference.sendPerformanceTrace("id", "caller", new String[] { "a", "b" },
+        new long[] { 1, 2 }, new long[] { 3, 4 }, contexts());
+    assertSameEvents();
+
+    direct.shutdown();
+    assertTrue(sink.closed);
+  }
+
+  @Test
+  public void testUtf8Names() throws Exception {
+    Context[] contexts = new Context[] { new Context("h\u00f4te", "web1"),
+                                         new Context("\u4e2d", "east") };
+    direct.sendTrace("DirectLWESTransportTest", contexts);
+    byte[] event = sink.events.get(0);
+    assertTrue(contains(event, name("h\u00f4te")));
+    assertTrue(contains(event, name("\u4e2d")));
+  }
+
+  /**
+   * @return an attribute name as it is serialized, in UTF-8 after its length
+   */
+  private static byte[] name(String name) throws Exception {
+    byte[] utf8 = name.getBytes("UTF-8");
+    byte[] bytes = new byte[1 + utf8.length];
+    bytes[0] = (byte) utf8.length;
+    System.arraycopy(utf8, 0, bytes, 1, utf8.length);
+    return bytes;
+  }
+
+  private static boolean contains(byte[] bytes, byte[] part) {
+    for (int i = 0; i + part.length <= bytes.length; ++i) {
+      int j = 0;
+      while (j < part.length && bytes[i + j] == part[j]) {
+        ++j;
+      }
+      if (j == part.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      text.append(c);
+    }
+    return text.toString();
+  }
+
+  @Test
+  public void testOversizedEvents() throws Exception {
+    EventFactory factory = new EventFactory();
+
+    // a trace value is truncated
+    direct.sendTrace("DirectLWESTransportTest", new Context[] {
+        new Context("message", repeat('x', 70000)) });
+    assertEquals(sink.events.size(), 1);
+    assertTrue(sink.events.get(0).length <= Event.MAX_MESSAGE_SIZE);
+    assertTrue(factory.createEvent(sink.events.get(0), false)
+               .getString("message").endsWith(LWESTransport.TRUNCATED_MARKER));
+
+    // so is a metric key
+    sink.events.clear();
+    StatsMessage[] stats = new StatsMessage[] {
+      new StatsMessage(repeat('k', 70000), StatType.Counter),
+      new StatsMessage("key", StatType.Counter) };
+    direct.send("DirectLWESTransportTest", stats, null, contexts(), 30);
+    assertEquals(sink.events.size(), 2);
+    assertTrue(sink.events.get(0).length <= Event.MAX_MESSAGE_SIZE);
+    assertTrue(factory.createEvent(sink.events.get(0), false)
+               .getString("k0").endsWith(LWESTransport.TRUNCATED_MARKER));
+
+    // the timings of a perf trace are spread over several events
+    sink.events.clear();
+    String[] labels = new String[4000];
+    long[] start = new long[labels.length];
+    long[] end = new long[labels.length];
+    for (int i = 0; i < labels.length; ++i) {
+      labels[i] = "label " + i + " " + repeat('l', 20);
+      start[i] = i;
+      end[i] = i + 1;
+    }
+    direct.sendPerformanceTrace("id", "caller", labels, start, end, contexts());
+    assertTrue(sink.events.size() > 1);
+    int timings = 0;
+    for (byte[] bytes : sink.events) {
+      assertTrue(bytes.length <= Event.MAX_MESSAGE_SIZE);
+      Event event = factory.createEvent(bytes, false);
+      assertEquals(event.getString("id"), "id");
+      assertEquals(event.getString("ctxt_v0"), "h\u00f4te");
+      int num = ((Number) event.get("num")).intValue();
+      for (int i = 0; i < num; ++i) {
+        assertEquals(event.getString("label" + i), labels[timings]);
+        assertEquals(((Number) event.get("end" + i)).longValue(), timings + 1);
+        timings++;
+      }
+    }
+    assertEquals(timings, labels.length);
+  }
+}
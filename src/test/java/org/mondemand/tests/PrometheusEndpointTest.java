@@ -0,0 +1,161 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mondemand.Client;
+import org.mondemand.Context;
+import org.mondemand.ContextList;
+import org.mondemand.SampleTrackType;
+import org.mondemand.StatType;
+import org.mondemand.prometheus.PrometheusEndpoint;
+
+public class PrometheusEndpointTest {
+  private static String get(URL url) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    assertEquals(connection.getResponseCode(), 200);
+    assertEquals(connection.getContentType(), PrometheusEndpoint.CONTENT_TYPE);
+    InputStream input = connection.getInputStream();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read; (read = input.read(buffer)) > 0; ) {
+      output.write(buffer, 0, read);
+    }
+    input.close();
+    return output.toString("UTF-8");
+  }
+
+  @Test
+  public void testRender() throws Exception {
+    Client client = new Client("prom-test");
+    client.addContext("host", "web\"1");
+    client.increment("requests", 12);
+    client.setKey(StatType.Gauge, "queue.size", -3);
+    ContextList contexts = new ContextList();
+    contexts.addContext(new Context("dc", "east"));
+    client.increment(contexts, "requests", 5);
+    client.increment(contexts, "errors", 2);
+    for (int i = 1; i <= 100; ++i) {
+      client.addSample("latency", i,
+          SampleTrackType.MIN.value | SampleTrackType.PCTL_95.value
+          | SampleTrackType.AVG.value | SampleTrackType.COUNT.value);
+    }
+
+    StringBuilder text = new StringBuilder();
+    new PrometheusEndpoint(client).render(text);
+    String out = text.toString();
+    String labels = "prog_id=\"prom-test\",host=\"web\\\"1\"";
+
+    assertTrue(out.contains("# TYPE requests counter\n"
+        + "requests{" + labels + "} 12\n"
+        + "requests{" + labels + ",dc=\"east\"} 5\n"));
+    assertTrue(out.contains("# TYPE queue_size gauge\n"
+        + "queue_size{" + labels + "} -3\n"));
+    assertTrue(out.contains("# TYPE errors counter\n"
+        + "errors{" + labels + ",dc=\"east\"} 2\n"));
+    assertTrue(out.contains("latency_min{" + labels + "} 1\n"));
+    assertTrue(out.contains("latency_pctl_95{" + labels + "} 95\n"));
+    assertTrue(out.contains("latency_avg{" + labels + "} 50\n"));
+    assertTrue(out.contains("latency_count{" + labels + "} 100\n"));
+    assertEquals(out.indexOf("# TYPE requests "),
+                 out.lastIndexOf("# TYPE requests "));
+  }
+
+  @Test
+  public void testNameClashes() throws Exception {
+    Client client = new Client("prom-test");
+    client.addContext("host", "web1");
+    client.increment("queue.size", 1);
+    client.increment("queue_size", 2);
+    // the context of the stat replaces the one of the client
+    ContextList contexts = new ContextList();
+    contexts.addContext(new Context("host", "web2"));
+    client.increment(contexts, "queue.size", 3);
+
+    StringBuilder text = new StringBuilder();
+    new PrometheusEndpoint(client).render(text);
+    String out = text.toString();
+
+    assertEquals(out.indexOf("# TYPE queue_size "),
+                 out.lastIndexOf("# TYPE queue_size "));
+    assertTrue(out.contains("queue_size{prog_id=\"prom-test\",host=\"web1\"} 1\n"));
+    assertTrue(out.contains("queue_size{prog_id=\"prom-test\",host=\"web1\"} 2\n"));
+    assertTrue(out.contains("queue_size{prog_id=\"prom-test\",host=\"web2\"} 3\n"));
+  }
+
+  @Test
+  public void testScrapes() throws Exception {
+    final Client client = new Client("prom-test");
+    client.increment("requests", 1);
+    PrometheusEndpoint endpoint = new PrometheusEndpoint(client);
+    endpoint.start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    try {
+      final URL url = new URL("http://127.0.0.1:" + endpoint.getPort()
+                              + PrometheusEndpoint.PATH);
+      assertTrue(get(url).contains("requests{prog_id=\"prom-test\"} 1\n"));
+
+      // concurrent scrapes while the counter keeps going up
+      final AtomicInteger failures = new AtomicInteger();
+      Thread[] scrapers = new Thread[4];
+      for (int i = 0; i < scrapers.length; ++i) {
+        scrapers[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < 20; ++j) {
+                if (!get(url).contains("# TYPE requests counter\n")) {
+                  failures.incrementAndGet();
+                }
+              }
+            } catch (Exception e) {
+              failures.incrementAndGet();
+            }
+          }
+        };
+        scrapers[i].start();
+      }
+      for (int i = 0; i < 10000; ++i) {
+        client.increment("requests", 1);
+      }
+      for (Thread scraper : scrapers) {
+        scraper.join();
+      }
+      assertEquals(failures.get(), 0);
+      assertTrue(get(url).contains("requests{prog_id=\"prom-test\"} 10001\n"));
+
+      // a scrape written out in many chunks, with characters encoded on
+      // more than one byte
+      ContextList contexts = new ContextList();
+      contexts.addContext(new Context("city", "z\u00fcrich \ud83d\ude00"));
+      for (int i = 0; i < 2000; ++i) {
+        client.increment(contexts, "requests_" + i, i);
+      }
+      StringBuilder text = new StringBuilder();
+      endpoint.render(text);
+      assertTrue(text.length() > 20 * 4096);
+      assertEquals(get(url), text.toString());
+    } finally {
+      endpoint.stop();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mondemand.Context;
+import org.mondemand.LogMessage;
+import org.mondemand.SampleTrackType;
+import org.mondemand.SamplesMessage;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.tests.ClientTest.SnapshotTestTransport;
+import org.mondemand.transport.ConsistentHashRing;
+import org.mondemand.transport.ShardedTransport;
+
+public class ShardedTransportTest {
+  private static List<String> names(int count) {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < count; ++i) {
+      names.add("10.0.0." + i + ":20402");
+    }
+    return names;
+  }
+
+  @Test
+  public void testRing() {
+    ConsistentHashRing four = new ConsistentHashRing(names(4), 160);
+    ConsistentHashRing five = new ConsistentHashRing(names(5), 160);
+
+    int keys = 10000;
+    int moved = 0;
+    int[] counts = new int[4];
+    for (int i = 0; i < keys; ++i) {
+      String key = "metric_" + i;
+      int before = four.nodesFor(key, 1)[0];
+      int after = five.nodesFor(key, 1)[0];
+      counts[before]++;
+      // keys only move to the new node
+      if (before != after) {
+        assertEquals(after, 4);
+        moved++;
+      }
+      assertEquals(four.nodesFor(key, 1)[0], before);
+
+      int[] replicas = four.nodesFor(key, 3);
+      assertEquals(replicas.length, 3);
+      assertEquals(replicas[0], before);
+      assertTrue(replicas[0] != replicas[1] && replicas[0] != replicas[2]
+                 && replicas[1] != replicas[2]);
+    }
+    // about a fifth of the keys move, and each node has about a quarter
+    assertTrue("moved " + moved, moved > keys / 10 && moved < keys * 3 / 10);
+    for (int count : counts) {
+      assertTrue("count " + count, count > keys / 8 && count < keys * 3 / 8);
+    }
+
+    // replicas are capped to the number of nodes
+    assertEquals(four.nodesFor("metric", 10).length, 4);
+  }
+
+  @Test
+  public void testSharding() throws Exception {
+    List<SnapshotTestTransport> collectors =
+      new ArrayList<SnapshotTestTransport>();
+    for (int i = 0; i < 3; ++i) {
+      collectors.add(new SnapshotTestTransport());
+    }
+    ShardedTransport transport =
+      new ShardedTransport(collectors, names(3), 160, 2);
+
+    StatsMessage[] stats = new StatsMessage[100];
+    for (int i = 0; i < stats.length; ++i) {
+      stats[i] = new StatsMessage("metric_" + i, StatType.Counter);
+      stats[i].setCounter(i);
+    }
+    Context[] contexts = new Context[] { new Context("host", "a") };
+    transport.send("ShardedTransportTest", stats, null, contexts, null);
+
+    // each metric is sent to its two collectors, with its value
+    int sent = 0;
+    for (int c = 0; c < collectors.size(); ++c) {
+      SnapshotTestTransport collector = collectors.get(c);
+      assertEquals(collector.snapshot.getProgramId(), "ShardedTransportTest");
+      assertEquals(collector.snapshot.getContexts(), contexts);
+      for (int i = 0; i < collector.snapshot.size(); ++i) {
+        String key = collector.snapshot.getKey(i);
+        int[] route = transport.collectorsFor(key);
+        assertTrue(route[0] == c || route[1] == c);
+        assertEquals(collector.snapshot.getValue(i),
+                     Long.parseLong(key.substring("metric_".length())));
+        sent++;
+      }
+    }
+    assertEquals(sent, 200);
+
+    // the extra stats of a sample go to the collectors of the sample key
+    SamplesMessage[] samples = new SamplesMessage[20];
+    for (int i = 0; i < samples.length; ++i) {
+      samples[i] = new SamplesMessage("latency_" + i,
+          SampleTrackType.MIN.value | SampleTrackType.MAX.value
+          | SampleTrackType.AVG.value | SampleTrackType.PCTL_99.value);
+      samples[i].addSample(i);
+    }
+    transport.send("ShardedTransportTest", null, samples, contexts, null);
+    sent = 0;
+    for (int c = 0; c < collectors.size(); ++c) {
+      SnapshotTestTransport collector = collectors.get(c);
+      for (int i = 0; i < collector.snapshot.size(); ++i) {
+        String key = collector.snapshot.getKey(i);
+        String sample = key.substring(0, key.lastIndexOf('_'));
+        if (key.endsWith("_pctl_99")) {
+          sample = key.substring(0, key.length() - "_pctl_99".length());
+        }
+        assertEquals(collector.snapshot.getBaseKey(i), sample);
+        int[] route = transport.collectorsFor(sample);
+        assertTrue(route[0] == c || route[1] == c);
+        sent++;
+      }
+    }
+    assertEquals(sent, 20 * 4 * 2);
+
+    // the routes are stable
+    int[] route = transport.collectorsFor("metric_1");
+    assertTrue(Arrays.equals(new ShardedTransport(collectors, names(3), 160, 2)
+                             .collectorsFor("metric_1"), route));
+
+    // logs follow the program id
+    transport.sendLogs("ShardedTransportTest", new LogMessage[0], contexts);
+    int logged = 0;
+    for (SnapshotTestTransport collector : collectors) {
+      logged += collector.logsSent;
+    }
+    assertEquals(logged, 2);
+  }
+}
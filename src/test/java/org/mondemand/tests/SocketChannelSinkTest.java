@@ -0,0 +1,240 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mondemand.Context;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.transport.DirectLWESTransport;
+import org.mondemand.transport.SocketChannelSink;
+
+public class SocketChannelSinkTest {
+  /**
+   * an in-process collector, reading the length-prefixed events of each
+   * connection it accepts
+   */
+  static class Receiver implements Runnable {
+    final ServerSocket server;
+    final List<byte[]> events = new ArrayList<byte[]>();
+    final List<Socket> sockets = new ArrayList<Socket>();
+
+    Receiver(int port) throws IOException {
+      server = new ServerSocket();
+      server.setReuseAddress(true);
+      server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+      Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getPort() {
+      return server.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while(true) {
+          final Socket socket = server.accept();
+          synchronized(this) {
+            sockets.add(socket);
+          }
+          Thread reader = new Thread() {
+            @Override
+            public void run() {
+              read(socket);
+            }
+          };
+          reader.setDaemon(true);
+          reader.start();
+        }
+      } catch(IOException e) {
+        // closed
+      }
+    }
+
+    private void read(Socket socket) {
+      try {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        while(true) {
+          byte[] event = new byte[input.readInt()];
+          input.readFully(event);
+          synchronized(this) {
+            events.add(event);
+          }
+        }
+      } catch(IOException e) {
+        // closed
+      }
+    }
+
+    synchronized List<byte[]> getEvents() {
+      return new ArrayList<byte[]>(events);
+    }
+
+    /**
+     * waits at most 5 seconds for a number of events
+     */
+    List<byte[]> await(int count) throws InterruptedException {
+      for(int i = 0; i < 500 && getEvents().size() < count; ++i) {
+        Thread.sleep(10);
+      }
+      return getEvents();
+    }
+
+    /**
+     * drops the connections accepted so far
+     */
+    synchronized void disconnect() throws IOException {
+      for(Socket socket : sockets) {
+        socket.close();
+      }
+      sockets.clear();
+    }
+
+    synchronized void close() throws IOException {
+      server.close();
+      disconnect();
+    }
+  }
+
+  private static ByteBuffer event(int value) {
+    byte[] bytes = new byte[1 + value % 50];
+    Arrays.fill(bytes, (byte) value);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    return port;
+  }
+
+  @Test
+  public void testFramedEvents() throws Exception {
+    Receiver receiver = new Receiver(0);
+    SocketChannelSink sink =
+      new SocketChannelSink(InetAddress.getByName("127.0.0.1"),
+                            receiver.getPort());
+    for(int i = 0; i < 1000; ++i) {
+      sink.send(event(i));
+    }
+
+    List<byte[]> events = receiver.await(1000);
+    assertEquals(events.size(), 1000);
+    for(int i = 0; i < 1000; ++i) {
+      assertTrue(Arrays.equals(events.get(i), event(i).array()));
+    }
+    assertEquals(sink.getSent(), 1000);
+    assertEquals(sink.getDropped(), 0);
+    assertEquals(sink.getConnects(), 1);
+    assertTrue(sink.isConnected());
+
+    // the events of a DirectLWESTransport are received as they were encoded
+    DirectLWESTransportTest.CapturingSink capturing =
+      new DirectLWESTransportTest.CapturingSink();
+    StatsMessage[] stats = new StatsMessage[] {
+      new StatsMessage("requests", StatType.Counter)
+    };
+    Context[] contexts = new Context[] { new Context("host", "a") };
+    new DirectLWESTransport(capturing).send("SocketChannelSinkTest", stats,
+                                            null, contexts, null);
+    DirectLWESTransport transport = new DirectLWESTransport(sink);
+    transport.send("SocketChannelSinkTest", stats, null, contexts, null);
+    events = receiver.await(1001);
+    assertTrue(Arrays.equals(events.get(1000), capturing.events.get(0)));
+
+    transport.shutdown();
+    assertFalse(sink.isConnected());
+    receiver.close();
+  }
+
+  @Test
+  public void testReconnect() throws Exception {
+    int port = freePort();
+    SocketChannelSink sink =
+      new SocketChannelSink(InetAddress.getByName("127.0.0.1"), port);
+    sink.setReconnectBackoff(10, 50);
+
+    // events are kept until the collector is up
+    for(int i = 0; i < 10; ++i) {
+      sink.send(event(i));
+    }
+    Thread.sleep(100);
+    assertFalse(sink.isConnected());
+    assertEquals(sink.getSent(), 0);
+
+    Receiver receiver = new Receiver(port);
+    assertEquals(receiver.await(10).size(), 10);
+    assertEquals(sink.getConnects(), 1);
+
+    // the collector drops the connection, the events sent afterwards end up
+    // on a new connection once the sink notices the old one is gone
+    receiver.disconnect();
+    for(int i = 0; i < 500 && receiver.getEvents().size() == 10; ++i) {
+      sink.send(event(i));
+      Thread.sleep(10);
+    }
+    assertTrue(receiver.getEvents().size() > 10);
+    assertEquals(sink.getConnects(), 2);
+
+    sink.close();
+    receiver.close();
+  }
+
+  @Test
+  public void testDropWhenFull() throws Exception {
+    SocketChannelSink sink =
+      new SocketChannelSink(InetAddress.getByName("127.0.0.1"), freePort(), 64);
+    for(int i = 0; i < 20; ++i) {
+      sink.send(ByteBuffer.wrap(new byte[10]));
+    }
+    // at most two buffers of 4 events each
+    assertTrue(sink.getDropped() >= 12);
+    assertEquals(sink.getSent(), 0);
+
+    // a rejecting sink throws instead of dropping
+    sink.setRejectWhileDisconnected(true);
+    try {
+      sink.send(ByteBuffer.wrap(new byte[10]));
+      fail("sink is disconnected or full");
+    } catch(IOException e) {
+    }
+    assertTrue(sink.getDropped() < 20);
+
+    sink.setCloseTimeout(10);
+    sink.close();
+    try {
+      sink.send(ByteBuffer.wrap(new byte[10]));
+      fail("sink is closed");
+    } catch(IOException e) {
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mondemand.transport.EventSpool;
+import org.mondemand.transport.SocketChannelSink;
+import org.mondemand.transport.SpoolingEventSink;
+
+public class SpoolingEventSinkTest {
+  /**
+   * a sink which fails while its collector is down
+   */
+  static class FlakySink extends DirectLWESTransportTest.CapturingSink {
+    volatile boolean down = false;
+
+    @Override
+    public synchronized void send(ByteBuffer event) {
+      if(down) {
+        // consume part of the event, as a failed write might
+        event.get();
+        throw new RuntimeException("down");
+      }
+      super.send(event);
+    }
+  }
+
+  private File directory;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = File.createTempFile("spool", "");
+    directory.delete();
+    directory.mkdir();
+  }
+
+  @After
+  public void deleteDirectory() {
+    for(File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private static ByteBuffer event(int value) {
+    return ByteBuffer.wrap(new byte[] { (byte) value, (byte) (value >> 8), 1, 2 });
+  }
+
+  private static int value(byte[] event) {
+    return (event[0] & 0xff) | ((event[1] & 0xff) << 8);
+  }
+
+  private static int value(EventSpool.Entry entry) {
+    return value(entry.getEvent());
+  }
+
+  @Test
+  public void testSpool() throws Exception {
+    // 8 events of 4 bytes per segment
+    EventSpool spool = new EventSpool(directory, 64, 4);
+    assertNull(spool.peek());
+    for(int i = 0; i < 20; ++i) {
+      assertTrue(spool.append(event(i)));
+    }
+    assertEquals(spool.size(), 20);
+    for(int i = 0; i < 5; ++i) {
+      EventSpool.Entry entry = spool.peek();
+      assertEquals(value(entry), i);
+      assertTrue(spool.remove(entry));
+    }
+    spool.close();
+
+    // the events not read are found again after a restart
+    spool = new EventSpool(directory, 64, 4);
+    assertEquals(spool.size(), 15);
+    assertEquals(value(spool.peek()), 5);
+    spool.append(event(20));
+    for(int i = 5; i <= 20; ++i) {
+      EventSpool.Entry entry = spool.peek();
+      assertEquals(value(entry), i);
+      assertTrue(spool.remove(entry));
+    }
+    assertNull(spool.peek());
+    assertEquals(spool.size(), 0);
+
+    // a full spool discards its oldest segment
+    for(int i = 0; i < 40; ++i) {
+      spool.append(event(i));
+    }
+    assertTrue(spool.getDropped() > 0);
+    assertEquals(spool.size() + spool.getDropped(), 40);
+    assertEquals(value(spool.peek()), spool.getDropped());
+    assertTrue(directory.listFiles().length <= 5);
+
+    // events too large for a segment are dropped
+    long dropped = spool.getDropped();
+    assertTrue(!spool.append(ByteBuffer.wrap(new byte[61])));
+    assertEquals(spool.getDropped(), dropped + 1);
+    spool.close();
+  }
+
+  @Test
+  public void testRemoveDiscarded() throws Exception {
+    EventSpool spool = new EventSpool(directory, 64, 2);
+    for(int i = 0; i < 8; ++i) {
+      spool.append(event(i));
+    }
+    EventSpool.Entry entry = spool.peek();
+    assertEquals(value(entry), 0);
+
+    // the spool fills up while the event is sent, discarding its segment
+    for(int i = 8; i < 24; ++i) {
+      spool.append(event(i));
+    }
+    assertEquals(spool.getDropped(), 8);
+    assertEquals(value(spool.peek()), 8);
+
+    // removing the sent event leaves the oldest one in place
+    assertFalse(spool.remove(entry));
+    assertEquals(spool.size(), 16);
+    entry = spool.peek();
+    assertEquals(value(entry), 8);
+    assertTrue(spool.remove(entry));
+    assertFalse(spool.remove(entry));
+    assertEquals(value(spool.peek()), 9);
+    spool.close();
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    FlakySink flaky = new FlakySink();
+    EventSpool spool = new EventSpool(directory, 1024, 4);
+    SpoolingEventSink sink = new SpoolingEventSink(flaky, spool);
+    sink.setRetryInterval(50);
+    sink.setReplayRate(20);
+
+    flaky.down = true;
+    for(int i = 0; i < 10; ++i) {
+      sink.send(event(i));
+    }
+    assertEquals(sink.getSpooled(), 10);
+    assertEquals(sink.getSpoolSize(), 10);
+    assertEquals(flaky.events.size(), 0);
+
+    // once the collector is back, the spool is replayed in order, the new
+    // events going after the spooled ones
+    flaky.down = false;
+    Thread.sleep(60);
+    for(int i = 10; i < 15; ++i) {
+      sink.send(event(i));
+    }
+    assertTrue(sink.getSpoolSize() > 0);
+    for(int i = 0; i < 500 && sink.getSpoolSize() > 0; ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(sink.getSpoolSize(), 0);
+    assertEquals(sink.getReplayed(), 15);
+    assertEquals(flaky.events.size(), 15);
+    for(int i = 0; i < 15; ++i) {
+      assertEquals(value(flaky.events.get(i)), i);
+    }
+
+    // and new events are sent directly once the spool is empty
+    sink.send(event(15));
+    assertEquals(flaky.events.size(), 16);
+    assertEquals(sink.getSpooled(), 15);
+    sink.close();
+    assertTrue(flaky.closed);
+  }
+
+  @Test
+  public void testSpoolSocket() throws Exception {
+    ServerSocket free = new ServerSocket(0);
+    int port = free.getLocalPort();
+    free.close();
+
+    SocketChannelSink socket =
+      new SocketChannelSink(InetAddress.getByName("127.0.0.1"), port);
+    socket.setRejectWhileDisconnected(true);
+    socket.setReconnectBackoff(10, 50);
+    SpoolingEventSink sink = new SpoolingEventSink(socket,
+        new EventSpool(directory, 1024, 4));
+    sink.setRetryInterval(50);
+
+    // nothing listens, the events past the first failed connection are
+    // spooled rather than buffered or dropped
+    for(int i = 0; i < 10; ++i) {
+      sink.send(event(i));
+      Thread.sleep(20);
+    }
+    assertTrue(sink.getSpooled() > 0);
+    assertEquals(socket.getDropped(), 0);
+
+    SocketChannelSinkTest.Receiver receiver =
+      new SocketChannelSinkTest.Receiver(port);
+    List<byte[]> events = receiver.await(10);
+    assertEquals(events.size(), 10);
+    for(int i = 0; i < 10; ++i) {
+      assertEquals(value(events.get(i)), i);
+    }
+    assertEquals(sink.getSpoolSize(), 0);
+    assertEquals(sink.getReplayed(), sink.getSpooled());
+
+    sink.close();
+    receiver.close();
+  }
+}
@@ -0,0 +1,156 @@
+/*======================================================================*
+ * Copyright (c) 2008, Yahoo! Inc. All rights reserved.                 *
+ *                                                                      *
+ * Licensed under the New BSD License (the "License"); you may not use  *
+ * this file except in compliance with the License.  Unless required    *
+ * by applicable law or agreed to in writing, software distributed      *
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT        *
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.     *
+ * See the License for the specific language governing permissions and  *
+ * limitations under the License. See accompanying LICENSE file.        *
+ *======================================================================*/
+package org.mondemand.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mondemand.Context;
+import org.mondemand.SampleTrackType;
+import org.mondemand.SamplesMessage;
+import org.mondemand.StatType;
+import org.mondemand.StatsMessage;
+import org.mondemand.transport.StatsdTransport;
+
+public class StatsdTransportTest {
+  /**
+   * reads the datagrams received so far
+   */
+  private static List<String> receive(DatagramSocket socket) throws Exception {
+    List<String> packets = new ArrayList<String>();
+    byte[] buffer = new byte[65536];
+    socket.setSoTimeout(200);
+    try {
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+        packets.add(new String(buffer, 0, packet.getLength(), "UTF-8"));
+      }
+    } catch (SocketTimeoutException e) {
+      return packets;
+    }
+  }
+
+  private static List<String> lines(List<String> packets) {
+    List<String> lines = new ArrayList<String>();
+    for (String packet : packets) {
+      lines.addAll(Arrays.asList(packet.split("\n")));
+    }
+    return lines;
+  }
+
+  @Test
+  public void testLines() throws Exception {
+    DatagramSocket socket = new DatagramSocket(
+        new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    StatsdTransport transport = new StatsdTransport(
+        InetAddress.getByName("127.0.0.1"), socket.getLocalPort(), 200);
+    Context[] contexts = new Context[] {
+      new Context("cluster", "east"), new Context("host", "web:1")
+    };
+
+    StatsMessage[] stats = new StatsMessage[20];
+    for (int i = 0; i < stats.length; ++i) {
+      stats[i] = new StatsMessage("requests_" + i, StatType.Counter);
+      stats[i].setCounter(100 + i);
+    }
+    StatsMessage temperature = new StatsMessage("temp|c", StatType.Gauge);
+    temperature.setCounter(-3);
+    SamplesMessage latency = new SamplesMessage("latency",
+        SampleTrackType.MIN.value | SampleTrackType.MAX.value);
+    latency.addSample(5);
+    latency.addSample(9);
+    transport.send("app",
+        new StatsMessage[] { stats[0], stats[1], temperature },
+        new SamplesMessage[] { latency }, contexts, null);
+
+    List<String> lines = lines(receive(socket));
+    assertEquals(lines.size(), 6);
+    assertEquals(lines.get(0), "app.requests_0:100|c|#cluster:east,host:web_1");
+    assertEquals(lines.get(1), "app.requests_1:101|c|#cluster:east,host:web_1");
+    // negative gauges are set to 0 first, separators are replaced
+    assertEquals(lines.get(2), "app.temp_c:0|g|#cluster:east,host:web_1");
+    assertEquals(lines.get(3), "app.temp_c:-3|g|#cluster:east,host:web_1");
+    assertEquals(lines.get(4), "app.latency_min:5|g|#cluster:east,host:web_1");
+    assertEquals(lines.get(5), "app.latency_max:9|g|#cluster:east,host:web_1");
+
+    // counters are sent as increments, lines are packed into datagrams
+    for (StatsMessage stat : stats) {
+      stat.incrementBy(2);
+    }
+    transport.send("app", stats, null, contexts, null);
+    List<String> packets = receive(socket);
+    assertTrue(packets.size() > 1 && packets.size() < stats.length);
+    lines = lines(packets);
+    assertEquals(lines.size(), stats.length);
+    // requests_0 was sent before, requests_19 is new
+    assertEquals(lines.get(0), "app.requests_0:2|c|#cluster:east,host:web_1");
+    assertEquals(lines.get(19), "app.requests_19:121|c|#cluster:east,host:web_1");
+    for (String packet : packets) {
+      assertTrue(packet.getBytes("UTF-8").length <= 200);
+    }
+
+    transport.setCounterDeltas(false);
+    transport.send("app", new StatsMessage[] { stats[0] }, null, contexts, null);
+    assertEquals(receive(socket).get(0),
+                 "app.requests_0:102|c|#cluster:east,host:web_1");
+
+    // lines larger than a datagram are dropped
+    StatsMessage large = new StatsMessage(new String(new char[300]).replace('\0', 'x'),
+                                          StatType.Gauge);
+    transport.send("app", new StatsMessage[] { large, stats[0] }, null,
+                   contexts, null);
+    assertEquals(transport.getDropped(), 1);
+    assertEquals(receive(socket).size(), 1);
+
+    transport.shutdown();
+    socket.close();
+  }
+
+  @Test
+  public void testEncoding() throws Exception {
+    DatagramSocket socket = new DatagramSocket(
+        new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    String line = "app.min_\u00e9\ud83d\ude00:-9223372036854775808|g|#host:h";
+    // a datagram holds exactly one line
+    StatsdTransport transport = new StatsdTransport(
+        InetAddress.getByName("127.0.0.1"), socket.getLocalPort(),
+        line.getBytes("UTF-8").length);
+    Context[] contexts = new Context[] { new Context("host", "h") };
+
+    StatsMessage min = new StatsMessage("min_\u00e9\ud83d\ude00", StatType.Gauge);
+    min.setCounter(Long.MIN_VALUE);
+    StatsMessage max = new StatsMessage("max", StatType.Gauge);
+    max.setCounter(Long.MAX_VALUE);
+    transport.send("app", new StatsMessage[] { min, max }, null, contexts, null);
+
+    List<String> packets = receive(socket);
+    assertEquals(packets.size(), 3);
+    assertEquals(packets.get(0), "app.min_\u00e9\ud83d\ude00:0|g|#host:h");
+    assertEquals(packets.get(1), line);
+    assertEquals(packets.get(2), "app.max:9223372036854775807|g|#host:h");
+    assertEquals(transport.getDropped(), 0);
+
+    transport.shutdown();
+    socket.close();
+  }
+}